@@ -0,0 +1,57 @@
+package midiJam;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+// In-memory transport: receive hands back the packet queued with deliver, send
+// only counts. Lets the benchmarks drive ServerUtils without a socket.
+class BenchmarkTransport implements ServerTransport {
+
+	private ByteBuffer nextPacket;
+	private InetSocketAddress nextSource;
+	long datagramsSent;
+	long bytesSent;
+
+	void deliver(ByteBuffer packet, InetSocketAddress source) {
+		nextPacket = packet;
+		nextSource = source;
+	}
+
+	@Override
+	public ByteBuffer allocateFrame(int capacity) {
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	@Override
+	public InetSocketAddress receive(ByteBuffer frame) {
+		int length = nextPacket.limit();
+		frame.clear();
+		frame.put(0, nextPacket, 0, length);
+		frame.limit(length);
+		return nextSource;
+	}
+
+	@Override
+	public void setReceiveTimeout(int millis) {
+	}
+
+	@Override
+	public void send(ByteBuffer frame, InetSocketAddress target) {
+		datagramsSent++;
+		bytesSent += frame.limit();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public int getLocalPort() {
+		return 0;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,50 @@
+package midiJam;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ChordFunctions.detectIntervalOrChord runs on every note on and off while the
+// chords window is open; notes selects a single note, an interval, a triad or
+// a seventh chord.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChordDetectionBenchmark {
+
+	private static final byte[] C_DOMINANT_SEVENTH = { 60, 64, 67, 70 };
+
+	@Param({ "1", "2", "3", "4" })
+	public int notes;
+
+	private Set<Byte> activeNotes;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		activeNotes = new HashSet<>();
+		for (int i = 0; i < notes; i++) {
+			activeNotes.add(C_DOMINANT_SEVENTH[i]);
+		}
+	}
+
+	@Benchmark
+	public String detectIntervalOrChord() {
+		return ChordFunctions.detectIntervalOrChord(activeNotes);
+	}
+}
@@ -0,0 +1,96 @@
+package midiJam;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// MidiJamClientNetworking's decode path, from a datagram handed over by the
+// receive loop to the event reaching handleMidiEvent: binary frames with their
+// sequence accounting, bundles, and legacy MIDI text. Only the last step, which
+// needs the Swing client and a MIDI device, is replaced.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientDecodeBenchmark {
+
+	private static final int BUNDLE_SIZE = 8;
+
+	// The current invocation's, for the replaced handler.
+	private Blackhole blackhole;
+	private MidiJamClientNetworking client;
+	private ByteBuffer midiFrame;
+	private ByteBuffer bundle;
+	private ByteBuffer legacyMidi;
+	private int midiSequence;
+	private int bundleSequence;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		client = new MidiJamClientNetworking(new ClientUtils(false, null), null) {
+			@Override
+			void handleMidiEvent(int senderClientId, int status, int channel, int data1, int data2) {
+				blackhole.consume(senderClientId + status + channel + data1 + data2);
+			}
+		};
+
+		midiFrame = ByteBuffer.allocate(MidiProtocol.MIDI_FRAME_SIZE);
+		MidiProtocol.writeMidi(midiFrame, 3, 0, 0x90, 0, 60, 100);
+
+		ByteBuffer entry = ByteBuffer.allocate(MidiProtocol.MIDI_FRAME_SIZE);
+		bundle = ByteBuffer.allocate(512);
+		bundle.put(0, MidiProtocol.TYPE_BUNDLE);
+		bundle.put(1, (byte) BUNDLE_SIZE);
+		int offset = MidiProtocol.BUNDLE_HEADER_SIZE;
+		for (int i = 0; i < BUNDLE_SIZE; i++) {
+			MidiProtocol.writeMidi(entry, 4, 0, 0x90, 0, 60 + i, 100);
+			bundle.put(offset, (byte) MidiProtocol.MIDI_FRAME_SIZE);
+			bundle.put(offset + 1, entry, 0, MidiProtocol.MIDI_FRAME_SIZE);
+			offset += 1 + MidiProtocol.MIDI_FRAME_SIZE;
+		}
+		bundle.limit(offset);
+
+		legacyMidi = ByteBuffer.wrap(MidiProtocol.midiText(5, "player5", 144, 0, 60, 100).getBytes());
+	}
+
+	// Each frame gets the next sequence number, so none is dropped as a duplicate.
+	@Benchmark
+	public void binaryMidi(Blackhole blackhole) {
+		this.blackhole = blackhole;
+		midiSequence = (midiSequence + 1) & 0xFFFF;
+		MidiProtocol.setSequence(midiFrame, midiSequence);
+		client.handleServerPacket(midiFrame);
+	}
+
+	@Benchmark
+	public void bundleOfEight(Blackhole blackhole) {
+		this.blackhole = blackhole;
+		int offset = MidiProtocol.BUNDLE_HEADER_SIZE + 1;
+		for (int i = 0; i < BUNDLE_SIZE; i++) {
+			bundleSequence = (bundleSequence + 1) & 0xFFFF;
+			bundle.putShort(offset + 3, (short) bundleSequence);
+			offset += 1 + MidiProtocol.MIDI_FRAME_SIZE;
+		}
+		client.handleServerPacket(bundle);
+	}
+
+	@Benchmark
+	public void legacyMidi(Blackhole blackhole) {
+		this.blackhole = blackhole;
+		client.handleServerPacket(legacyMidi);
+	}
+}
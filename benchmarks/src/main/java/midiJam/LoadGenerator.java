@@ -0,0 +1,374 @@
+package midiJam;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless stand-in for a room full of players. Each simulated player has its
+// own UDP socket, connects with the v2 protocol and plays notes, chords and
+// controller sweeps at a fixed density. Every frame's send time is remembered
+// by (player, sequence) so the copies relayed back by the server give delivery
+// counts and end-to-end forward latency. Start the server with -limit off and
+// -coalesce 0, or its rate limits and controller thinning show up as loss.
+//
+// java -cp target/benchmarks.jar midiJam.LoadGenerator -port 5000 -clients 200
+public class LoadGenerator {
+
+	private static final int SEND_WINDOW = 4096;
+
+	private String host = "127.0.0.1";
+	private int port = 5000;
+	private int clients = 50;
+	private int rooms = 1;
+	private int durationSeconds = 30;
+	private double notesPerSecond = 8;
+	private int chordSize = 1;
+	private double controllersPerSecond = 0;
+	private boolean chordKeys;
+	private boolean bundles;
+
+	private Player[] players;
+	private Player[] playersById = new Player[MidiProtocol.MAX_CLIENT_ID + 1];
+	private InetSocketAddress server;
+	private Selector selector;
+	private AtomicLongArray sendTimes;
+	private CountDownLatch connected;
+	private volatile boolean running = true;
+
+	private final AtomicLong framesSent = new AtomicLong();
+	private final AtomicLong expectedDeliveries = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		if (!generator.parseArguments(args)) {
+			return;
+		}
+		generator.run();
+	}
+
+	private boolean parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String value = i + 1 < args.length ? args[i + 1] : null;
+			switch (args[i]) {
+			case "-host":
+				host = value;
+				break;
+			case "-port":
+				port = Integer.parseInt(value);
+				break;
+			case "-clients":
+				clients = Integer.parseInt(value);
+				break;
+			case "-rooms":
+				rooms = Math.max(1, Integer.parseInt(value));
+				break;
+			case "-duration":
+				durationSeconds = Integer.parseInt(value);
+				break;
+			case "-rate":
+				notesPerSecond = Double.parseDouble(value);
+				break;
+			case "-chord":
+				chordSize = Math.max(1, Integer.parseInt(value));
+				break;
+			case "-cc":
+				controllersPerSecond = Double.parseDouble(value);
+				break;
+			case "-chordkeys":
+				chordKeys = true;
+				continue;
+			case "-bundle":
+				bundles = true;
+				continue;
+			default:
+				System.out.println("Usage: LoadGenerator [-host h] [-port p] [-clients n] [-rooms n] [-duration s]"
+						+ " [-rate notesPerSecond] [-chord notes] [-cc perSecond] [-chordkeys] [-bundle]");
+				return false;
+			}
+			i++;
+		}
+		return true;
+	}
+
+	private void run() throws IOException, InterruptedException {
+		server = new InetSocketAddress(InetAddress.getByName(host), port);
+		selector = Selector.open();
+		sendTimes = new AtomicLongArray(clients * SEND_WINDOW);
+		connected = new CountDownLatch(clients);
+		players = new Player[clients];
+		for (int i = 0; i < clients; i++) {
+			players[i] = new Player(i, "load" + (i % rooms));
+		}
+
+		Thread receiver = new Thread(this::receiveLoop, "load-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+
+		for (Player player : players) {
+			player.connect();
+		}
+		if (!connected.await(10, TimeUnit.SECONDS)) {
+			System.out.println("Only " + (clients - connected.getCount()) + " of " + clients
+					+ " players connected; continuing with those.");
+		}
+		int[] roomSizes = new int[rooms];
+		for (Player player : players) {
+			if (player.id >= 0) {
+				roomSizes[player.index % rooms]++;
+			}
+		}
+		for (Player player : players) {
+			player.recipients = Math.max(0, roomSizes[player.index % rooms] - 1);
+		}
+
+		System.out.printf("%d players in %d room(s), %.1f notes/s each (chords of %d), %.1f CC/s each, %ds%n",
+				clients, rooms, notesPerSecond, chordSize, controllersPerSecond, durationSeconds);
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+		long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+		long lastSent = 0;
+		long lastDelivered = 0;
+		while (System.nanoTime() < end) {
+			long now = System.nanoTime();
+			for (Player player : players) {
+				player.play(now);
+			}
+			if (now >= nextReport) {
+				long sent = framesSent.get();
+				long received = delivered.get();
+				System.out.printf("sent %d/s, delivered %d/s, p99 %dus%n", sent - lastSent, received - lastDelivered,
+						latency.getPercentileNanos(99) / 1000);
+				lastSent = sent;
+				lastDelivered = received;
+				nextReport += TimeUnit.SECONDS.toNanos(1);
+			}
+			LockSupport.parkNanos(100_000L);
+		}
+
+		// Give in-flight frames a moment before counting what never arrived.
+		Thread.sleep(1000);
+		running = false;
+		for (Player player : players) {
+			player.disconnect();
+		}
+		report(System.nanoTime() - start - TimeUnit.SECONDS.toNanos(1));
+	}
+
+	private void report(long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		long expected = expectedDeliveries.get();
+		long received = delivered.get();
+		double loss = expected == 0 ? 0 : 100.0 * Math.max(0, expected - received) / expected;
+		System.out.println();
+		System.out.printf("frames sent:        %d (%.0f/s)%n", framesSent.get(), framesSent.get() / seconds);
+		System.out.printf("frames delivered:   %d (%.0f/s)%n", received, received / seconds);
+		System.out.printf("expected:           %d%n", expected);
+		System.out.printf("loss:               %.3f%%%n", loss);
+		System.out.printf("forward latency us: p50 %d, p90 %d, p99 %d, p99.9 %d, max %d%n",
+				latency.getPercentileNanos(50) / 1000, latency.getPercentileNanos(90) / 1000,
+				latency.getPercentileNanos(99) / 1000, latency.getPercentileNanos(99.9) / 1000,
+				latency.getMaxNanos() / 1000);
+	}
+
+	private void receiveLoop() {
+		ByteBuffer frame = ByteBuffer.allocateDirect(2048);
+		ByteBuffer bundleEntry = ByteBuffer.allocate(MidiProtocol.MAX_BUNDLE_ENTRY_SIZE);
+		while (running) {
+			try {
+				selector.select(100);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Player player = (Player) key.attachment();
+					while (true) {
+						frame.clear();
+						if (player.channel.receive(frame) == null) {
+							break;
+						}
+						frame.flip();
+						long now = System.nanoTime();
+						if (!MidiProtocol.isBinary(frame)) {
+							player.handleText(frame);
+						} else if (MidiProtocol.type(frame) == MidiProtocol.TYPE_BUNDLE) {
+							MidiProtocol.forEachBundleEntry(frame, bundleEntry, entry -> recordDelivery(entry, now));
+						} else {
+							recordDelivery(frame, now);
+						}
+					}
+				}
+			} catch (IOException e) {
+				if (running) {
+					System.out.println("Receive failed: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void recordDelivery(ByteBuffer frame, long now) {
+		byte type = MidiProtocol.type(frame);
+		if (type != MidiProtocol.TYPE_MIDI && type != MidiProtocol.TYPE_CHORD_KEYS) {
+			return;
+		}
+		Player sender = playersById[MidiProtocol.clientId(frame) & MidiProtocol.MAX_CLIENT_ID];
+		if (sender == null) {
+			return;
+		}
+		delivered.incrementAndGet();
+		long sentAt = sendTimes.get(sender.index * SEND_WINDOW + (MidiProtocol.sequence(frame) % SEND_WINDOW));
+		if (sentAt != 0) {
+			latency.record(now - sentAt);
+		}
+	}
+
+	private class Player {
+		final int index;
+		final String room;
+		final DatagramChannel channel;
+		final ByteBuffer sendFrame = ByteBuffer.allocateDirect(128);
+		final Random random;
+		volatile int id = -1;
+		int handle;
+		int recipients;
+		int sequence;
+		long nextNote;
+		long nextController;
+		int[] heldNotes = new int[0];
+		int controllerValue;
+
+		Player(int index, String room) throws IOException {
+			this.index = index;
+			this.room = room;
+			this.random = new Random(index);
+			channel = DatagramChannel.open(StandardProtocolFamily.INET);
+			channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, this);
+		}
+
+		void connect() throws IOException {
+			String message = MidiProtocol.withOption("CONNECT:load" + index, MidiProtocol.OPTION_PROTOCOL,
+					MidiProtocol.VERSION_BINARY);
+			message = MidiProtocol.withOption(message, MidiProtocol.OPTION_ROOM, room);
+			if (bundles) {
+				message = MidiProtocol.withOption(message, MidiProtocol.OPTION_BUNDLE, 1);
+			}
+			sendText(message);
+		}
+
+		void disconnect() {
+			try {
+				if (id >= 0) {
+					sendText("DISCONNECT:" + id);
+				}
+				channel.close();
+			} catch (IOException e) {
+				// Closing at shutdown, nothing to report.
+			}
+		}
+
+		void handleText(ByteBuffer frame) throws IOException {
+			String message = StandardCharsets.UTF_8.decode(frame).toString().trim();
+			if (message.startsWith("ID:")) {
+				int assigned = Integer.parseInt(MidiProtocol.stripOptions(message).substring(3));
+				handle = MidiProtocol.clientHandle(assigned,
+						MidiProtocol.intOption(message, MidiProtocol.OPTION_GENERATION, 0));
+				playersById[assigned] = this;
+				long now = System.nanoTime();
+				nextNote = now + (long) (random.nextDouble() * noteIntervalNanos());
+				nextController = now + (long) (random.nextDouble() * controllerIntervalNanos());
+				id = assigned;
+				connected.countDown();
+			} else if (message.startsWith("PING:")) {
+				sendText("PING_RESPONSE:" + message.substring(5));
+			}
+		}
+
+		// Alternates between striking a chord and releasing it, so each note
+		// event is chordSize note-ons or chordSize note-offs.
+		void play(long now) {
+			if (id < 0) {
+				return;
+			}
+			if (notesPerSecond > 0 && now >= nextNote) {
+				if (heldNotes.length == 0) {
+					int root = 48 + random.nextInt(24);
+					heldNotes = new int[chordSize];
+					for (int i = 0; i < chordSize; i++) {
+						heldNotes[i] = root + i * 4;
+						sendMidi(0x90, heldNotes[i], 64 + random.nextInt(64), now);
+						if (chordKeys) {
+							sendChordKeys(heldNotes[i], true, now);
+						}
+					}
+				} else {
+					for (int note : heldNotes) {
+						sendMidi(0x80, note, 0, now);
+						if (chordKeys) {
+							sendChordKeys(note, false, now);
+						}
+					}
+					heldNotes = new int[0];
+				}
+				nextNote += noteIntervalNanos();
+			}
+			if (controllersPerSecond > 0 && now >= nextController) {
+				controllerValue = (controllerValue + 8) & 0x7F;
+				sendMidi(0xB0, 1, controllerValue, now);
+				nextController += controllerIntervalNanos();
+			}
+		}
+
+		private long noteIntervalNanos() {
+			return notesPerSecond > 0 ? (long) (1e9 / notesPerSecond) : Long.MAX_VALUE;
+		}
+
+		private long controllerIntervalNanos() {
+			return controllersPerSecond > 0 ? (long) (1e9 / controllersPerSecond) : Long.MAX_VALUE;
+		}
+
+		private void sendMidi(int status, int data1, int data2, long now) {
+			sequence = (sequence + 1) & 0xFFFF;
+			MidiProtocol.writeMidi(sendFrame, handle, sequence, status, index % 16, data1, data2);
+			sendFrame(now);
+		}
+
+		private void sendChordKeys(int note, boolean isNoteOn, long now) {
+			sequence = (sequence + 1) & 0xFFFF;
+			MidiProtocol.writeChordKeys(sendFrame, handle, sequence, note, isNoteOn,
+					"C Major".getBytes(StandardCharsets.UTF_8));
+			sendFrame(now);
+		}
+
+		private void sendFrame(long now) {
+			sendTimes.set(index * SEND_WINDOW + (sequence % SEND_WINDOW), now);
+			try {
+				sendFrame.position(0);
+				channel.send(sendFrame, server);
+				framesSent.incrementAndGet();
+				expectedDeliveries.addAndGet(recipients);
+			} catch (IOException e) {
+				System.out.println("Send failed for player " + index + ": " + e.getMessage());
+			}
+		}
+
+		private void sendText(String message) throws IOException {
+			channel.send(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), server);
+		}
+	}
+}
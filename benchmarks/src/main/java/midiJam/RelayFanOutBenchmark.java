@@ -0,0 +1,58 @@
+package midiJam;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One note from one player relayed to everyone else in the room. With
+// binaryRecipients=false the recipients are v1 clients, which adds the text
+// translation to the path.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayFanOutBenchmark {
+
+	@Param({ "2", "8", "32", "128" })
+	public int recipients;
+
+	@Param({ "true", "false" })
+	public boolean binaryRecipients;
+
+	private RelayFixture fixture;
+	private InetSocketAddress sender;
+	private ByteBuffer noteOn;
+	// The server drops repeated sequence numbers, so each note gets a new one.
+	private int sequence;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fixture = new RelayFixture(recipients + 1, binaryRecipients);
+		sender = RelayFixture.address(0);
+		noteOn = ByteBuffer.allocate(MidiProtocol.MIDI_FRAME_SIZE);
+		MidiProtocol.writeMidi(noteOn, 0, 1, 0x90, 0, 60, 100);
+	}
+
+	@Benchmark
+	public long midiFanOut() {
+		sequence = (sequence + 1) & 0xFFFF;
+		MidiProtocol.setSequence(noteOn, sequence);
+		fixture.receive(noteOn, sender);
+		return fixture.transport.datagramsSent;
+	}
+}
@@ -0,0 +1,44 @@
+package midiJam;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// A server on the in-memory transport with a room full of connected clients.
+// Client i connects from 127.0.0.1:(10000 + i) and gets id i.
+class RelayFixture {
+
+	final BenchmarkTransport transport = new BenchmarkTransport();
+	final ServerUtils server = new ServerUtils(false, null);
+	final ByteBuffer frame;
+
+	RelayFixture(int clients, boolean binaryClients) {
+		server.logger.setLevel(Logger.Level.ERROR);
+		server.transport = transport;
+		// One sender drives all the traffic; its rate limits would throttle the run.
+		server.floodLimits = FloodGuard.Limits.unlimited();
+		server.allocateRelayBuffers();
+		frame = transport.allocateFrame(512);
+		for (int i = 0; i < clients; i++) {
+			String connect = "CONNECT:player" + i;
+			if (binaryClients || i == 0) {
+				connect = MidiProtocol.withOption(connect, MidiProtocol.OPTION_PROTOCOL, MidiProtocol.VERSION_BINARY);
+			}
+			receive(text(connect), address(i));
+		}
+	}
+
+	static InetSocketAddress address(int client) {
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), 10000 + client);
+	}
+
+	static ByteBuffer text(String message) {
+		return ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+	}
+
+	void receive(ByteBuffer packet, InetSocketAddress source) {
+		transport.deliver(packet, source);
+		server.handleClientRequest(frame);
+	}
+}
@@ -0,0 +1,87 @@
+package midiJam;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ServerUtils.handleClientRequest for each inbound message kind, with a single
+// recipient so the cost is dominated by decoding rather than fan-out.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayParseBenchmark {
+
+	private RelayFixture fixture;
+	private InetSocketAddress sender;
+	private ByteBuffer binaryMidi;
+	private ByteBuffer binaryChordKeys;
+	private ByteBuffer legacyMidi;
+	private ByteBuffer legacyChordKeys;
+	private ByteBuffer pingResponse;
+	// The server drops repeated sequence numbers, so each binary frame gets a new one.
+	private int sequence;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		fixture = new RelayFixture(2, true);
+		sender = RelayFixture.address(0);
+
+		binaryMidi = ByteBuffer.allocate(MidiProtocol.MIDI_FRAME_SIZE);
+		MidiProtocol.writeMidi(binaryMidi, 0, 1, 0x90, 0, 60, 100);
+		binaryChordKeys = ByteBuffer.allocate(64);
+		MidiProtocol.writeChordKeys(binaryChordKeys, 0, 1, 60, true, "C Major".getBytes(StandardCharsets.UTF_8));
+		legacyMidi = RelayFixture.text(MidiProtocol.midiText(0, "player0", 144, 0, 60, 100));
+		legacyChordKeys = RelayFixture.text(MidiProtocol.chordKeysText(0, "player0", 60, true, "C Major"));
+		pingResponse = RelayFixture.text("PING_RESPONSE:" + System.currentTimeMillis());
+	}
+
+	@Benchmark
+	public long binaryMidi() {
+		sequence = (sequence + 1) & 0xFFFF;
+		MidiProtocol.setSequence(binaryMidi, sequence);
+		fixture.receive(binaryMidi, sender);
+		return fixture.transport.datagramsSent;
+	}
+
+	@Benchmark
+	public long binaryChordKeys() {
+		sequence = (sequence + 1) & 0xFFFF;
+		MidiProtocol.setSequence(binaryChordKeys, sequence);
+		fixture.receive(binaryChordKeys, sender);
+		return fixture.transport.datagramsSent;
+	}
+
+	@Benchmark
+	public long legacyMidi() {
+		fixture.receive(legacyMidi, sender);
+		return fixture.transport.datagramsSent;
+	}
+
+	@Benchmark
+	public long legacyChordKeys() {
+		fixture.receive(legacyChordKeys, sender);
+		return fixture.transport.datagramsSent;
+	}
+
+	@Benchmark
+	public long pingResponse() {
+		fixture.receive(pingResponse, sender);
+		return fixture.transport.datagramsSent;
+	}
+}
@@ -0,0 +1,96 @@
+package midiJam;
+
+import java.nio.ByteBuffer;
+
+// What one sender currently has sounding, per MIDI channel: which notes are
+// held, the last value of every controller it has moved, and its last program
+// change. Updated in place for every relayed event and replayed to clients that
+// join mid-song. Everything is preallocated, so an update is a few array writes.
+//
+// Only the relay thread touches the table.
+class ChannelStateTable {
+
+	private static final int CHANNELS = 16;
+
+	private final long[] heldNotes = new long[CHANNELS * 2];
+	private final long[] controllersSet = new long[CHANNELS * 2];
+	private final byte[] controllers = new byte[CHANNELS * 128];
+	private final int[] programs = new int[CHANNELS];
+
+	ChannelStateTable() {
+		for (int channel = 0; channel < CHANNELS; channel++) {
+			programs[channel] = MidiProtocol.NO_PROGRAM;
+		}
+	}
+
+	void apply(ByteBuffer midiFrame) {
+		apply(MidiProtocol.midiStatus(midiFrame), MidiProtocol.midiChannel(midiFrame),
+				MidiProtocol.midiData1(midiFrame), MidiProtocol.midiData2(midiFrame));
+	}
+
+	void apply(int status, int channel, int data1, int data2) {
+		data1 &= 0x7F;
+		int half = channel * 2 + (data1 >> 6);
+		long bit = 1L << (data1 & 63);
+		switch (status & 0xF0) {
+		case 0x80:
+			heldNotes[half] &= ~bit;
+			break;
+		case 0x90:
+			if (data2 == 0) {
+				heldNotes[half] &= ~bit;
+			} else {
+				heldNotes[half] |= bit;
+			}
+			break;
+		case 0xB0:
+			if (data1 == 120 || data1 == 123) {
+				heldNotes[channel * 2] = 0;
+				heldNotes[channel * 2 + 1] = 0;
+			} else if (data1 == 121) {
+				// Reset all controllers.
+				controllersSet[channel * 2] = 0;
+				controllersSet[channel * 2 + 1] = 0;
+			} else {
+				controllersSet[half] |= bit;
+				controllers[channel * 128 + data1] = (byte) data2;
+			}
+			break;
+		case 0xC0:
+			programs[channel] = data1;
+			break;
+		default:
+			break;
+		}
+	}
+
+	boolean isNoteHeld(int channel, int note) {
+		return (heldNotes[channel * 2 + (note >> 6)] & (1L << (note & 63))) != 0;
+	}
+
+	boolean hasState(int channel) {
+		return programs[channel] != MidiProtocol.NO_PROGRAM || heldNotes[channel * 2] != 0
+				|| heldNotes[channel * 2 + 1] != 0 || controllersSet[channel * 2] != 0
+				|| controllersSet[channel * 2 + 1] != 0;
+	}
+
+	// Writes a TYPE_CHANNEL_STATE frame for one channel.
+	void writeSnapshot(ByteBuffer frame, int clientId, int channel) {
+		MidiProtocol.writeHeader(frame, MidiProtocol.TYPE_CHANNEL_STATE, clientId, 0);
+		frame.put(MidiProtocol.HEADER_SIZE, (byte) channel);
+		frame.put(MidiProtocol.HEADER_SIZE + 1, (byte) programs[channel]);
+		frame.putLong(MidiProtocol.CHANNEL_STATE_NOTES_OFFSET, heldNotes[channel * 2]);
+		frame.putLong(MidiProtocol.CHANNEL_STATE_NOTES_OFFSET + 8, heldNotes[channel * 2 + 1]);
+		int count = 0;
+		int offset = MidiProtocol.CHANNEL_STATE_CONTROLLERS_OFFSET + 1;
+		for (int controller = 0; controller < 128; controller++) {
+			if ((controllersSet[channel * 2 + (controller >> 6)] & (1L << (controller & 63))) != 0) {
+				frame.put(offset++, (byte) controller);
+				frame.put(offset++, controllers[channel * 128 + controller]);
+				count++;
+			}
+		}
+		frame.put(MidiProtocol.CHANNEL_STATE_CONTROLLERS_OFFSET, (byte) count);
+		frame.limit(offset);
+	}
+}
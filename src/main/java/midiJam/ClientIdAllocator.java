@@ -0,0 +1,99 @@
+package midiJam;
+
+// Hands out client ids from a FIFO free list and takes them back when clients
+// leave, so allocation and release are O(1) and ids never leak. Released ids go
+// to the back of the list, which keeps a freed id idle for as long as possible
+// before it is reused. Each reuse also bumps the id's generation; binary frames
+// carry it in the top bits of the client id field so late packets from an
+// earlier holder of the id can be told apart. The generation only has two bits,
+// so when it wraps back to zero the id sits out for QUARANTINE_NANOS before it is
+// handed out again; by then nothing from the holder that last used generation
+// zero can still be in flight.
+class ClientIdAllocator {
+
+	static final long QUARANTINE_NANOS = 60_000_000_000L;
+
+	private final int[] free;
+	private final int[] generations;
+	private final boolean[] inUse;
+	private int head;
+	private int count;
+	private final int[] retired;
+	private final long[] retiredAt;
+	private int retiredHead;
+	private int retiredCount;
+
+	ClientIdAllocator(int maxIds) {
+		if (maxIds <= 0 || maxIds > MidiProtocol.MAX_CLIENT_ID + 1) {
+			throw new IllegalArgumentException("Invalid id capacity: " + maxIds);
+		}
+		free = new int[maxIds];
+		generations = new int[maxIds];
+		inUse = new boolean[maxIds];
+		retired = new int[maxIds];
+		retiredAt = new long[maxIds];
+		reset();
+	}
+
+	// Returns -1 when every id is taken or still in quarantine.
+	int allocate() {
+		return allocate(System.nanoTime());
+	}
+
+	synchronized int allocate(long now) {
+		while (retiredCount > 0 && now - retiredAt[retiredHead] >= QUARANTINE_NANOS) {
+			free[(head + count) % free.length] = retired[retiredHead];
+			count++;
+			retiredHead = (retiredHead + 1) % retired.length;
+			retiredCount--;
+		}
+		if (count == 0) {
+			return -1;
+		}
+		int id = free[head];
+		head = (head + 1) % free.length;
+		count--;
+		inUse[id] = true;
+		return id;
+	}
+
+	void release(int id) {
+		release(id, System.nanoTime());
+	}
+
+	synchronized void release(int id, long now) {
+		if (id < 0 || id >= inUse.length || !inUse[id]) {
+			return;
+		}
+		inUse[id] = false;
+		generations[id] = (generations[id] + 1) & MidiProtocol.MAX_GENERATION;
+		if (generations[id] == 0) {
+			int tail = (retiredHead + retiredCount) % retired.length;
+			retired[tail] = id;
+			retiredAt[tail] = now;
+			retiredCount++;
+			return;
+		}
+		free[(head + count) % free.length] = id;
+		count++;
+	}
+
+	synchronized int generation(int id) {
+		return generations[id];
+	}
+
+	synchronized int available() {
+		return count;
+	}
+
+	synchronized void reset() {
+		for (int id = 0; id < free.length; id++) {
+			free[id] = id;
+			inUse[id] = false;
+		}
+		head = 0;
+		count = free.length;
+		retiredHead = 0;
+		retiredCount = 0;
+	}
+}
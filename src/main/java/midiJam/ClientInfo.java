@@ -0,0 +1,292 @@
+package midiJam;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.BitSet;
+
+class ClientInfo {
+	private int id;
+	private int generation;
+	private InetAddress address;
+	private int port;
+	private InetSocketAddress socketAddress;
+	private volatile String name;
+	private Room room;
+	private int roomSlot;
+	private volatile ClientInfo[] recipients = new ClientInfo[0];
+	private boolean acceptsBundles;
+	private boolean acceptsReliable;
+	private boolean acceptsJournal;
+	private boolean acceptsDirect;
+	// Replaced, never modified, so the relay thread can read it without locking.
+	private volatile BitSet directRecipients;
+	private EgressBatcher.Batch egressBatch;
+	// Liveness, on the relay thread's monotonic clock.
+	private long lastHeardNanos;
+	private long lastPingSentNanos;
+	private long lastPingInfoNanos;
+	private final TimingWheel.Timeout<ClientInfo> livenessTimeout = new TimingWheel.Timeout<>(this);
+	private int protocolVersion;
+	private int sequence;
+	private final RelayMetrics.ClientCounters counters = new RelayMetrics.ClientCounters();
+	private final ClockEstimator clock = new ClockEstimator();
+	private final ReliableSender reliableOut = new ReliableSender();
+	private final ReliableReceiver reliableIn = new ReliableReceiver();
+	private final SequenceTracker receiveSequence = new SequenceTracker();
+	private final ChannelStateTable channelState = new ChannelStateTable();
+	private final SkippedSequences skippedSequences = new SkippedSequences();
+	private FloodGuard floodGuard;
+	private ControllerCoalescer coalescer;
+	private PeerNode peer;
+	private int remoteId;
+	private long rosterSync;
+
+	public ClientInfo(int id, InetAddress address, int port, String name, int protocolVersion) {
+		this.id = id;
+		this.address = address;
+		this.port = port;
+		this.socketAddress = new InetSocketAddress(address, port);
+		this.name = name;
+		this.protocolVersion = protocolVersion;
+		this.lastHeardNanos = System.nanoTime();
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	public void setGeneration(int generation) {
+		this.generation = generation;
+	}
+
+	public int getHandle() {
+		return MidiProtocol.clientHandle(id, generation);
+	}
+
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public InetSocketAddress getSocketAddress() {
+		return socketAddress;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public int getProtocolVersion() {
+		return protocolVersion;
+	}
+
+	public int nextSequence() {
+		sequence = (sequence + 1) & 0xFFFF;
+		return sequence;
+	}
+
+	public int getRoomSlot() {
+		return roomSlot;
+	}
+
+	public void setRoomSlot(int roomSlot) {
+		this.roomSlot = roomSlot;
+	}
+
+	public ClientInfo[] getRecipients() {
+		return recipients;
+	}
+
+	public void setRecipients(ClientInfo[] recipients) {
+		this.recipients = recipients;
+	}
+
+	public boolean acceptsBundles() {
+		return acceptsBundles;
+	}
+
+	public void setAcceptsBundles(boolean acceptsBundles) {
+		this.acceptsBundles = acceptsBundles;
+	}
+
+	public boolean acceptsReliable() {
+		return acceptsReliable;
+	}
+
+	public void setAcceptsReliable(boolean acceptsReliable) {
+		this.acceptsReliable = acceptsReliable;
+	}
+
+	public boolean acceptsJournal() {
+		return acceptsJournal;
+	}
+
+	public void setAcceptsJournal(boolean acceptsJournal) {
+		this.acceptsJournal = acceptsJournal;
+	}
+
+	public boolean acceptsDirect() {
+		return acceptsDirect;
+	}
+
+	public void setAcceptsDirect(boolean acceptsDirect) {
+		this.acceptsDirect = acceptsDirect;
+	}
+
+	// Recipients this client currently reaches over a direct path, so the server
+	// leaves them out of its plain MIDI fan-out.
+	public boolean hasDirectRecipients() {
+		return directRecipients != null;
+	}
+
+	public boolean isDirectTo(int clientId) {
+		BitSet recipients = directRecipients;
+		return recipients != null && recipients.get(clientId);
+	}
+
+	public synchronized void setDirectRecipients(BitSet recipients) {
+		directRecipients = recipients.isEmpty() ? null : recipients;
+	}
+
+	public synchronized void clearDirectRecipient(int clientId) {
+		BitSet recipients = directRecipients;
+		if (recipients != null && recipients.get(clientId)) {
+			BitSet next = (BitSet) recipients.clone();
+			next.clear(clientId);
+			directRecipients = next.isEmpty() ? null : next;
+		}
+	}
+
+	public EgressBatcher.Batch getEgressBatch() {
+		return egressBatch;
+	}
+
+	public void setEgressBatch(EgressBatcher.Batch egressBatch) {
+		this.egressBatch = egressBatch;
+	}
+
+	public Room getRoom() {
+		return room;
+	}
+
+	public void setRoom(Room room) {
+		this.room = room;
+	}
+
+	public RelayMetrics.ClientCounters getCounters() {
+		return counters;
+	}
+
+	public ClockEstimator getClock() {
+		return clock;
+	}
+
+	// Sequence accounting for frames this client sends to the server.
+	public SequenceTracker getReceiveSequence() {
+		return receiveSequence;
+	}
+
+	// This client's sequences the server did not relay in order, still to be
+	// reported to its recipients.
+	public SkippedSequences getSkippedSequences() {
+		return skippedSequences;
+	}
+
+	public ChannelStateTable getChannelState() {
+		return channelState;
+	}
+
+	public FloodGuard getFloodGuard() {
+		return floodGuard;
+	}
+
+	public void setFloodGuard(FloodGuard floodGuard) {
+		this.floodGuard = floodGuard;
+	}
+
+	public ControllerCoalescer getCoalescer() {
+		return coalescer;
+	}
+
+	public void setCoalescer(ControllerCoalescer coalescer) {
+		this.coalescer = coalescer;
+	}
+
+	// Proxies stand for players connected to a federated peer node.
+	public boolean isRemote() {
+		return peer != null;
+	}
+
+	public PeerNode getPeer() {
+		return peer;
+	}
+
+	// The player's id on its home node.
+	public int getRemoteId() {
+		return remoteId;
+	}
+
+	public void setPeer(PeerNode peer, int remoteId) {
+		this.peer = peer;
+		this.remoteId = remoteId;
+	}
+
+	// The last full roster sync from the peer that listed this proxy.
+	public long getRosterSync() {
+		return rosterSync;
+	}
+
+	public void setRosterSync(long rosterSync) {
+		this.rosterSync = rosterSync;
+	}
+
+	// Server to client half of the reliable link.
+	public ReliableSender getReliableOut() {
+		return reliableOut;
+	}
+
+	// Client to server half of the reliable link.
+	public ReliableReceiver getReliableIn() {
+		return reliableIn;
+	}
+
+	// Any packet from the client counts.
+	public long getLastHeardNanos() {
+		return lastHeardNanos;
+	}
+
+	public void heard(long now) {
+		lastHeardNanos = now;
+	}
+
+	public long getLastPingSentNanos() {
+		return lastPingSentNanos;
+	}
+
+	public void setLastPingSentNanos(long lastPingSentNanos) {
+		this.lastPingSentNanos = lastPingSentNanos;
+	}
+
+	public long getLastPingInfoNanos() {
+		return lastPingInfoNanos;
+	}
+
+	public void setLastPingInfoNanos(long lastPingInfoNanos) {
+		this.lastPingInfoNanos = lastPingInfoNanos;
+	}
+
+	public TimingWheel.Timeout<ClientInfo> getLivenessTimeout() {
+		return livenessTimeout;
+	}
+}
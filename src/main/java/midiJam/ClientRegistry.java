@@ -0,0 +1,71 @@
+package midiJam;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Membership changes are serialized and publish a fresh immutable array, so the
+// relay and timer threads can walk the current members without locks or
+// iterators. Clients are also indexed by socket address so that every incoming
+// packet resolves to its sender without trusting an id carried in the payload.
+class ClientRegistry {
+
+	private static final ClientInfo[] EMPTY = new ClientInfo[0];
+
+	private final ConcurrentHashMap<Integer, ClientInfo> clientsById = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<InetSocketAddress, ClientInfo> clientsByAddress = new ConcurrentHashMap<>();
+	private volatile ClientInfo[] clients = EMPTY;
+	private volatile int legacyClientCount;
+
+	synchronized void add(ClientInfo client) {
+		clientsById.put(client.getId(), client);
+		clientsByAddress.put(client.getSocketAddress(), client);
+		publish();
+	}
+
+	synchronized ClientInfo remove(int clientId) {
+		ClientInfo removed = clientsById.remove(clientId);
+		if (removed != null) {
+			clientsByAddress.remove(removed.getSocketAddress(), removed);
+			publish();
+		}
+		return removed;
+	}
+
+	synchronized void clear() {
+		clientsById.clear();
+		clientsByAddress.clear();
+		publish();
+	}
+
+	ClientInfo get(int clientId) {
+		return clientsById.get(clientId);
+	}
+
+	ClientInfo getByAddress(InetSocketAddress address) {
+		return clientsByAddress.get(address);
+	}
+
+	ClientInfo[] snapshot() {
+		return clients;
+	}
+
+	int size() {
+		return clients.length;
+	}
+
+	int getLegacyClientCount() {
+		return legacyClientCount;
+	}
+
+	private void publish() {
+		ClientInfo[] next = clientsById.values().toArray(EMPTY);
+		int legacy = 0;
+		for (ClientInfo client : next) {
+			if (client.getProtocolVersion() < MidiProtocol.VERSION_BINARY) {
+				legacy++;
+			}
+		}
+		legacyClientCount = legacy;
+		clients = next;
+	}
+}
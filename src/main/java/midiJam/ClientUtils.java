@@ -13,6 +13,7 @@ public class ClientUtils {
 	Logger logger;
 
 	private final String HOSTNAME_FILE_NAME = "hostname.config";
+	static final int DEFAULT_REDUNDANCY = 2;
 
 	public ClientUtils(boolean isGui, JTextArea statusArea) {
 		if (isGui) {
@@ -32,6 +33,9 @@ public class ClientUtils {
 		File file = new File(HOSTNAME_FILE_NAME);
 		String defaultName = generateDefaultName();
 		String defaultHostName = "127.0.0.1:5000";
+		String defaultRoom = Room.DEFAULT_ROOM;
+		String defaultRedundancy = String.valueOf(DEFAULT_REDUNDANCY);
+		String defaultDirect = String.valueOf(false);
 
 		if (file.exists()) {
 			try (Scanner fileScanner = new Scanner(file)) {
@@ -39,8 +43,11 @@ public class ClientUtils {
 					String name = fileScanner.nextLine();
 					if (fileScanner.hasNextLine()) {
 						String hostName = fileScanner.nextLine();
+						String room = fileScanner.hasNextLine() ? fileScanner.nextLine() : defaultRoom;
+						String redundancy = fileScanner.hasNextLine() ? fileScanner.nextLine() : defaultRedundancy;
+						String direct = fileScanner.hasNextLine() ? fileScanner.nextLine() : defaultDirect;
 						logger.log("Name and HostName loaded from file: " + name + " - " + hostName);
-						return new String[] { name, hostName };
+						return new String[] { name, hostName, room, redundancy, direct };
 					}
 				}
 				logger.log("HostName file is incomplete. Using defaults.");
@@ -49,15 +56,18 @@ public class ClientUtils {
 			}
 		} else {
 			logger.log("HostName file not found. Using defaults.");
-			saveNameAndHostNameToFile(defaultName, defaultHostName);
+			saveNameAndHostNameToFile(defaultName, defaultHostName, defaultRoom, DEFAULT_REDUNDANCY, false);
 		}
-		return new String[] { defaultName, defaultHostName };
+		return new String[] { defaultName, defaultHostName, defaultRoom, defaultRedundancy, defaultDirect };
 	}
 
-	void saveNameAndHostNameToFile(String name, String hostName) {
+	void saveNameAndHostNameToFile(String name, String hostName, String room, int redundancy, boolean direct) {
 		try (PrintWriter writer = new PrintWriter(HOSTNAME_FILE_NAME)) {
 			writer.println(name);
 			writer.println(hostName);
+			writer.println(room);
+			writer.println(redundancy);
+			writer.println(direct);
 			logger.log("Name and HostName saved to file: " + name + " - " + hostName);
 		} catch (IOException e) {
 			System.err.println("Failed to save Name and HostName to file: " + e.getMessage());
@@ -0,0 +1,85 @@
+package midiJam;
+
+// NTP-style estimate of one client's clock relative to the server's, fed by the
+// ping exchange. Both sides use System.nanoTime, so the offset relates two
+// monotonic clocks and is only meaningful between this server and this client.
+//
+// t1 server sends PING, t2 client receives it, t3 client replies, t4 server
+// receives the reply:
+//   rtt    = (t4 - t1) - (t3 - t2)
+//   offset = ((t2 - t1) + (t3 - t4)) / 2     (client clock minus server clock)
+//
+// Queueing delay only ever inflates a sample's RTT and skews its offset, so the
+// offset is taken from the lowest-RTT sample in the recent window. Smoothed RTT
+// and jitter use the RFC 3550 style 1/8 and 1/16 gains.
+class ClockEstimator {
+
+	private static final int WINDOW = 8;
+
+	private final long[] windowRtt = new long[WINDOW];
+	private final long[] windowOffset = new long[WINDOW];
+	private int samples;
+	private int next;
+	private boolean hasOffset;
+
+	private long lastRttNanos = -1;
+	private long smoothedRttNanos = -1;
+	private long jitterNanos;
+	private long offsetNanos;
+
+	synchronized void addSample(long t1, long t2, long t3, long t4) {
+		long rtt = Math.max(0, (t4 - t1) - (t3 - t2));
+		long offset = ((t2 - t1) + (t3 - t4)) / 2;
+		windowRtt[next] = rtt;
+		windowOffset[next] = offset;
+		next = (next + 1) % WINDOW;
+		samples = Math.min(samples + 1, WINDOW);
+		hasOffset = true;
+
+		int best = 0;
+		for (int i = 1; i < samples; i++) {
+			if (windowRtt[i] < windowRtt[best]) {
+				best = i;
+			}
+		}
+		offsetNanos = windowOffset[best];
+		addRoundTrip(rtt);
+	}
+
+	// Clients that only echo t1 still give a round trip, just no offset.
+	synchronized void addRoundTrip(long rtt) {
+		rtt = Math.max(0, rtt);
+		if (smoothedRttNanos < 0) {
+			smoothedRttNanos = rtt;
+		} else {
+			smoothedRttNanos += (rtt - smoothedRttNanos) / 8;
+			jitterNanos += (Math.abs(rtt - lastRttNanos) - jitterNanos) / 16;
+		}
+		lastRttNanos = rtt;
+	}
+
+	synchronized long getLastRttNanos() {
+		return lastRttNanos;
+	}
+
+	synchronized long getSmoothedRttNanos() {
+		return smoothedRttNanos;
+	}
+
+	synchronized long getJitterNanos() {
+		return jitterNanos;
+	}
+
+	synchronized boolean hasOffset() {
+		return hasOffset;
+	}
+
+	synchronized long getOffsetNanos() {
+		return offsetNanos;
+	}
+
+	// Converts a reading of the client's clock to the server's clock.
+	synchronized long toServerTime(long clientNanos) {
+		return clientNanos - offsetNanos;
+	}
+}
@@ -0,0 +1,180 @@
+package midiJam;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Thins one sender's continuous controller streams (mod wheel, expression,
+// pitch bend, pressure) before they are fanned out. Each channel and controller
+// forwards at most one value per spacing: the first value of a sweep goes out
+// at once, later ones within the spacing only replace the pending value, and
+// the latest is sent when the spacing is up. A pending value also goes out
+// once it falls half a receive window behind the sender's newest frame, as it
+// keeps its own sequence number and receivers would otherwise drop it as late.
+//
+// Everything else is left alone, including the controllers whose order with
+// their neighbours matters (bank select, RPN/NRPN and data entry, pedals and
+// channel mode messages). Before such an event is forwarded the server flushes
+// whatever is pending for the sender, so it lands in the same order relative to
+// the controller stream as it was played.
+//
+// Only the relay thread touches a coalescer.
+class ControllerCoalescer {
+
+	// Keys per channel: controllers 0-127, polyphonic aftertouch per note at
+	// 128-255, then pitch bend and channel pressure.
+	static final int KEYS_PER_CHANNEL = 258;
+	static final int KEY_COUNT = 16 * KEYS_PER_CHANNEL;
+	static final int NO_KEY = -1;
+
+	private static final int NO_VALUE = -1;
+
+	private final long spacingNanos;
+
+	// Allocated on the first coalescable event.
+	private long[] lastSentNanos;
+	private int[] pendingEvents;
+	private int[] pendingSequences;
+	private int[] pendingOrder;
+	private int pendingCount;
+	private long coalesced;
+
+	private boolean absorbed;
+	private int lastAbsorbedSequence;
+	private boolean offeredAny;
+	private int newestSequence;
+
+	// A value waits at most intervalNanos for a newer one, and no key goes out
+	// more than maxPerSecond times a second. Either limit may be 0.
+	ControllerCoalescer(long intervalNanos, double maxPerSecond) {
+		long rateSpacing = maxPerSecond > 0 ? (long) (1e9 / maxPerSecond) : 0;
+		spacingNanos = Math.max(intervalNanos, rateSpacing);
+	}
+
+	boolean isEnabled() {
+		return spacingNanos > 0;
+	}
+
+	// Key for the per-channel value stores, or NO_KEY for events that carry no
+	// continuous value.
+	static int key(int status, int channel, int data1) {
+		int base = channel * KEYS_PER_CHANNEL;
+		switch (status & 0xF0) {
+		case 0xB0:
+			return base + data1;
+		case 0xA0:
+			return base + 128 + data1;
+		case 0xE0:
+			return base + 256;
+		case 0xD0:
+			return base + 257;
+		default:
+			return NO_KEY;
+		}
+	}
+
+	static boolean isCoalescable(int status, int data1) {
+		switch (status & 0xF0) {
+		case 0xA0:
+		case 0xD0:
+		case 0xE0:
+			return true;
+		case 0xB0:
+			// Bank select, data entry, RPN/NRPN, pedals and channel mode messages
+			// only make sense in order.
+			return data1 != 0 && data1 != 6 && data1 != 32 && data1 != 38 && data1 != 64 && data1 != 66
+					&& data1 != 67 && (data1 < 96 || data1 > 101) && data1 < 120;
+		default:
+			return false;
+		}
+	}
+
+	// Returns true if the frame should be forwarded now, false if it was kept
+	// back as the pending value for its key.
+	boolean offer(ByteBuffer frame, long now) {
+		if (!offeredAny || MidiProtocol.sequenceDelta(MidiProtocol.sequence(frame), newestSequence) > 0) {
+			offeredAny = true;
+			newestSequence = MidiProtocol.sequence(frame);
+		}
+		int status = MidiProtocol.midiStatus(frame);
+		int data1 = MidiProtocol.midiData1(frame);
+		if (spacingNanos == 0 || !isCoalescable(status, data1)) {
+			return true;
+		}
+		if (lastSentNanos == null) {
+			lastSentNanos = new long[KEY_COUNT];
+			pendingEvents = new int[KEY_COUNT];
+			pendingSequences = new int[KEY_COUNT];
+			pendingOrder = new int[KEY_COUNT];
+			Arrays.fill(pendingEvents, NO_VALUE);
+			Arrays.fill(lastSentNanos, now - spacingNanos);
+		}
+		int key = key(status, MidiProtocol.midiChannel(frame), data1);
+		if (pendingEvents[key] == NO_VALUE) {
+			if (now - lastSentNanos[key] >= spacingNanos) {
+				lastSentNanos[key] = now;
+				return true;
+			}
+			pendingOrder[pendingCount++] = key;
+		} else {
+			coalesced++;
+		}
+		pendingEvents[key] = status << 16 | data1 << 8 | MidiProtocol.midiData2(frame);
+		pendingSequences[key] = MidiProtocol.sequence(frame);
+		absorbed = true;
+		lastAbsorbedSequence = MidiProtocol.sequence(frame);
+		return false;
+	}
+
+	boolean hasPending() {
+		return pendingCount > 0;
+	}
+
+	// When the first pending value's spacing is up; Long.MAX_VALUE if none is pending.
+	long nextReleaseNanos() {
+		long next = Long.MAX_VALUE;
+		for (int i = 0; i < pendingCount; i++) {
+			next = Math.min(next, lastSentNanos[pendingOrder[i]] + spacingNanos);
+		}
+		return next;
+	}
+
+	// Values replaced by a newer one before they were sent.
+	long takeCoalescedCount() {
+		long count = coalesced;
+		coalesced = 0;
+		return count;
+	}
+
+	// Journal entries in frames close behind a kept-back value would replay stale
+	// values at the recipients, so those frames lose their journal.
+	boolean isAbsorbedNear(int sequence) {
+		return absorbed && ((sequence - lastAbsorbedSequence) & 0xFFFF) <= 0xFF;
+	}
+
+	// Writes the oldest pending value that is due (or any pending value, with
+	// force) into frame. Returns false when there is none.
+	boolean releaseNext(long now, boolean force, ByteBuffer frame, int clientId) {
+		for (int i = 0; i < pendingCount; i++) {
+			int key = pendingOrder[i];
+			if (!force && now - lastSentNanos[key] < spacingNanos && MidiProtocol.sequenceDelta(newestSequence,
+					pendingSequences[key]) < SkippedSequences.FLUSH_DISTANCE) {
+				continue;
+			}
+			System.arraycopy(pendingOrder, i + 1, pendingOrder, i, pendingCount - i - 1);
+			pendingCount--;
+			int event = pendingEvents[key];
+			pendingEvents[key] = NO_VALUE;
+			lastSentNanos[key] = now;
+			MidiProtocol.writeMidi(frame, clientId, pendingSequences[key], event >> 16, key / KEYS_PER_CHANNEL,
+					(event >> 8) & 0x7F, event & 0x7F);
+			return true;
+		}
+		return false;
+	}
+
+	void clear() {
+		while (pendingCount > 0) {
+			pendingEvents[pendingOrder[--pendingCount]] = NO_VALUE;
+		}
+	}
+}
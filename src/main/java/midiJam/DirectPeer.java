@@ -0,0 +1,78 @@
+package midiJam;
+
+import java.net.InetSocketAddress;
+
+// Client side of a direct path to one other player in the room. In direct mode
+// the server sends ENDPOINT:<id>:<host>:<port> with the address it sees each
+// other player at. Both ends then send PUNCH:<id>:<t> to that address every
+// keepalive interval. The first packets open each end's NAT mapping, later ones
+// keep it open. Each PUNCH is answered with PUNCH_ACK:<id>:<t>, which gives the
+// round trip of the direct path.
+//
+// Plain MIDI goes directly to a player while that path answers and is faster
+// than going through the server and back out. The server path is always there
+// as the fallback.
+class DirectPeer {
+
+	static final long KEEPALIVE_NANOS = 500_000_000L;
+	// Three keepalives without an answer and the path counts as lost.
+	static final long TIMEOUT_NANOS = 3 * KEEPALIVE_NANOS;
+	// Keeps a path that is about as fast as the server from flapping.
+	private static final long HYSTERESIS_NANOS = 2_000_000L;
+
+	private final int clientId;
+	private final InetSocketAddress address;
+	private final ClockEstimator clock = new ClockEstimator();
+	private volatile long lastHeardNanos;
+	private volatile long relayRttNanos = -1;
+	private volatile boolean direct;
+
+	DirectPeer(int clientId, InetSocketAddress address) {
+		this.clientId = clientId;
+		this.address = address;
+	}
+
+	int getClientId() {
+		return clientId;
+	}
+
+	InetSocketAddress getAddress() {
+		return address;
+	}
+
+	ClockEstimator getClock() {
+		return clock;
+	}
+
+	void heard(long now) {
+		lastHeardNanos = now;
+	}
+
+	// The player's own round trip to the server, from PING_INFO.
+	void setRelayRttNanos(long relayRttNanos) {
+		this.relayRttNanos = relayRttNanos;
+	}
+
+	boolean isDirect() {
+		return direct;
+	}
+
+	void setDirect(boolean direct) {
+		this.direct = direct;
+	}
+
+	// Relayed, a note takes our trip to the server plus the server's trip to the
+	// player, so the direct round trip is compared with the sum of both players'
+	// round trips to the server. Until all three are known the server is used.
+	boolean shouldBeDirect(long now, long ownRelayRttNanos) {
+		if (lastHeardNanos == 0 || now - lastHeardNanos > TIMEOUT_NANOS) {
+			return false;
+		}
+		long directRtt = clock.getSmoothedRttNanos();
+		if (directRtt < 0 || ownRelayRttNanos < 0 || relayRttNanos < 0) {
+			return false;
+		}
+		long relayedRtt = ownRelayRttNanos + relayRttNanos;
+		return direct ? directRtt < relayedRtt + HYSTERESIS_NANOS : directRtt + HYSTERESIS_NANOS < relayedRtt;
+	}
+}
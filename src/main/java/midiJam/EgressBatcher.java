@@ -0,0 +1,174 @@
+package midiJam;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Collects the frames bound for each recipient during a short window and sends
+// them as one bundle datagram. The relay thread appends, a dedicated thread
+// flushes each batch once its window has elapsed.
+class EgressBatcher implements Runnable {
+
+	private static final int BATCH_CAPACITY = 512;
+	private static final int QUEUE_CAPACITY = 4096;
+
+	private final ServerTransport transport;
+	private final Logger logger;
+	private final RelayMetrics metrics;
+	private final long windowNanos;
+	private final ArrayBlockingQueue<Batch> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private volatile boolean running;
+	private Thread flushThread;
+
+	private final AtomicLong framesBatched = new AtomicLong();
+	private final AtomicLong datagramsSent = new AtomicLong();
+
+	EgressBatcher(ServerTransport transport, Logger logger, RelayMetrics metrics, long windowMicros) {
+		this.transport = transport;
+		this.logger = logger;
+		this.metrics = metrics;
+		this.windowNanos = windowMicros * 1000;
+	}
+
+	void start() {
+		running = true;
+		flushThread = new Thread(this, "egress-batcher");
+		flushThread.setDaemon(true);
+		flushThread.start();
+	}
+
+	void stop() {
+		running = false;
+		LockSupport.unpark(flushThread);
+	}
+
+	long getFramesBatched() {
+		return framesBatched.get();
+	}
+
+	long getDatagramsSent() {
+		return datagramsSent.get();
+	}
+
+	void enqueue(ClientInfo client, ByteBuffer frame) {
+		Batch batch = client.getEgressBatch();
+		if (batch == null) {
+			batch = new Batch(client, transport.allocateFrame(BATCH_CAPACITY),
+					transport.allocateFrame(MidiProtocol.MAX_BUNDLE_ENTRY_SIZE));
+			client.setEgressBatch(batch);
+		}
+
+		synchronized (batch) {
+			if (frame.limit() > MidiProtocol.MAX_BUNDLE_ENTRY_SIZE) {
+				flush(batch);
+				send(frame, client);
+				return;
+			}
+			if (!batch.fits(frame)) {
+				flush(batch);
+			}
+			batch.append(frame);
+			framesBatched.incrementAndGet();
+			if (!batch.queued) {
+				batch.queued = true;
+				batch.deadline = System.nanoTime() + windowNanos;
+				if (!pending.offer(batch)) {
+					batch.queued = false;
+					flush(batch);
+				} else if (pending.peek() == batch) {
+					LockSupport.unpark(flushThread);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			Batch batch = pending.peek();
+			if (batch == null) {
+				LockSupport.park(this);
+				continue;
+			}
+			long wait = batch.deadline - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			pending.poll();
+			synchronized (batch) {
+				batch.queued = false;
+				flush(batch);
+			}
+		}
+	}
+
+	private void flush(Batch batch) {
+		if (batch.count == 0) {
+			return;
+		}
+		if (batch.count == 1) {
+			int length = batch.bundle.get(MidiProtocol.BUNDLE_HEADER_SIZE) & 0xFF;
+			batch.single.clear();
+			batch.single.put(0, batch.bundle, MidiProtocol.BUNDLE_HEADER_SIZE + 1, length);
+			batch.single.limit(length);
+			send(batch.single, batch.client);
+		} else {
+			batch.bundle.put(1, (byte) batch.count);
+			batch.bundle.limit(batch.length);
+			send(batch.bundle, batch.client);
+		}
+		batch.reset();
+	}
+
+	private void send(ByteBuffer frame, ClientInfo client) {
+		try {
+			transport.send(frame, client.getSocketAddress());
+			datagramsSent.incrementAndGet();
+			metrics.recordSend(client, frame.limit());
+		} catch (IOException e) {
+			if (transport.isOpen()) {
+				logger.warn("Failed to forward message to ID: " + client.getId() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	static class Batch {
+		private final ClientInfo client;
+		private final ByteBuffer bundle;
+		private final ByteBuffer single;
+		private int count;
+		private int length;
+		private boolean queued;
+		private volatile long deadline;
+
+		Batch(ClientInfo client, ByteBuffer bundle, ByteBuffer single) {
+			this.client = client;
+			this.bundle = bundle;
+			this.single = single;
+			reset();
+		}
+
+		boolean fits(ByteBuffer frame) {
+			return count < 255 && length + 1 + frame.limit() <= bundle.capacity();
+		}
+
+		void append(ByteBuffer frame) {
+			int size = frame.limit();
+			bundle.limit(bundle.capacity());
+			bundle.put(length, (byte) size);
+			bundle.put(length + 1, frame, 0, size);
+			length += 1 + size;
+			count++;
+		}
+
+		void reset() {
+			bundle.clear();
+			bundle.put(0, MidiProtocol.TYPE_BUNDLE);
+			count = 0;
+			length = MidiProtocol.BUNDLE_HEADER_SIZE;
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package midiJam;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Per-sender budgets that keep one noisy player from flooding the room. Each
+// traffic class has its own token bucket; what arrives over budget is either
+// dropped or, for continuous controllers, held back as the latest value per
+// channel and controller and forwarded once the budget refills.
+//
+// Note-offs for notes the sender has sounding always go through, and pedal and
+// all-notes-off changes are always held rather than dropped, so throttling
+// never leaves a note or a pedal stuck.
+//
+// A held value keeps its own sequence number. It goes out before it falls so
+// far behind the sender's newer frames that receivers would drop it as late,
+// even if that overdraws the budget.
+//
+// Only the relay thread touches a FloodGuard.
+class FloodGuard {
+
+	enum TrafficClass {
+		NOTES(200, 100, Policy.DROP),
+		CONTROLLERS(300, 100, Policy.COALESCE),
+		CHAT(5, 10, Policy.DROP),
+		CONTROL(10, 20, Policy.DROP);
+
+		final double defaultRate;
+		final int defaultBurst;
+		final Policy defaultPolicy;
+
+		TrafficClass(double defaultRate, int defaultBurst, Policy defaultPolicy) {
+			this.defaultRate = defaultRate;
+			this.defaultBurst = defaultBurst;
+			this.defaultPolicy = defaultPolicy;
+		}
+	}
+
+	enum Policy {
+		DROP, COALESCE
+	}
+
+	enum Decision {
+		FORWARD, DROP, HOLD
+	}
+
+	private static final TrafficClass[] CLASSES = TrafficClass.values();
+
+	// Held values use the ControllerCoalescer keys.
+	private static final int KEYS_PER_CHANNEL = ControllerCoalescer.KEYS_PER_CHANNEL;
+	private static final int KEY_COUNT = ControllerCoalescer.KEY_COUNT;
+	private static final int NO_VALUE = -1;
+
+	private final Limits limits;
+	private final TokenBucket[] buckets = new TokenBucket[CLASSES.length];
+	private final boolean[] reported = new boolean[CLASSES.length];
+
+	// Allocated the first time anything is held.
+	private int[] heldEvents;
+	private int[] heldSequences;
+	// Sequence of the frame that first queued each held key.
+	private int[] heldSince;
+	private int[] heldOrder;
+	private int heldHead;
+	private int heldCount;
+
+	private boolean throttled;
+	private int lastThrottledSequence;
+	private boolean admittedAny;
+	private int newestSequence;
+
+	FloodGuard(Limits limits) {
+		this.limits = limits;
+		long now = System.nanoTime();
+		for (TrafficClass trafficClass : CLASSES) {
+			int i = trafficClass.ordinal();
+			buckets[i] = new TokenBucket(limits.rates[i], limits.bursts[i], now);
+		}
+	}
+
+	static TrafficClass classify(ByteBuffer frame) {
+		switch (MidiProtocol.type(frame)) {
+		case MidiProtocol.TYPE_MIDI:
+		case MidiProtocol.TYPE_MIDI_RELIABLE:
+			return classifyMidi(MidiProtocol.midiStatus(frame));
+		case MidiProtocol.TYPE_TEXT:
+			return TrafficClass.CHAT;
+		case MidiProtocol.TYPE_CHORD_KEYS:
+			return TrafficClass.NOTES;
+		default:
+			return TrafficClass.CONTROL;
+		}
+	}
+
+	static TrafficClass classifyMidi(int status) {
+		switch (status & 0xF0) {
+		case 0xA0:
+		case 0xB0:
+		case 0xD0:
+		case 0xE0:
+			return TrafficClass.CONTROLLERS;
+		default:
+			return TrafficClass.NOTES;
+		}
+	}
+
+	Decision admit(TrafficClass trafficClass, long now) {
+		return buckets[trafficClass.ordinal()].tryTake(now) ? Decision.FORWARD : Decision.DROP;
+	}
+
+	// mustDeliver is for note-offs that end a sounding note.
+	Decision admit(ByteBuffer frame, boolean mustDeliver, long now) {
+		if (!admittedAny || MidiProtocol.sequenceDelta(MidiProtocol.sequence(frame), newestSequence) > 0) {
+			admittedAny = true;
+			newestSequence = MidiProtocol.sequence(frame);
+		}
+		TrafficClass trafficClass = classify(frame);
+		if (!MidiProtocol.isMidi(frame)) {
+			Decision decision = admit(trafficClass, now);
+			if (decision != Decision.FORWARD) {
+				throttled(MidiProtocol.sequence(frame));
+			}
+			return decision;
+		}
+
+		int status = MidiProtocol.midiStatus(frame);
+		int channel = MidiProtocol.midiChannel(frame);
+		int data1 = MidiProtocol.midiData1(frame);
+		int data2 = MidiProtocol.midiData2(frame);
+		int key = ControllerCoalescer.key(status, channel, data1);
+		if (key != ControllerCoalescer.NO_KEY && heldEvents != null && heldEvents[key] != NO_VALUE) {
+			// An older value for this controller is still waiting; the new one takes
+			// its place in the queue so values never go out of order.
+			hold(key, frame);
+			return Decision.HOLD;
+		}
+
+		TokenBucket bucket = buckets[trafficClass.ordinal()];
+		if (mustDeliver) {
+			bucket.take(now);
+			return Decision.FORWARD;
+		}
+		if (bucket.tryTake(now)) {
+			return Decision.FORWARD;
+		}
+		if (key != ControllerCoalescer.NO_KEY && (limits.policies[trafficClass.ordinal()] == Policy.COALESCE
+				|| MidiProtocol.isStateCritical(status, data1, data2))) {
+			hold(key, frame);
+			return Decision.HOLD;
+		}
+		throttled(MidiProtocol.sequence(frame));
+		return Decision.DROP;
+	}
+
+	// True the first time a class goes over budget, so the server can say so once.
+	boolean shouldReport(TrafficClass trafficClass) {
+		if (reported[trafficClass.ordinal()]) {
+			return false;
+		}
+		reported[trafficClass.ordinal()] = true;
+		return true;
+	}
+
+	// Journal entries in frames close behind a throttled one could bring the
+	// throttled event back at the recipients, so those frames lose their journal.
+	boolean isThrottledNear(int sequence) {
+		return throttled && ((sequence - lastThrottledSequence) & 0xFFFF) <= 0xFF;
+	}
+
+	boolean isHolding() {
+		return heldCount > 0;
+	}
+
+	// When the controller budget next allows a held value out.
+	long nextReleaseNanos(long now) {
+		return now + buckets[TrafficClass.CONTROLLERS.ordinal()].nanosUntilToken(now);
+	}
+
+	// Writes the oldest held value into frame as a MIDI frame if the controller
+	// budget allows one more event now, or if it has been held too long.
+	boolean releaseNext(long now, ByteBuffer frame, int clientId) {
+		if (heldCount == 0) {
+			return false;
+		}
+		int key = heldOrder[heldHead];
+		TokenBucket bucket = buckets[TrafficClass.CONTROLLERS.ordinal()];
+		if (MidiProtocol.sequenceDelta(newestSequence, heldSince[key]) >= SkippedSequences.FLUSH_DISTANCE) {
+			bucket.take(now);
+		} else if (!bucket.tryTake(now)) {
+			return false;
+		}
+		heldHead = (heldHead + 1) % KEY_COUNT;
+		heldCount--;
+		int event = heldEvents[key];
+		heldEvents[key] = NO_VALUE;
+		MidiProtocol.writeMidi(frame, clientId, heldSequences[key], event >> 16, key / KEYS_PER_CHANNEL,
+				(event >> 8) & 0x7F, event & 0x7F);
+		return true;
+	}
+
+	void clearHeld() {
+		while (heldCount > 0) {
+			heldEvents[heldOrder[heldHead]] = NO_VALUE;
+			heldHead = (heldHead + 1) % KEY_COUNT;
+			heldCount--;
+		}
+	}
+
+	private void hold(int key, ByteBuffer frame) {
+		if (heldEvents == null) {
+			heldEvents = new int[KEY_COUNT];
+			heldSequences = new int[KEY_COUNT];
+			heldSince = new int[KEY_COUNT];
+			heldOrder = new int[KEY_COUNT];
+			Arrays.fill(heldEvents, NO_VALUE);
+		}
+		if (heldEvents[key] == NO_VALUE) {
+			heldOrder[(heldHead + heldCount) % KEY_COUNT] = key;
+			heldCount++;
+			heldSince[key] = MidiProtocol.sequence(frame);
+		}
+		heldEvents[key] = MidiProtocol.midiStatus(frame) << 16 | MidiProtocol.midiData1(frame) << 8
+				| MidiProtocol.midiData2(frame);
+		heldSequences[key] = MidiProtocol.sequence(frame);
+		throttled(MidiProtocol.sequence(frame));
+	}
+
+	private void throttled(int sequence) {
+		throttled = true;
+		lastThrottledSequence = sequence;
+	}
+
+	// Rate, burst and policy for every traffic class, shared by all senders.
+	// Configured once before the server starts.
+	static class Limits {
+		final double[] rates = new double[CLASSES.length];
+		final int[] bursts = new int[CLASSES.length];
+		final Policy[] policies = new Policy[CLASSES.length];
+
+		static Limits defaults() {
+			Limits limits = new Limits();
+			for (TrafficClass trafficClass : CLASSES) {
+				limits.rates[trafficClass.ordinal()] = trafficClass.defaultRate;
+				limits.bursts[trafficClass.ordinal()] = trafficClass.defaultBurst;
+				limits.policies[trafficClass.ordinal()] = trafficClass.defaultPolicy;
+			}
+			return limits;
+		}
+
+		static Limits unlimited() {
+			Limits limits = defaults();
+			Arrays.fill(limits.rates, 0);
+			return limits;
+		}
+
+		// <class>=<rate>/<burst>[:drop|coalesce], for example controllers=300/100:coalesce.
+		// A rate of 0 lifts the limit. Returns the class that was changed.
+		TrafficClass set(String spec) {
+			String[] parts = spec.split("=", 2);
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("Expected <class>=<rate>/<burst>[:policy]: " + spec);
+			}
+			TrafficClass trafficClass = TrafficClass.valueOf(parts[0].trim().toUpperCase(Locale.ROOT));
+			String value = parts[1].trim();
+			Policy policy = policies[trafficClass.ordinal()];
+			int colon = value.indexOf(':');
+			if (colon >= 0) {
+				policy = Policy.valueOf(value.substring(colon + 1).trim().toUpperCase(Locale.ROOT));
+				value = value.substring(0, colon);
+			}
+			if (policy == Policy.COALESCE && trafficClass != TrafficClass.CONTROLLERS) {
+				throw new IllegalArgumentException("Only controllers can be coalesced");
+			}
+			String[] rateAndBurst = value.split("/", 2);
+			double rate = Double.parseDouble(rateAndBurst[0]);
+			int burst = rateAndBurst.length > 1 ? Integer.parseInt(rateAndBurst[1]) : bursts[trafficClass.ordinal()];
+			if (rate < 0 || burst < 1) {
+				throw new IllegalArgumentException("Rate must be at least 0 and burst at least 1: " + spec);
+			}
+			rates[trafficClass.ordinal()] = rate;
+			bursts[trafficClass.ordinal()] = burst;
+			policies[trafficClass.ordinal()] = policy;
+			return trafficClass;
+		}
+
+		String describe(TrafficClass trafficClass) {
+			int i = trafficClass.ordinal();
+			if (rates[i] == 0) {
+				return trafficClass.name().toLowerCase(Locale.ROOT) + " unlimited";
+			}
+			return String.format(Locale.ROOT, "%s %.0f/s, burst %d, %s", trafficClass.name().toLowerCase(Locale.ROOT),
+					rates[i], bursts[i], policies[i].name().toLowerCase(Locale.ROOT));
+		}
+	}
+}
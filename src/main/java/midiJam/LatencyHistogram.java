@@ -0,0 +1,58 @@
+package midiJam;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Power-of-two buckets over nanoseconds: bucket b counts samples in
+// [2^(b-1), 2^b). Recording is two atomic updates and never allocates, so it is
+// cheap enough to run on every relayed packet.
+class LatencyHistogram {
+
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long nanos) {
+		int bucket = nanos <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+		counts.incrementAndGet(bucket);
+		if (nanos > max.get()) {
+			max.accumulateAndGet(nanos, Math::max);
+		}
+	}
+
+	long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	long getMaxNanos() {
+		return max.get();
+	}
+
+	// Upper bound of the bucket holding the given percentile (0-100), capped at
+	// the largest sample seen.
+	long getPercentileNanos(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(1L << i, max.get());
+			}
+		}
+		return 1L << (BUCKETS - 1);
+	}
+}
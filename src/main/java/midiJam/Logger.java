@@ -7,14 +7,46 @@ import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 import javax.swing.text.StyledDocument;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
 public class Logger {
-	private Consumer<String> logHandler;
+
+	public enum Level {
+		TRACE, DEBUG, INFO, WARN, ERROR
+	}
+
 	private static final int MAX_LOG_LINES = 25;
+	private static final int RING_CAPACITY = 4096;
+	private static final long IDLE_PARK_NANOS = 10_000_000L;
+	private static final int MAX_BATCH_CHARS = 8192;
+
+	// Every logger in the process is emptied by one drain thread, and one
+	// shutdown hook flushes them all, however many loggers get created.
+	private static final List<Logger> LOGGERS = new CopyOnWriteArrayList<>();
+	private static final Thread DRAIN_THREAD = startDrainThread();
+
+	private final Consumer<String> logHandler;
+	private volatile Level level = Level.INFO;
+
+	// Multi-producer, single-consumer ring: producers claim a slot with a CAS on
+	// head and publish into it, the drain thread empties slots in order. When the
+	// ring is full new messages are counted and dropped instead of blocking.
+	private final AtomicReferenceArray<String> ring = new AtomicReferenceArray<>(RING_CAPACITY);
+	private final AtomicLong head = new AtomicLong();
+	private volatile long tail;
+	private final AtomicLong dropped = new AtomicLong();
+	// Only touched by the drain thread.
+	private final StringBuilder batch = new StringBuilder();
+	private long reportedDrops;
 
 	public Logger() {
 		this.logHandler = System.out::println;
+		LOGGERS.add(this);
 	}
 
 	public Logger(JTextArea statusArea) {
@@ -22,10 +54,147 @@ public class Logger {
 			statusArea.append(message + "\n");
 			limitLogSize(statusArea);
 		});
+		LOGGERS.add(this);
+	}
+
+	// Batches go to the handler on the drain thread; it decides how to show them.
+	Logger(Consumer<String> logHandler) {
+		this.logHandler = logHandler;
+		LOGGERS.add(this);
+	}
+
+	public Level getLevel() {
+		return level;
+	}
+
+	public void setLevel(Level level) {
+		this.level = level;
+	}
+
+	public boolean isEnabled(Level messageLevel) {
+		return messageLevel.compareTo(level) >= 0;
+	}
+
+	public boolean isTraceEnabled() {
+		return level == Level.TRACE;
 	}
 
 	public void log(String message) {
-		logHandler.accept(message);
+		log(Level.INFO, message);
+	}
+
+	public void trace(String message) {
+		log(Level.TRACE, message);
+	}
+
+	public void debug(String message) {
+		log(Level.DEBUG, message);
+	}
+
+	public void warn(String message) {
+		log(Level.WARN, message);
+	}
+
+	public void error(String message) {
+		log(Level.ERROR, message);
+	}
+
+	public void log(Level messageLevel, String message) {
+		if (!isEnabled(messageLevel)) {
+			return;
+		}
+		if (messageLevel != Level.INFO) {
+			message = "[" + messageLevel + "] " + message;
+		}
+
+		long claimed;
+		do {
+			claimed = head.get();
+			if (claimed - tail >= RING_CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!head.compareAndSet(claimed, claimed + 1));
+		ring.lazySet((int) (claimed % RING_CAPACITY), message);
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	// Blocks until everything logged so far has been handed to the output.
+	public void flush() {
+		long target = head.get();
+		while (tail < target && DRAIN_THREAD.isAlive()) {
+			LockSupport.parkNanos(1_000_000L);
+		}
+	}
+
+	private static Thread startDrainThread() {
+		Thread thread = new Thread(Logger::drainAll, "logger");
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> LOGGERS.forEach(Logger::flush)));
+		return thread;
+	}
+
+	private static void drainAll() {
+		while (true) {
+			boolean busy = false;
+			for (Logger logger : LOGGERS) {
+				busy |= logger.drain();
+			}
+			if (!busy) {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	// Messages that are already waiting are handed to the output together, so a
+	// burst costs one console write or one EDT runnable instead of one per line.
+	// Returns false when there was nothing to do.
+	private boolean drain() {
+		long position = tail;
+		if (position == head.get()) {
+			long drops = dropped.get();
+			if (drops > reportedDrops) {
+				logHandler.accept("[WARN] Logger dropped " + (drops - reportedDrops) + " messages.");
+				reportedDrops = drops;
+			}
+			return false;
+		}
+
+		while (position != head.get()) {
+			int index = (int) (position % RING_CAPACITY);
+			String message = ring.get(index);
+			if (message == null) {
+				// Claimed but not yet published; come back on the next pass.
+				break;
+			}
+			ring.lazySet(index, null);
+			tail = ++position;
+
+			if (batch.length() > 0) {
+				batch.append('\n');
+			}
+			batch.append(message);
+			if (batch.length() >= MAX_BATCH_CHARS) {
+				emit(batch);
+			}
+		}
+		if (batch.length() > 0) {
+			emit(batch);
+		}
+		return true;
+	}
+
+	private void emit(StringBuilder batch) {
+		try {
+			logHandler.accept(batch.toString());
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		batch.setLength(0);
 	}
 
 	public void limitLogSize(JTextArea statusArea) {
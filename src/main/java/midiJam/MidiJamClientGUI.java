@@ -457,14 +457,26 @@ public class MidiJamClientGUI extends JFrame {
 		String[] savedInfo = clientUtils.loadNameAndHostNameFromFile();
 		String savedName = savedInfo[0];
 		String savedHostName = savedInfo[1];
+		String savedRoom = savedInfo[2];
+		String savedRedundancy = savedInfo[3];
+		boolean savedDirect = Boolean.parseBoolean(savedInfo[4]);
 
 		JTextField nameField = new JTextField(savedName);
 		JTextField ipField = new JTextField(savedHostName);
+		JTextField roomField = new JTextField(savedRoom);
+		JTextField redundancyField = new JTextField(savedRedundancy);
+		JCheckBox directBox = new JCheckBox("Play directly with other players when faster (peer-to-peer)", savedDirect);
 
 		panel.add(new JLabel("Enter your name:"));
 		panel.add(nameField);
 		panel.add(new JLabel("Enter server IP:Port:"));
 		panel.add(ipField);
+		panel.add(new JLabel("Enter room:"));
+		panel.add(roomField);
+		panel.add(new JLabel("Redundancy (earlier notes repeated per packet, 0-" + MidiProtocol.MAX_JOURNAL_DEPTH
+				+ "):"));
+		panel.add(redundancyField);
+		panel.add(directBox);
 
 		int result = JOptionPane.showConfirmDialog(this, panel, "Client Setup", JOptionPane.OK_CANCEL_OPTION,
 				JOptionPane.PLAIN_MESSAGE);
@@ -479,10 +491,13 @@ public class MidiJamClientGUI extends JFrame {
 				String ip = serverDetails[0];
 				int port = Integer.parseInt(serverDetails[1]);
 
-				clientUtils.saveNameAndHostNameToFile(nameField.getText().trim(), ipField.getText().trim());
+				String room = Room.sanitizeName(roomField.getText());
+				int redundancy = parseRedundancy(redundancyField.getText());
+				clientUtils.saveNameAndHostNameToFile(nameField.getText().trim(), ipField.getText().trim(), room,
+						redundancy, directBox.isSelected());
 
 				return new MidiJamClientNetworking.ClientSetup(nameField.getText().trim(), InetAddress.getByName(ip),
-						port);
+						port, room, redundancy, directBox.isSelected());
 			} catch (Exception e) {
 				showErrorDialog("Invalid IP or Port. Please ensure the format is 'IP:Port'.");
 			}
@@ -490,6 +505,14 @@ public class MidiJamClientGUI extends JFrame {
 		return null;
 	}
 
+	private static int parseRedundancy(String text) {
+		try {
+			return Math.max(0, Math.min(Integer.parseInt(text.trim()), MidiProtocol.MAX_JOURNAL_DEPTH));
+		} catch (NumberFormatException e) {
+			return ClientUtils.DEFAULT_REDUNDANCY;
+		}
+	}
+
 	void appendColoredStatus(String message, Color color) {
 		SwingUtilities.invokeLater(() -> {
 			StyledDocument doc = statusArea.getStyledDocument();
@@ -527,6 +550,16 @@ public class MidiJamClientGUI extends JFrame {
 		}
 	}
 
+	void renameClientRow(int clientId, String name) {
+		JLabel clientLabel = clientLabels.get(clientId);
+		if (clientLabel == null) {
+			return;
+		}
+		String[] text = clientLabel.getText().split("Ping:", 2);
+		String ping = text.length == 2 ? text[1].trim() : "N/A";
+		clientLabel.setText("Client: ID:" + clientId + " " + name + " Ping: " + ping);
+	}
+
 	private void addClientRow(String formattedClientInfo) {
 		String clientIdStr = formattedClientInfo.split(" ")[1].split(":")[1];
 		int clientIdToToggle = Integer.parseInt(clientIdStr);
@@ -741,27 +774,13 @@ public class MidiJamClientGUI extends JFrame {
 			}
 
 			ShortMessage shortMessage = (ShortMessage) message;
-			int status = shortMessage.getCommand();
-			int channel = shortMessage.getChannel();
-			int data1 = shortMessage.getData1();
-			int data2 = shortMessage.getData2();
-
-			String midiMessageString = String.format("MIDI:%s:%s:%d:%d:%d:%d", midiJam.MidiJamClientNetworking.clientId,
-					midiJam.MidiJamClientNetworking.clientName, status, channel, data1, data2);
-
-			try {
-				MidiJamClientNetworking.sendPacket(midiMessageString.getBytes());
-			} catch (Exception e) {
-				MidiJamClientNetworking.sendPacket(midiMessageString.getBytes());
-			}
+			MidiJamClientNetworking.sendMidi(shortMessage.getCommand(), shortMessage.getChannel(),
+					shortMessage.getData1(), shortMessage.getData2());
 		}
 
 		public static void sendChordKeys(int note, boolean isNoteOn, String chordName) {
 			try {
-				String chordKeysMessage = String.format("CHORD_KEYS:%d:%s:%d:%b:%s",
-						midiJam.MidiJamClientNetworking.clientId, midiJam.MidiJamClientNetworking.clientName, note,
-						isNoteOn, chordName);
-				MidiJamClientNetworking.sendPacket(chordKeysMessage.getBytes());
+				MidiJamClientNetworking.sendChordKeys(note, isNoteOn, chordName);
 			} catch (Exception e) {
 				System.err.println("Failed to send CHORD_KEYS message: " + e.getMessage());
 			}
@@ -5,11 +5,20 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import java.util.Timer;
 import java.util.TimerTask;
@@ -27,8 +36,48 @@ public class MidiJamClientNetworking {
 
 	private int serverPort;
 	static int clientId;
+	static int clientHandle;
 	static String clientName;
-	private Map<String, String> currentClients = new HashMap<>();
+	static String roomName = Room.DEFAULT_ROOM;
+	// How many earlier MIDI events each outgoing MIDI frame repeats.
+	static int redundancy = ClientUtils.DEFAULT_REDUNDANCY;
+	static int protocolVersion = MidiProtocol.VERSION_TEXT;
+	// Play directly with other direct mode players when that is faster.
+	static boolean directMode;
+	// Written by the receive thread, read by the direct path timer as well.
+	private final Map<Integer, String> clientNames = new ConcurrentHashMap<>();
+	private long rosterEpoch = -1;
+	private long pendingRosterEpoch = -1;
+	private final BitSet pendingRosterPages = new BitSet();
+	private Map<Integer, String> pendingRoster = new HashMap<>();
+
+	private final ByteBuffer sendFrame = ByteBuffer.allocate(512);
+	private DatagramPacket sendFramePacket;
+	// One sequence space for everything this client relays, so receivers can
+	// account for loss and reordering per sender.
+	private int sendSequence;
+	private final Map<Integer, SequenceTracker> receiveSequences = new HashMap<>();
+	private final MidiJournal journal = new MidiJournal(ClientUtils.DEFAULT_REDUNDANCY);
+	private final ByteBuffer journalEntry = ByteBuffer.allocate(MidiProtocol.MIDI_FRAME_SIZE);
+	private int lastActiveSenderId = -1;
+	private long lastReceiveNanos;
+	private final ByteBuffer bundleEntry = ByteBuffer.allocate(MidiProtocol.MAX_BUNDLE_ENTRY_SIZE);
+	private ReliableSender reliableOut = new ReliableSender();
+	private ReliableReceiver reliableIn = new ReliableReceiver();
+	private final ByteBuffer controlFrame = ByteBuffer.allocate(MidiProtocol.RELIABLE_MIDI_FRAME_SIZE);
+	private final ByteBuffer retransmitFrame = ByteBuffer.allocate(MidiProtocol.RELIABLE_MIDI_FRAME_SIZE);
+	private Timer retransmitTimer;
+	private static final int RETRANSMIT_INTERVAL_MS = 20;
+	private static final long RETRANSMIT_TIMEOUT_NANOS = 100_000_000L;
+
+	private final Map<Integer, DirectPeer> directPeers = new ConcurrentHashMap<>();
+	private final Map<InetSocketAddress, DirectPeer> directPeersByAddress = new ConcurrentHashMap<>();
+	private final ByteBuffer directFrame = ByteBuffer.allocate(512);
+	private DatagramPacket directFramePacket;
+	// Our own round trip to the server, from PING_INFO.
+	private volatile long relayRttNanos = -1;
+	private String lastDirectList = "DIRECT:";
+	private Timer directTimer;
 
 	private static final int PING_INTERVAL_MS = 10000;
 	private Timer connectivityTimer;
@@ -102,6 +151,249 @@ public class MidiJamClientNetworking {
 		}
 	}
 
+	synchronized void sendFrame(ByteBuffer frame) {
+		try {
+			if (sendFramePacket == null) {
+				sendFramePacket = new DatagramPacket(frame.array(), 0, serverAddress, serverPort);
+			}
+			sendFramePacket.setData(frame.array(), frame.arrayOffset(), frame.limit());
+			sendFramePacket.setAddress(serverAddress);
+			sendFramePacket.setPort(serverPort);
+			clientSocket.send(sendFramePacket);
+		} catch (IOException e) {
+			clientUtils.logger.log("Failed to send packet: " + e.getMessage());
+		}
+	}
+
+	synchronized void sendMidi(int status, int channel, int data1, int data2) {
+		if (protocolVersion >= MidiProtocol.VERSION_BINARY) {
+			sendSequence = (sendSequence + 1) & 0xFFFF;
+			if (MidiProtocol.isStateCritical(status, data1, data2)) {
+				MidiProtocol.writeReliableMidi(sendFrame, clientHandle, sendSequence, status, channel, data1, data2);
+				reliableOut.track(sendFrame, System.nanoTime());
+			} else {
+				MidiProtocol.writeMidi(sendFrame, clientHandle, sendSequence, status, channel, data1, data2);
+				journal.appendTo(sendFrame);
+			}
+			journal.record(sendFrame);
+			sendFrame(sendFrame);
+			if (!directPeers.isEmpty()) {
+				sendDirect(sendFrame);
+			}
+		} else {
+			sendPacket(MidiProtocol.midiText(clientId, clientName, status, channel, data1, data2).getBytes());
+		}
+	}
+
+	// The server only knows our handle; players reached directly see our id.
+	// Reliable events still count on the server for delivery, so the direct
+	// copy is a plain frame. Receivers drop whichever copy arrives second.
+	private void sendDirect(ByteBuffer frame) {
+		directFrame.clear();
+		directFrame.put(0, frame, 0, frame.limit());
+		directFrame.limit(frame.limit());
+		MidiProtocol.setClientId(directFrame, clientId);
+		if (MidiProtocol.type(directFrame) == MidiProtocol.TYPE_MIDI_RELIABLE) {
+			MidiProtocol.setReliable(directFrame, false);
+		}
+		for (DirectPeer peer : directPeers.values()) {
+			if (peer.isDirect()) {
+				sendFrameTo(directFrame, peer.getAddress());
+			}
+		}
+	}
+
+	private synchronized void sendFrameTo(ByteBuffer frame, InetSocketAddress address) {
+		try {
+			if (directFramePacket == null) {
+				directFramePacket = new DatagramPacket(frame.array(), 0);
+			}
+			directFramePacket.setData(frame.array(), frame.arrayOffset(), frame.limit());
+			directFramePacket.setSocketAddress(address);
+			clientSocket.send(directFramePacket);
+		} catch (IOException e) {
+			clientUtils.logger.log("Failed to send packet to " + address + ": " + e.getMessage());
+		}
+	}
+
+	private void sendPacketTo(String message, InetSocketAddress address) {
+		try {
+			byte[] data = message.getBytes();
+			clientSocket.send(new DatagramPacket(data, data.length, address));
+		} catch (IOException e) {
+			clientUtils.logger.log("Failed to send packet to " + address + ": " + e.getMessage());
+		}
+	}
+
+	synchronized void sendChordKeys(int note, boolean isNoteOn, String chordName) {
+		if (protocolVersion >= MidiProtocol.VERSION_BINARY) {
+			sendSequence = (sendSequence + 1) & 0xFFFF;
+			byte[] name = chordName == null ? new byte[0] : chordName.getBytes(StandardCharsets.UTF_8);
+			MidiProtocol.writeChordKeys(sendFrame, clientHandle, sendSequence, note, isNoteOn, name);
+			sendFrame(sendFrame);
+		} else {
+			sendPacket(MidiProtocol.chordKeysText(clientId, clientName, note, isNoteOn, chordName).getBytes());
+		}
+	}
+
+	private synchronized void sendText(String message) {
+		sendSequence = (sendSequence + 1) & 0xFFFF;
+		MidiProtocol.writeText(sendFrame, clientHandle, sendSequence, message.getBytes(StandardCharsets.UTF_8));
+		sendFrame(sendFrame);
+	}
+
+	private synchronized void sendControl(byte type, int reliableSequence) {
+		MidiProtocol.writeAck(controlFrame, type, clientHandle, reliableSequence);
+		sendFrame(controlFrame);
+	}
+
+	private synchronized void retransmitReliable(int reliableSequence) {
+		if (reliableOut.nack(reliableSequence, System.nanoTime(), retransmitFrame)) {
+			sendFrame(retransmitFrame);
+		}
+	}
+
+	private synchronized void retransmitDueReliable() {
+		reliableOut.retransmitDue(System.nanoTime(), RETRANSMIT_TIMEOUT_NANOS, retransmitFrame, this::sendFrame);
+	}
+
+	private void startRetransmitTimer() {
+		stopRetransmitTimer();
+		retransmitTimer = new Timer(true);
+		retransmitTimer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				retransmitDueReliable();
+			}
+		}, RETRANSMIT_INTERVAL_MS, RETRANSMIT_INTERVAL_MS);
+	}
+
+	private void stopRetransmitTimer() {
+		if (retransmitTimer != null) {
+			retransmitTimer.cancel();
+			retransmitTimer = null;
+		}
+	}
+
+	private void startDirectTimer() {
+		stopDirectTimer();
+		directTimer = new Timer(true);
+		directTimer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				maintainDirectPaths();
+			}
+		}, 0, DirectPeer.KEEPALIVE_NANOS / 1_000_000);
+	}
+
+	private void stopDirectTimer() {
+		if (directTimer != null) {
+			directTimer.cancel();
+			directTimer = null;
+		}
+		directPeers.clear();
+		directPeersByAddress.clear();
+		lastDirectList = "DIRECT:";
+		relayRttNanos = -1;
+	}
+
+	// Punches and keeps alive every direct path, picks direct or relayed for each
+	// player and tells the server which players no longer need its copy. A path
+	// is switched to direct before the server stops relaying, and the server is
+	// told before a path falls back, so no note goes missing in the switch.
+	private void maintainDirectPaths() {
+		long now = System.nanoTime();
+		StringBuilder directList = new StringBuilder("DIRECT:");
+		List<DirectPeer> fallingBack = new ArrayList<>();
+		for (DirectPeer peer : directPeers.values()) {
+			sendPacketTo("PUNCH:" + clientId + ":" + now, peer.getAddress());
+			if (peer.shouldBeDirect(now, relayRttNanos)) {
+				if (!peer.isDirect()) {
+					peer.setDirect(true);
+					clientUtils.logger.log(String.format(Locale.ROOT, "Playing directly with %s (%.1fms round trip)",
+							clientNames.get(peer.getClientId()), peer.getClock().getSmoothedRttNanos() / 1e6));
+				}
+				directList.append(peer.getClientId()).append(',');
+			} else if (peer.isDirect()) {
+				fallingBack.add(peer);
+			}
+		}
+		String list = directList.toString();
+		// Repeated while anything is direct, in case an update was lost.
+		if (!list.equals(lastDirectList) || list.length() > "DIRECT:".length()) {
+			sendPacket(list.getBytes());
+			lastDirectList = list;
+		}
+		for (DirectPeer peer : fallingBack) {
+			peer.setDirect(false);
+			clientUtils.logger.log("Playing with " + clientNames.get(peer.getClientId()) + " through the server");
+		}
+	}
+
+	// ENDPOINT:<id>:<host>:<port>
+	private void handleEndpointMessage(String message) {
+		if (!directMode) {
+			return;
+		}
+		String[] parts = message.split(":", 3);
+		try {
+			int peerId = Integer.parseInt(parts[1]);
+			int colon = parts[2].lastIndexOf(':');
+			InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(parts[2].substring(0, colon)),
+					Integer.parseInt(parts[2].substring(colon + 1)));
+			removeDirectPeer(peerId);
+			DirectPeer peer = new DirectPeer(peerId, address);
+			directPeers.put(peerId, peer);
+			directPeersByAddress.put(address, peer);
+			sendPacketTo("PUNCH:" + clientId + ":" + System.nanoTime(), address);
+		} catch (IOException | RuntimeException e) {
+			clientUtils.logger.log("Invalid ENDPOINT message format.");
+		}
+	}
+
+	private void removeDirectPeer(int peerId) {
+		DirectPeer peer = directPeers.remove(peerId);
+		if (peer != null) {
+			directPeersByAddress.remove(peer.getAddress(), peer);
+		}
+	}
+
+	// Keepalives and MIDI from players we reach directly. Anything from an
+	// address the server did not introduce is ignored.
+	private void handleDirectPacket(DatagramPacket packet, ByteBuffer frame) {
+		DirectPeer peer = directPeersByAddress.get(packet.getSocketAddress());
+		if (peer == null) {
+			return;
+		}
+		if (MidiProtocol.isBinary(frame)) {
+			if (MidiProtocol.type(frame) == MidiProtocol.TYPE_MIDI
+					&& MidiProtocol.clientId(frame) == peer.getClientId()) {
+				peer.heard(lastReceiveNanos);
+				handleBinaryMessage(frame);
+			}
+			return;
+		}
+		String[] parts = new String(packet.getData(), 0, packet.getLength()).trim().split(":");
+		try {
+			if (parts.length != 3 || Integer.parseInt(parts[1]) != peer.getClientId()) {
+				return;
+			}
+			if (parts[0].equals("PUNCH")) {
+				peer.heard(lastReceiveNanos);
+				sendPacketTo("PUNCH_ACK:" + clientId + ":" + parts[2], peer.getAddress());
+			} else if (parts[0].equals("PUNCH_ACK")) {
+				peer.heard(lastReceiveNanos);
+				peer.getClock().addRoundTrip(lastReceiveNanos - Long.parseLong(parts[2]));
+			}
+		} catch (NumberFormatException e) {
+			clientUtils.logger.log("Invalid direct message from " + packet.getSocketAddress());
+		}
+	}
+
+	private boolean isFromServer(DatagramPacket packet) {
+		return packet.getPort() == serverPort && packet.getAddress().equals(serverAddress);
+	}
+
 	void sendMessage() {
 		String message = gui.messageField.getText().trim();
 		if (message.isEmpty()) {
@@ -113,10 +405,12 @@ public class MidiJamClientNetworking {
 			return;
 		}
 
-		String fullMessage = String.format("TEXT:%s:%s:%s", midiJam.MidiJamClientNetworking.clientId,
-				midiJam.MidiJamClientNetworking.clientName, message);
 		try {
-			sendPacket(fullMessage.getBytes());
+			if (protocolVersion >= MidiProtocol.VERSION_BINARY) {
+				sendText(message);
+			} else {
+				sendPacket(MidiProtocol.textText(clientId, clientName, message).getBytes());
+			}
 
 			SwingUtilities.invokeLater(() -> {
 				gui.appendColoredStatus(String.format("%s: %s", midiJam.MidiJamClientNetworking.clientName, message),
@@ -128,6 +422,96 @@ public class MidiJamClientNetworking {
 		}
 	}
 
+	private void handleBinaryMessage(ByteBuffer frame) {
+		byte type = MidiProtocol.type(frame);
+		if (type == MidiProtocol.TYPE_MIDI && MidiProtocol.journalCount(frame) > 0
+				&& MidiProtocol.hasValidJournal(frame)) {
+			recoverJournal(frame);
+		}
+		if ((type == MidiProtocol.TYPE_MIDI || type == MidiProtocol.TYPE_CHORD_KEYS || type == MidiProtocol.TYPE_TEXT)
+				&& !receiveSequence(MidiProtocol.clientId(frame)).accept(MidiProtocol.sequence(frame))) {
+			return;
+		}
+		switch (type) {
+		case MidiProtocol.TYPE_MIDI:
+			if (MidiProtocol.hasValidJournal(frame)) {
+				handleMidiEvent(MidiProtocol.clientId(frame), MidiProtocol.midiStatus(frame),
+						MidiProtocol.midiChannel(frame), MidiProtocol.midiData1(frame), MidiProtocol.midiData2(frame));
+			}
+			break;
+		case MidiProtocol.TYPE_MIDI_RELIABLE:
+			if (frame.limit() == MidiProtocol.RELIABLE_MIDI_FRAME_SIZE) {
+				int reliableSequence = MidiProtocol.reliableSequence(frame);
+				sendControl(MidiProtocol.TYPE_ACK, reliableSequence);
+				SequenceTracker tracker = receiveSequence(MidiProtocol.clientId(frame));
+				if (reliableIn.accept(reliableSequence, missing -> sendControl(MidiProtocol.TYPE_NACK, missing))
+						&& !tracker.hasSeen(MidiProtocol.sequence(frame))) {
+					tracker.accept(MidiProtocol.sequence(frame));
+					handleMidiEvent(MidiProtocol.clientId(frame), MidiProtocol.midiStatus(frame),
+							MidiProtocol.midiChannel(frame), MidiProtocol.midiData1(frame),
+							MidiProtocol.midiData2(frame));
+				}
+			}
+			break;
+		case MidiProtocol.TYPE_CHANNEL_STATE:
+			int stateClientId = MidiProtocol.clientId(frame);
+			MidiProtocol.forEachChannelStateEvent(frame,
+					(status, channel, data1, data2) -> handleMidiEvent(stateClientId, status, channel, data1, data2));
+			break;
+		case MidiProtocol.TYPE_ACK:
+			reliableOut.ack(MidiProtocol.sequence(frame));
+			break;
+		case MidiProtocol.TYPE_NACK:
+			retransmitReliable(MidiProtocol.sequence(frame));
+			break;
+		case MidiProtocol.TYPE_SKIP:
+			if (frame.limit() == MidiProtocol.SKIP_FRAME_SIZE) {
+				receiveSequence(MidiProtocol.clientId(frame)).skip(MidiProtocol.sequence(frame),
+						MidiProtocol.skipMask(frame));
+			}
+			break;
+		case MidiProtocol.TYPE_CHORD_KEYS:
+			handleChordKeysEvent(clientNames.get(MidiProtocol.clientId(frame)), MidiProtocol.chordNote(frame),
+					MidiProtocol.chordNoteOn(frame), MidiProtocol.chordName(frame));
+			break;
+		case MidiProtocol.TYPE_TEXT:
+			int senderClientId = MidiProtocol.clientId(frame);
+			gui.appendColoredStatus(
+					String.format("%s: %s", clientNames.get(senderClientId), MidiProtocol.text(frame)),
+					gui.getColorForClientId(senderClientId));
+			break;
+		case MidiProtocol.TYPE_BUNDLE:
+			MidiProtocol.forEachBundleEntry(frame, bundleEntry, this::handleBinaryMessage);
+			break;
+		default:
+			clientUtils.logger.log("Unknown binary message type: " + (MidiProtocol.type(frame) & 0xFF));
+		}
+	}
+
+	// Plays, oldest first, any journaled events whose own frames never arrived,
+	// except note-ons that a later event already ended.
+	private void recoverJournal(ByteBuffer frame) {
+		SequenceTracker tracker = receiveSequence(MidiProtocol.clientId(frame));
+		int count = MidiProtocol.journalCount(frame);
+		for (int i = 0; i < count; i++) {
+			if (tracker.recover(MidiProtocol.journalSequence(frame, i)) && !MidiProtocol.isEndedInJournal(frame, i)) {
+				MidiProtocol.readJournalEntry(frame, i, journalEntry);
+				handleMidiEvent(MidiProtocol.clientId(journalEntry), MidiProtocol.midiStatus(journalEntry),
+						MidiProtocol.midiChannel(journalEntry), MidiProtocol.midiData1(journalEntry),
+						MidiProtocol.midiData2(journalEntry));
+			}
+		}
+	}
+
+	SequenceTracker receiveSequence(int senderClientId) {
+		SequenceTracker tracker = receiveSequences.get(senderClientId);
+		if (tracker == null) {
+			tracker = new SequenceTracker();
+			receiveSequences.put(senderClientId, tracker);
+		}
+		return tracker;
+	}
+
 	private void handleReceivedMessage(String message) {
 		if (message.startsWith("TEXT:")) {
 			handleTextMessage(message);
@@ -140,6 +524,11 @@ public class MidiJamClientNetworking {
 			updateSessionLabel(count);
 		} else if (message.startsWith("CLIENT_LIST:")) {
 			handleClientListMessage(message);
+		} else if (message.startsWith("ROSTER:")) {
+			handleRosterPage(message);
+		} else if (message.startsWith("ROSTER_JOIN:") || message.startsWith("ROSTER_LEAVE:")
+				|| message.startsWith("ROSTER_RENAME:")) {
+			handleRosterDelta(message);
 		} else if (message.startsWith("MUTE:")) {
 			handleMuteMessage(message);
 		} else if (message.startsWith("UNMUTE:")) {
@@ -148,6 +537,8 @@ public class MidiJamClientNetworking {
 			handlePingRequest(message);
 		} else if (message.startsWith("PING_INFO:")) {
 			handlePingInfoMessage(message);
+		} else if (message.startsWith("ENDPOINT:")) {
+			handleEndpointMessage(message);
 		} else if (message.equals("SERVER_SHUTDOWN")) {
 			handleServerShutdown();
 		} else {
@@ -160,10 +551,16 @@ public class MidiJamClientNetworking {
 		disconnectClient();
 	}
 
+	// Echoes the server's timestamp and, for v2 servers, adds when the ping
+	// arrived and when the reply left, so the server can separate its own
+	// processing from the network round trip and estimate our clock offset.
 	private void handlePingRequest(String message) {
 		String[] parts = message.split(":");
 		long sentTime = Long.parseLong(parts[1]);
 		String pingResponseMessage = "PING_RESPONSE:" + sentTime;
+		if (protocolVersion >= MidiProtocol.VERSION_BINARY) {
+			pingResponseMessage += ":" + lastReceiveNanos + ":" + System.nanoTime();
+		}
 
 		sendPacket(pingResponseMessage.getBytes());
 
@@ -173,12 +570,20 @@ public class MidiJamClientNetworking {
 		String[] parts = message.split(":");
 		int clientId = Integer.parseInt(parts[1]);
 		String ping = parts[3];
+		if (directMode) {
+			recordRelayRtt(clientId, ping);
+		}
 
 		if (gui.clientLabels.containsKey(clientId)) {
 			JLabel clientLabel = gui.clientLabels.get(clientId);
 			String currentText = clientLabel.getText();
 
 			String updatedText = currentText.split("Ping:")[0].trim() + " Ping: " + ping;
+			SequenceTracker tracker = receiveSequences.get(clientId);
+			if (tracker != null && tracker.getReceived() > 0) {
+				updatedText += String.format(Locale.ROOT, " Loss: %.1f%%", tracker.getLossRatio() * 100);
+				clientLabel.setToolTipText(tracker.toString());
+			}
 			clientLabel.setText(updatedText);
 
 			gui.clientPingTimestamps.put(clientId, System.currentTimeMillis());
@@ -186,6 +591,23 @@ public class MidiJamClientNetworking {
 
 	}
 
+	private void recordRelayRtt(int pingClientId, String ping) {
+		long rttNanos;
+		try {
+			rttNanos = (long) (Double.parseDouble(ping.replace("ms", "")) * 1e6);
+		} catch (NumberFormatException e) {
+			return;
+		}
+		if (pingClientId == clientId) {
+			relayRttNanos = rttNanos;
+		} else {
+			DirectPeer peer = directPeers.get(pingClientId);
+			if (peer != null) {
+				peer.setRelayRttNanos(rttNanos);
+			}
+		}
+	}
+
 	private void updateSessionLabel(int count) {
 		gui.lb_inSessionCount.setText("In Session: " + count);
 	}
@@ -220,12 +642,8 @@ public class MidiJamClientNetworking {
 		String[] parts = message.split(":");
 		if (parts.length == 7) {
 			int senderClientId = Integer.parseInt(parts[1]);
-			String senderName = parts[2];
 			int status, channel, data1, data2;
 
-			if (gui.mutedClients.contains(senderClientId)) {
-				return;
-			}
 			try {
 				status = Integer.parseInt(parts[3]);
 				channel = Integer.parseInt(parts[4]);
@@ -235,13 +653,24 @@ public class MidiJamClientNetworking {
 				SwingUtilities.invokeLater(() -> clientUtils.logger.log("Error parsing MIDI data."));
 				return;
 			}
-			SwingUtilities.invokeLater(() -> gui.activeSenderlb.setText("Active Client: " + senderName));
-			gui.clientMidiActivityStatePanel.setState(true);
-			gui.sendToMidiDevice(status, channel, data1, data2);
+			handleMidiEvent(senderClientId, status, channel, data1, data2);
 		} else {
 		}
 	}
 
+	void handleMidiEvent(int senderClientId, int status, int channel, int data1, int data2) {
+		if (gui.mutedClients.contains(senderClientId)) {
+			return;
+		}
+		if (senderClientId != lastActiveSenderId) {
+			lastActiveSenderId = senderClientId;
+			String senderName = clientNames.get(senderClientId);
+			SwingUtilities.invokeLater(() -> gui.activeSenderlb.setText("Active Client: " + senderName));
+		}
+		gui.clientMidiActivityStatePanel.setState(true);
+		gui.sendToMidiDevice(status, channel, data1, data2);
+	}
+
 	private void handleChordKeys(String message) {
 
 		String[] parts = message.split(":", 6);
@@ -251,26 +680,31 @@ public class MidiJamClientNetworking {
 			boolean isNoteOn = Boolean.parseBoolean(parts[4]);
 			String chordName = parts[5];
 
-			SwingUtilities
-					.invokeLater(() -> MidiJamClientGUI.chordPanelInstance.updateChordLabel(clientName, chordName));
-
-			SwingUtilities.invokeLater(() -> {
-				if (isNoteOn) {
-					MidiJamClientGUI.chordPanelInstance.piano.setPianoKey(pitch, 1);
-				} else {
-					MidiJamClientGUI.chordPanelInstance.piano.setPianoKey(pitch, 0);
-				}
-			});
+			handleChordKeysEvent(clientName, pitch, isNoteOn, chordName);
 		}
 	}
 
+	private void handleChordKeysEvent(String clientName, int pitch, boolean isNoteOn, String chordName) {
+		SwingUtilities.invokeLater(() -> MidiJamClientGUI.chordPanelInstance.updateChordLabel(clientName, chordName));
+
+		SwingUtilities.invokeLater(() -> {
+			if (isNoteOn) {
+				MidiJamClientGUI.chordPanelInstance.piano.setPianoKey(pitch, 1);
+			} else {
+				MidiJamClientGUI.chordPanelInstance.piano.setPianoKey(pitch, 0);
+			}
+		});
+	}
+
 	private void handleClientListMessage(String message) {
-		String clientList = message.substring(12);
+		Map<Integer, String> newClientNames = new HashMap<>();
+		parseClientList(message.substring(12), newClientNames);
+		applyRoster(newClientNames);
+	}
 
+	private void parseClientList(String clientList, Map<Integer, String> into) {
 		String[] clientArray = clientList.split(",");
 
-		Map<String, String> newClients = new HashMap<>();
-
 		for (String clientInfo : clientArray) {
 			clientInfo = clientInfo.trim();
 
@@ -280,19 +714,137 @@ public class MidiJamClientNetworking {
 				String id = clientInfo.substring(0, colonIndex);
 				String name = clientInfo.substring(colonIndex + 1);
 
-				newClients.put(id, name);
+				try {
+					into.put(Integer.parseInt(id), name);
+				} catch (NumberFormatException e) {
+					clientUtils.logger.log("Invalid client ID in client list: " + id);
+				}
 			}
 		}
+	}
 
-		Set<String> addedClients = new HashSet<>(newClients.keySet());
-		addedClients.removeAll(currentClients.keySet());
+	private void applyRoster(Map<Integer, String> newClientNames) {
+		Map<String, String> newClients = new HashMap<>();
+		for (Map.Entry<Integer, String> entry : newClientNames.entrySet()) {
+			newClients.put(String.valueOf(entry.getKey()), entry.getValue());
+		}
+
+		Set<String> addedClients = new HashSet<>();
+		for (Integer id : newClientNames.keySet()) {
+			if (!clientNames.containsKey(id)) {
+				addedClients.add(String.valueOf(id));
+			}
+		}
 
-		Set<String> removedClients = new HashSet<>(currentClients.keySet());
-		removedClients.removeAll(newClients.keySet());
+		Set<String> removedClients = new HashSet<>();
+		for (Integer id : clientNames.keySet()) {
+			if (!newClientNames.containsKey(id)) {
+				removedClients.add(String.valueOf(id));
+			}
+		}
 
+		clientNames.keySet().retainAll(newClientNames.keySet());
+		clientNames.putAll(newClientNames);
+		receiveSequences.keySet().retainAll(newClientNames.keySet());
+		for (Integer id : directPeers.keySet()) {
+			if (!newClientNames.containsKey(id)) {
+				removeDirectPeer(id);
+			}
+		}
+		lastActiveSenderId = -1;
 		gui.updateClientRows(newClients, addedClients, removedClients);
+	}
+
+	// ROSTER:<epoch>:<page>:<pages>:<entries>. Pages of one epoch are collected
+	// and applied together once the last one arrives.
+	private void handleRosterPage(String message) {
+		String[] parts = message.split(":", 5);
+		if (parts.length != 5) {
+			clientUtils.logger.log("Invalid ROSTER message format.");
+			return;
+		}
+		long epoch;
+		int page, pages;
+		try {
+			epoch = Long.parseLong(parts[1]);
+			page = Integer.parseInt(parts[2]);
+			pages = Integer.parseInt(parts[3]);
+		} catch (NumberFormatException e) {
+			clientUtils.logger.log("Invalid ROSTER message format.");
+			return;
+		}
+		if (page < 0 || page >= pages) {
+			clientUtils.logger.log("Invalid ROSTER message format.");
+			return;
+		}
+		if (epoch < rosterEpoch) {
+			return;
+		}
+		if (epoch != pendingRosterEpoch) {
+			pendingRosterEpoch = epoch;
+			pendingRosterPages.clear();
+			pendingRoster = new HashMap<>();
+		}
+		if (pendingRosterPages.get(page)) {
+			return;
+		}
+		parseClientList(parts[4], pendingRoster);
+		pendingRosterPages.set(page);
+		if (pendingRosterPages.cardinality() == pages) {
+			rosterEpoch = epoch;
+			pendingRosterEpoch = -1;
+			applyRoster(pendingRoster);
+			updateSessionLabel(clientNames.size());
+		}
+	}
+
+	// ROSTER_JOIN:<epoch>:<id>:<name>, ROSTER_LEAVE:<epoch>:<id>,
+	// ROSTER_RENAME:<epoch>:<id>:<name>
+	private void handleRosterDelta(String message) {
+		String[] parts = message.split(":", 4);
+		long epoch;
+		int id;
+		try {
+			epoch = Long.parseLong(parts[1]);
+			id = Integer.parseInt(parts[2]);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			clientUtils.logger.log("Invalid roster delta: " + message);
+			return;
+		}
+		if (epoch <= rosterEpoch) {
+			return;
+		}
+		if (rosterEpoch == -1 || epoch != rosterEpoch + 1) {
+			requestRosterSync();
+			return;
+		}
+		rosterEpoch = epoch;
+
+		String key = String.valueOf(id);
+		if (parts[0].equals("ROSTER_LEAVE")) {
+			receiveSequences.remove(id);
+			removeDirectPeer(id);
+			if (clientNames.remove(id) != null) {
+				gui.updateClientRows(new HashMap<>(), new HashSet<>(), Collections.singleton(key));
+			}
+		} else if (parts.length == 4) {
+			String name = parts[3];
+			String previous = clientNames.put(id, name);
+			if (previous == null) {
+				gui.updateClientRows(Collections.singletonMap(key, name), Collections.singleton(key),
+						new HashSet<>());
+			} else if (!previous.equals(name)) {
+				gui.renameClientRow(id, name);
+			}
+		}
+		lastActiveSenderId = -1;
+		updateSessionLabel(clientNames.size());
+	}
 
-		currentClients = newClients;
+	private void requestRosterSync() {
+		if (pendingRosterEpoch == -1) {
+			sendPacket(("ROSTER_SYNC:" + rosterEpoch).getBytes());
+		}
 	}
 
 	private void handleMuteMessage(String message) {
@@ -323,21 +875,50 @@ public class MidiJamClientNetworking {
 
 	private void receiveMessages() {
 		new Thread(() -> {
-			byte[] buffer = new byte[512];
+			byte[] buffer = new byte[2048];
 			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			ByteBuffer frame = ByteBuffer.wrap(buffer);
 			while (clientSocket != null && !clientSocket.isClosed()) {
 				try {
+					packet.setLength(buffer.length);
 					clientSocket.receive(packet);
-					String message = new String(packet.getData(), 0, packet.getLength()).trim();
-					handleReceivedMessage(message);
+					lastReceiveNanos = System.nanoTime();
+					frame.clear().limit(packet.getLength());
+					if (!isFromServer(packet)) {
+						handleDirectPacket(packet, frame);
+						continue;
+					}
+					handleServerPacket(frame);
+				} catch (SocketTimeoutException e) {
+					// The connect timeout stays on the socket; an idle session just loops.
 				} catch (Exception e) {
+					if (clientSocket != null && !clientSocket.isClosed()) {
+						clientUtils.logger.log("Error handling packet from server: " + e);
+					}
 				}
 			}
 		}).start();
 	}
 
+	// Everything the server sends, binary or text, is decoded here.
+	void handleServerPacket(ByteBuffer frame) {
+		if (MidiProtocol.isBinary(frame)) {
+			handleBinaryMessage(frame);
+		} else {
+			handleReceivedMessage(new String(frame.array(), frame.arrayOffset(), frame.limit()).trim());
+		}
+	}
+
 	private void connectToServer() throws IOException {
-		String connectMessage = "CONNECT:" + clientName;
+		String connectMessage = MidiProtocol.withOption("CONNECT:" + clientName, MidiProtocol.OPTION_PROTOCOL,
+				MidiProtocol.VERSION_BINARY);
+		connectMessage = MidiProtocol.withOption(connectMessage, MidiProtocol.OPTION_ROOM, roomName);
+		connectMessage = MidiProtocol.withOption(connectMessage, MidiProtocol.OPTION_BUNDLE, 1);
+		connectMessage = MidiProtocol.withOption(connectMessage, MidiProtocol.OPTION_RELIABLE, 1);
+		connectMessage = MidiProtocol.withOption(connectMessage, MidiProtocol.OPTION_JOURNAL, 1);
+		if (directMode) {
+			connectMessage = MidiProtocol.withOption(connectMessage, MidiProtocol.OPTION_DIRECT, 1);
+		}
 		sendPacket(connectMessage.getBytes());
 
 		byte[] buffer = new byte[512];
@@ -349,8 +930,26 @@ public class MidiJamClientNetworking {
 			String idMessage = new String(packet.getData(), 0, packet.getLength());
 
 			if (idMessage.startsWith("ID:")) {
-				clientId = Integer.parseInt(idMessage.substring(3));
-				gui.appendStatus("Connected to server with ID: " + clientId);
+				clientId = Integer.parseInt(MidiProtocol.stripOptions(idMessage).substring(3).trim());
+				protocolVersion = MidiProtocol.protocolVersion(idMessage.trim());
+				rosterEpoch = -1;
+				pendingRosterEpoch = -1;
+				clientHandle = MidiProtocol.clientHandle(clientId,
+						MidiProtocol.intOption(idMessage.trim(), MidiProtocol.OPTION_GENERATION, 0));
+				sendFramePacket = null;
+				synchronized (this) {
+					reliableOut = new ReliableSender();
+					reliableIn = new ReliableReceiver();
+					journal.setDepth(redundancy);
+				}
+				receiveSequences.clear();
+				startRetransmitTimer();
+				if (directMode && protocolVersion >= MidiProtocol.VERSION_BINARY) {
+					startDirectTimer();
+				} else {
+					stopDirectTimer();
+				}
+				gui.appendStatus("Connected to server with ID: " + clientId + " in room: " + roomName);
 				gui.tglConnect.setText("Disconnect");
 				gui.tglConnect.setSelected(false);
 				gui.tglConnect.setEnabled(true);
@@ -381,7 +980,10 @@ public class MidiJamClientNetworking {
 			if (clientSetup != null) {
 				serverAddress = clientSetup.serverAddress;
 				serverPort = clientSetup.serverPort;
-				clientName = clientSetup.clientName;
+				clientName = MidiProtocol.sanitizeClientName(clientSetup.clientName);
+				roomName = clientSetup.roomName;
+				redundancy = clientSetup.redundancy;
+				directMode = clientSetup.directMode;
 
 				connectToServer();
 			} else {
@@ -397,6 +999,8 @@ public class MidiJamClientNetworking {
 	void closeClient() {
 		try {
 			gui.stopMidiRouting();
+			stopRetransmitTimer();
+			stopDirectTimer();
 			gui.saveConfiguration(gui.inputDeviceDropdown.getSelectedIndex(),
 					gui.outputDeviceDropdown.getSelectedIndex(), gui.midi_ch_list_dropdown.getSelectedIndex());
 			if (clientSocket != null && !clientSocket.isClosed()) {
@@ -417,11 +1021,18 @@ public class MidiJamClientNetworking {
 		String clientName;
 		InetAddress serverAddress;
 		int serverPort;
+		String roomName;
+		int redundancy;
+		boolean directMode;
 
-		ClientSetup(String clientName, InetAddress serverAddress, int serverPort) {
+		ClientSetup(String clientName, InetAddress serverAddress, int serverPort, String roomName, int redundancy,
+				boolean directMode) {
 			this.clientName = clientName;
 			this.serverAddress = serverAddress;
 			this.serverPort = serverPort;
+			this.roomName = roomName;
+			this.redundancy = redundancy;
+			this.directMode = directMode;
 		}
 	}
 
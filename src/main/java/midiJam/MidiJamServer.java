@@ -1,28 +1,31 @@
 package midiJam;
 
 import java.awt.*;
+import java.io.File;
+import java.io.IOException;
 import java.net.*;
+import java.nio.file.Paths;
 import javax.swing.*;
 
 import com.formdev.flatlaf.FlatDarkLaf;
 
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.util.HashMap;
 
 @SuppressWarnings("serial")
 public class MidiJamServer extends JFrame {
 
-	static JTextArea statusArea;
+	static ServerStatusView statusView;
 
 	ServerUtils serverUtils;
 
 	public static void main(String[] args) {
-		if (args.length > 0 && "--nogui".equals(args[0])) {
+		if (args.length > 0 && "--export".equals(args[0])) {
+			System.exit(exportSession(args));
+		} else if (args.length > 0 && "--nogui".equals(args[0])) {
 			new MidiJamServerCli();
 			MidiJamServerCli server = new MidiJamServerCli();
 			server.startCliServer(args);
-			server.serverUtils.startPingTimer();
 		} else {
 			EventQueue.invokeLater(() -> {
 				try {
@@ -36,6 +39,40 @@ public class MidiJamServer extends JFrame {
 		}
 	}
 
+	// --export <journal> <output.mid> [-from <seconds>] [-to <seconds>]
+	private static int exportSession(String[] args) {
+		Logger logger = new Logger();
+		if (args.length < 3) {
+			logger.error("Usage: --export <journal> <output.mid> [-from <seconds>] [-to <seconds>]");
+			logger.flush();
+			return 1;
+		}
+		long from = 0;
+		long to = Long.MAX_VALUE;
+		try {
+			for (int i = 3; i + 1 < args.length; i += 2) {
+				if ("-from".equals(args[i])) {
+					from = (long) (Double.parseDouble(args[i + 1]) * 1e9);
+				} else if ("-to".equals(args[i])) {
+					to = (long) (Double.parseDouble(args[i + 1]) * 1e9);
+				}
+			}
+		} catch (NumberFormatException e) {
+			logger.error("Invalid time: " + e.getMessage());
+			logger.flush();
+			return 1;
+		}
+		try {
+			new SessionExporter(Paths.get(args[1]), logger).export(new File(args[2]), from, to);
+			return 0;
+		} catch (IOException e) {
+			logger.error("Export failed: " + e.getMessage());
+			return 1;
+		} finally {
+			logger.flush();
+		}
+	}
+
 	public MidiJamServer() {
 		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		setSize(300, 200);
@@ -46,15 +83,15 @@ public class MidiJamServer extends JFrame {
 		initComponents();
 		setLocationRelativeTo(null);
 
-		serverUtils = new ServerUtils(true, statusArea);
-		serverUtils.connectedClients = new HashMap<>();
+		serverUtils = new ServerUtils(true, statusView);
+		statusView.start();
 
 		startGuiServer();
-		serverUtils.startPingTimer();
 
 		addWindowListener(new WindowAdapter() {
 			@Override
 			public void windowClosing(WindowEvent e) {
+				statusView.stop();
 				serverUtils.closeServer();
 			}
 		});
@@ -63,13 +100,8 @@ public class MidiJamServer extends JFrame {
 	private void initComponents() {
 		getContentPane().setLayout(new BorderLayout());
 
-		statusArea = new JTextArea();
-		statusArea.setEditable(false);
-
-		JScrollPane statusScrollPane = new JScrollPane(statusArea);
-		statusScrollPane.setBorder(BorderFactory.createTitledBorder("Status"));
-
-		getContentPane().add(statusScrollPane, BorderLayout.CENTER);
+		statusView = new ServerStatusView();
+		getContentPane().add(statusView, BorderLayout.CENTER);
 
 	}
 
@@ -97,9 +129,9 @@ public class MidiJamServer extends JFrame {
 	private void startGuiServer() {
 		int port = promptForPort();
 		try {
-			serverUtils.serverSocket = new DatagramSocket(port);
+			serverUtils.openTransport(port);
 			serverUtils.logger.log("Server running at IP: " + InetAddress.getLocalHost().getHostAddress() + ", Port: "
-					+ serverUtils.serverSocket.getLocalPort());
+					+ serverUtils.transport.getLocalPort());
 			serverUtils.startServerThread();
 		} catch (Exception e) {
 			serverUtils.logger.log("Failed to start server: " + e.getMessage());
@@ -119,17 +151,45 @@ public class MidiJamServer extends JFrame {
 						port = Integer.parseInt(args[i + 1]);
 						serverUtils.logger.log("Port provided from arguments: " + port);
 						serverUtils.savePortToFile(port);
-						break;
 					} catch (NumberFormatException e) {
 						serverUtils.logger.log("Invalid port number in arguments. Using the file/default port.");
 					}
+				} else if ("-engine".equals(args[i]) && i + 1 < args.length) {
+					serverUtils.relayEngine = args[i + 1];
+				} else if ("-rcvbuf".equals(args[i]) && i + 1 < args.length) {
+					serverUtils.receiveBufferSize = parseIntArgument(args[i], args[i + 1], serverUtils.receiveBufferSize);
+				} else if ("-sndbuf".equals(args[i]) && i + 1 < args.length) {
+					serverUtils.sendBufferSize = parseIntArgument(args[i], args[i + 1], serverUtils.sendBufferSize);
+				} else if ("-batch".equals(args[i]) && i + 1 < args.length) {
+					serverUtils.batchWindowMicros = parseIntArgument(args[i], args[i + 1],
+							(int) serverUtils.batchWindowMicros);
+				} else if ("-record".equals(args[i]) && i + 1 < args.length) {
+					serverUtils.sessionJournalPath = Paths.get(args[i + 1]);
+				} else if ("-coalesce".equals(args[i]) && i + 1 < args.length) {
+					serverUtils.coalesceIntervalMillis = parseIntArgument(args[i], args[i + 1], serverUtils.coalesceIntervalMillis);
+				} else if ("-coalescerate".equals(args[i]) && i + 1 < args.length) {
+					serverUtils.coalesceMaxRate = parseIntArgument(args[i], args[i + 1], serverUtils.coalesceMaxRate);
+				} else if ("-limit".equals(args[i]) && i + 1 < args.length) {
+					setRateLimit(args[i + 1]);
+				} else if ("-node".equals(args[i]) && i + 1 < args.length) {
+					serverUtils.nodeName = args[i + 1];
+				} else if ("-peer".equals(args[i]) && i + 1 < args.length) {
+					addPeer(args[i + 1]);
+				} else if ("-stats".equals(args[i]) && i + 1 < args.length) {
+					serverUtils.statsPort = parseIntArgument(args[i], args[i + 1], serverUtils.statsPort);
+				} else if ("-loglevel".equals(args[i]) && i + 1 < args.length) {
+					try {
+						serverUtils.logger.setLevel(Logger.Level.valueOf(args[i + 1].toUpperCase()));
+					} catch (IllegalArgumentException e) {
+						serverUtils.logger.warn("Unknown log level: " + args[i + 1]);
+					}
 				}
 			}
 
 			try {
-				serverUtils.serverSocket = new DatagramSocket(port);
+				serverUtils.openTransport(port);
 				serverUtils.logger.log("Server running at IP: " + InetAddress.getLocalHost().getHostAddress()
-						+ ", Port: " + serverUtils.serverSocket.getLocalPort());
+						+ ", Port: " + serverUtils.transport.getLocalPort());
 
 				serverUtils.startServerThread();
 			} catch (Exception e) {
@@ -137,5 +197,47 @@ public class MidiJamServer extends JFrame {
 			}
 		}
 
+		// -limit off, or -limit <class>=<rate>/<burst>[:drop|coalesce]
+		private void setRateLimit(String spec) {
+			if ("off".equalsIgnoreCase(spec)) {
+				serverUtils.floodLimits = FloodGuard.Limits.unlimited();
+				serverUtils.logger.log("Rate limiting disabled.");
+				return;
+			}
+			try {
+				FloodGuard.TrafficClass trafficClass = serverUtils.floodLimits.set(spec);
+				serverUtils.logger.log("Rate limit: " + serverUtils.floodLimits.describe(trafficClass));
+			} catch (IllegalArgumentException e) {
+				serverUtils.logger.log("Invalid value for -limit: " + spec + ". " + e.getMessage());
+			}
+		}
+
+		// -peer <host>:<port>, once for every other server in the federation.
+		private void addPeer(String spec) {
+			int colon = spec.lastIndexOf(':');
+			try {
+				InetSocketAddress address = new InetSocketAddress(spec.substring(0, colon),
+						Integer.parseInt(spec.substring(colon + 1)));
+				if (address.isUnresolved()) {
+					serverUtils.logger.log("Unknown peer host: " + spec);
+					return;
+				}
+				serverUtils.peerAddresses.add(address);
+			} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+				serverUtils.logger.log("Invalid value for -peer: " + spec + ". Expected <host>:<port>.");
+			}
+		}
+
+		// Returns defaultValue, the setting's current value, if value is not a number.
+		private int parseIntArgument(String name, String value, int defaultValue) {
+			try {
+				return Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				serverUtils.logger.log("Invalid value for " + name + ": " + value + ". Using the default ("
+						+ defaultValue + ").");
+				return defaultValue;
+			}
+		}
+
 	}
 }
@@ -0,0 +1,64 @@
+package midiJam;
+
+import java.nio.ByteBuffer;
+
+// The last few MIDI events a client has sent, repeated in each outgoing MIDI
+// frame so receivers can recover a lost packet from the next one without
+// waiting for a retransmit. Depth 0 turns the journal off.
+class MidiJournal {
+
+	private final int[] sequences = new int[MidiProtocol.MAX_JOURNAL_DEPTH];
+	private final byte[] statusBytes = new byte[MidiProtocol.MAX_JOURNAL_DEPTH];
+	private final byte[] data1 = new byte[MidiProtocol.MAX_JOURNAL_DEPTH];
+	private final byte[] data2 = new byte[MidiProtocol.MAX_JOURNAL_DEPTH];
+	private int depth;
+	private int size;
+	private int next;
+
+	MidiJournal(int depth) {
+		setDepth(depth);
+	}
+
+	void setDepth(int depth) {
+		this.depth = Math.max(0, Math.min(depth, MidiProtocol.MAX_JOURNAL_DEPTH));
+		clear();
+	}
+
+	int getDepth() {
+		return depth;
+	}
+
+	void clear() {
+		size = 0;
+		next = 0;
+	}
+
+	// Appends the journal to a MIDI frame that has just been written.
+	void appendTo(ByteBuffer frame) {
+		if (size == 0) {
+			return;
+		}
+		int sequence = MidiProtocol.sequence(frame);
+		MidiProtocol.beginJournal(frame);
+		for (int i = size; i > 0; i--) {
+			int slot = (next - i + depth) % depth;
+			int back = (sequence - sequences[slot]) & 0xFFFF;
+			if (back > 0 && back <= 0xFF) {
+				MidiProtocol.appendJournalEntry(frame, back, statusBytes[slot], data1[slot], data2[slot]);
+			}
+		}
+	}
+
+	// Remembers a sent MIDI frame's event for the frames that follow.
+	void record(ByteBuffer frame) {
+		if (depth == 0) {
+			return;
+		}
+		sequences[next] = MidiProtocol.sequence(frame);
+		statusBytes[next] = frame.get(MidiProtocol.HEADER_SIZE);
+		data1[next] = frame.get(MidiProtocol.HEADER_SIZE + 1);
+		data2[next] = frame.get(MidiProtocol.HEADER_SIZE + 2);
+		next = (next + 1) % depth;
+		size = Math.min(size + 1, depth);
+	}
+}
@@ -0,0 +1,462 @@
+package midiJam;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+final class MidiProtocol {
+
+	static final int VERSION_TEXT = 1;
+	static final int VERSION_BINARY = 2;
+
+	static final String OPTION_PROTOCOL = "proto";
+	static final String OPTION_ROOM = "room";
+	static final String OPTION_BUNDLE = "bundle";
+	static final String OPTION_GENERATION = "gen";
+	static final String OPTION_RELIABLE = "reliable";
+	static final String OPTION_JOURNAL = "journal";
+	static final String OPTION_DIRECT = "direct";
+
+	// Binary frames always have the high bit set in the first byte, text messages
+	// never do, so both protocols can share the same socket.
+	// Layout: type(1) | clientId(2) | sequence(2) | payload
+	static final byte TYPE_MIDI = (byte) 0x80;
+	static final byte TYPE_CHORD_KEYS = (byte) 0x81;
+	static final byte TYPE_TEXT = (byte) 0x82;
+
+	// State-critical MIDI (note-off, sustain/sostenuto/soft pedal, all sound and
+	// all notes off) travels as a reliable frame with its own per-link sequence
+	// number after the MIDI bytes; the receiving end of each hop answers with an
+	// ACK for that sequence and a NACK for any gap it notices. ACK and NACK are
+	// bare headers whose sequence field is the reliable sequence concerned.
+	// Layout: type(1) | clientId(2) | sequence(2) | MIDI(3) | reliableSequence(2)
+	static final byte TYPE_MIDI_RELIABLE = (byte) 0x83;
+	static final byte TYPE_ACK = (byte) 0x84;
+	static final byte TYPE_NACK = (byte) 0x85;
+
+	// What one sender currently has sounding on one channel, sent to a client
+	// that joins mid-song. The header sequence is unused. Program 0xFF means none.
+	// Layout: header(5) | channel(1) | program(1) | heldNotes(16) | count(1) | count x (controller(1) | value(1))
+	static final byte TYPE_CHANNEL_STATE = (byte) 0x86;
+	static final int CHANNEL_STATE_NOTES_OFFSET = 7;
+	static final int CHANNEL_STATE_CONTROLLERS_OFFSET = CHANNEL_STATE_NOTES_OFFSET + 16;
+	static final int NO_PROGRAM = 0xFF;
+	// Held notes are replayed at this velocity; the table only keeps which are down.
+	static final int SNAPSHOT_VELOCITY = 64;
+
+	// Server-to-server link between federated nodes: a frame one node relays to a
+	// peer node, wrapped with the link's own sequence number. The client id field
+	// is unused; the wrapped frame carries the sender's id on its home node.
+	// Reliable frames on the link carry the link's reliable sequence and are
+	// ACKed and NACKed with bare ACK and NACK headers, as on a client link.
+	// Layout: type(1) | 0(2) | linkSequence(2) | frame
+	static final byte TYPE_PEER_FRAME = (byte) 0x87;
+
+	// Sequences of one sender that a server did not relay under their own number:
+	// frames its rate limiter or controller coalescer dropped or replaced, and
+	// values it held back to send after newer frames. Receivers count them as
+	// neither lost nor reordered, and still take a held value that turns up later
+	// under one of them. Bit i of the mask stands for sequence (sequence - i).
+	// Layout: header(5) | mask(8)
+	static final byte TYPE_SKIP = (byte) 0x88;
+
+	// A plain MIDI frame may carry a recovery journal after the MIDI bytes: the
+	// sender's previous few MIDI events, each tagged with how far its sequence is
+	// behind the frame's own. A receiver that missed one of them plays it from the
+	// next frame that does arrive.
+	// Layout: MIDI frame(8) | count(1) | count x (back(1) | status(1) | data1(1) | data2(1))
+	static final int JOURNAL_ENTRY_SIZE = 4;
+	static final int MAX_JOURNAL_DEPTH = 8;
+
+	// Bundles carry several frames for one recipient in a single datagram.
+	// Layout: type(1) | count(1) | count x (length(1) | frame)
+	static final byte TYPE_BUNDLE = (byte) 0x8F;
+
+	// The client id field of frames sent to the server is a handle: the low bits
+	// are the id, the top two bits the generation of that id.
+	static final int MAX_CLIENT_ID = 0x3FFF;
+	static final int MAX_GENERATION = 0x3;
+
+	static final int HEADER_SIZE = 5;
+	static final int MIDI_FRAME_SIZE = HEADER_SIZE + 3;
+	static final int RELIABLE_MIDI_FRAME_SIZE = MIDI_FRAME_SIZE + 2;
+	static final int SKIP_FRAME_SIZE = HEADER_SIZE + 8;
+	static final int BUNDLE_HEADER_SIZE = 2;
+	static final int MAX_BUNDLE_ENTRY_SIZE = 255;
+
+	private MidiProtocol() {
+	}
+
+	static boolean isBinary(ByteBuffer frame) {
+		return frame.limit() >= HEADER_SIZE && (frame.get(0) & 0x80) != 0;
+	}
+
+	static byte type(ByteBuffer frame) {
+		return frame.get(0);
+	}
+
+	static int clientId(ByteBuffer frame) {
+		return frame.getShort(1) & 0xFFFF;
+	}
+
+	static void setClientId(ByteBuffer frame, int clientId) {
+		frame.putShort(1, (short) clientId);
+	}
+
+	static int clientHandle(int clientId, int generation) {
+		return (generation & MAX_GENERATION) << 14 | (clientId & MAX_CLIENT_ID);
+	}
+
+	static int sequence(ByteBuffer frame) {
+		return frame.getShort(3) & 0xFFFF;
+	}
+
+	static void setSequence(ByteBuffer frame, int sequence) {
+		frame.putShort(3, (short) sequence);
+	}
+
+	// How far sequence a is ahead of sequence b, negative if it is behind.
+	static int sequenceDelta(int a, int b) {
+		return (short) (a - b);
+	}
+
+	static void writeHeader(ByteBuffer frame, byte type, int clientId, int sequence) {
+		frame.clear();
+		frame.put(0, type);
+		frame.putShort(1, (short) clientId);
+		frame.putShort(3, (short) sequence);
+	}
+
+	static void writeMidi(ByteBuffer frame, int clientId, int sequence, int status, int channel, int data1,
+			int data2) {
+		writeHeader(frame, TYPE_MIDI, clientId, sequence);
+		frame.put(HEADER_SIZE, (byte) ((status & 0xF0) | (channel & 0x0F)));
+		frame.put(HEADER_SIZE + 1, (byte) data1);
+		frame.put(HEADER_SIZE + 2, (byte) data2);
+		frame.limit(MIDI_FRAME_SIZE);
+	}
+
+	static void writeReliableMidi(ByteBuffer frame, int clientId, int sequence, int status, int channel,
+			int data1, int data2) {
+		writeMidi(frame, clientId, sequence, status, channel, data1, data2);
+		setReliable(frame, true);
+	}
+
+	// Switches a MIDI frame between its plain and reliable forms in place; the
+	// MIDI bytes are at the same offset in both. The frame needs room for the
+	// reliable trailer.
+	static void setReliable(ByteBuffer frame, boolean reliable) {
+		frame.put(0, reliable ? TYPE_MIDI_RELIABLE : TYPE_MIDI);
+		frame.limit(reliable ? RELIABLE_MIDI_FRAME_SIZE : MIDI_FRAME_SIZE);
+	}
+
+	static boolean isMidi(ByteBuffer frame) {
+		byte type = type(frame);
+		return type == TYPE_MIDI && hasValidJournal(frame)
+				|| type == TYPE_MIDI_RELIABLE && frame.limit() == RELIABLE_MIDI_FRAME_SIZE;
+	}
+
+	// True for a plain MIDI frame with or without a well-formed journal.
+	static boolean hasValidJournal(ByteBuffer frame) {
+		return frame.limit() == MIDI_FRAME_SIZE || frame.limit() > MIDI_FRAME_SIZE
+				&& frame.limit() == MIDI_FRAME_SIZE + 1 + journalCount(frame) * JOURNAL_ENTRY_SIZE;
+	}
+
+	static int journalCount(ByteBuffer frame) {
+		return frame.limit() > MIDI_FRAME_SIZE ? frame.get(MIDI_FRAME_SIZE) & 0xFF : 0;
+	}
+
+	static void beginJournal(ByteBuffer frame) {
+		frame.limit(MIDI_FRAME_SIZE + 1);
+		frame.put(MIDI_FRAME_SIZE, (byte) 0);
+	}
+
+	// Entries go oldest first; back is how many sequence numbers the event is
+	// behind the frame carrying it, 1..255.
+	static void appendJournalEntry(ByteBuffer frame, int back, byte statusByte, byte data1, byte data2) {
+		int count = journalCount(frame);
+		int offset = MIDI_FRAME_SIZE + 1 + count * JOURNAL_ENTRY_SIZE;
+		frame.limit(offset + JOURNAL_ENTRY_SIZE);
+		frame.put(offset, (byte) back);
+		frame.put(offset + 1, statusByte);
+		frame.put(offset + 2, data1);
+		frame.put(offset + 3, data2);
+		frame.put(MIDI_FRAME_SIZE, (byte) (count + 1));
+	}
+
+	static int journalSequence(ByteBuffer frame, int index) {
+		int back = frame.get(MIDI_FRAME_SIZE + 1 + index * JOURNAL_ENTRY_SIZE) & 0xFF;
+		return (sequence(frame) - back) & 0xFFFF;
+	}
+
+	// True if journal entry index is a note-on that a later entry, or the frame's
+	// own event, ends. The journal holds the sender's latest events in order, so
+	// a note-off that came after a lost note-on is always among them; replaying
+	// the note-on behind it would leave the note hanging.
+	static boolean isEndedInJournal(ByteBuffer frame, int index) {
+		int offset = MIDI_FRAME_SIZE + 1 + index * JOURNAL_ENTRY_SIZE;
+		int statusByte = frame.get(offset + 1) & 0xFF;
+		int note = frame.get(offset + 2) & 0x7F;
+		if ((statusByte & 0xF0) != 0x90 || (frame.get(offset + 3) & 0x7F) == 0) {
+			return false;
+		}
+		int count = journalCount(frame);
+		for (int i = index + 1; i < count; i++) {
+			int later = MIDI_FRAME_SIZE + 1 + i * JOURNAL_ENTRY_SIZE;
+			if (isNoteOff(frame.get(later + 1) & 0xFF, frame.get(later + 2) & 0x7F, frame.get(later + 3) & 0x7F,
+					statusByte & 0x0F, note)) {
+				return true;
+			}
+		}
+		return isNoteOff(frame.get(HEADER_SIZE) & 0xFF, frame.get(HEADER_SIZE + 1) & 0x7F,
+				frame.get(HEADER_SIZE + 2) & 0x7F, statusByte & 0x0F, note);
+	}
+
+	private static boolean isNoteOff(int statusByte, int data1, int data2, int channel, int note) {
+		return (statusByte & 0x0F) == channel && data1 == note
+				&& ((statusByte & 0xF0) == 0x80 || (statusByte & 0xF0) == 0x90 && data2 == 0);
+	}
+
+	// Writes journal entry index of frame into out as a plain MIDI frame from the
+	// same sender with the entry's original sequence number.
+	static void readJournalEntry(ByteBuffer frame, int index, ByteBuffer out) {
+		int offset = MIDI_FRAME_SIZE + 1 + index * JOURNAL_ENTRY_SIZE;
+		writeHeader(out, TYPE_MIDI, clientId(frame), journalSequence(frame, index));
+		out.put(HEADER_SIZE, frame.get(offset + 1));
+		out.put(HEADER_SIZE + 1, frame.get(offset + 2));
+		out.put(HEADER_SIZE + 2, frame.get(offset + 3));
+		out.limit(MIDI_FRAME_SIZE);
+	}
+
+	static void writeSkip(ByteBuffer frame, int clientId, int newest, long mask) {
+		writeHeader(frame, TYPE_SKIP, clientId, newest);
+		frame.putLong(HEADER_SIZE, mask);
+		frame.limit(SKIP_FRAME_SIZE);
+	}
+
+	static long skipMask(ByteBuffer frame) {
+		return frame.getLong(HEADER_SIZE);
+	}
+
+	static void wrapPeerFrame(ByteBuffer out, int linkSequence, ByteBuffer frame) {
+		writeHeader(out, TYPE_PEER_FRAME, 0, linkSequence);
+		out.put(HEADER_SIZE, frame, 0, frame.limit());
+		out.limit(HEADER_SIZE + frame.limit());
+	}
+
+	// Returns false if the wrapped frame is too short or does not fit out.
+	static boolean unwrapPeerFrame(ByteBuffer frame, ByteBuffer out) {
+		int length = frame.limit() - HEADER_SIZE;
+		if (length < HEADER_SIZE || length > out.capacity()) {
+			return false;
+		}
+		out.clear();
+		out.put(0, frame, HEADER_SIZE, length);
+		out.limit(length);
+		return true;
+	}
+
+	static int reliableSequence(ByteBuffer frame) {
+		return frame.getShort(MIDI_FRAME_SIZE) & 0xFFFF;
+	}
+
+	static void setReliableSequence(ByteBuffer frame, int reliableSequence) {
+		frame.putShort(MIDI_FRAME_SIZE, (short) reliableSequence);
+	}
+
+	static void writeAck(ByteBuffer frame, byte type, int clientId, int reliableSequence) {
+		writeHeader(frame, type, clientId, reliableSequence);
+		frame.limit(HEADER_SIZE);
+	}
+
+	// Events whose loss leaves receivers in the wrong state: a stuck note or a
+	// pedal that never comes up. Everything else is superseded by the next event.
+	static boolean isStateCritical(int status, int data1, int data2) {
+		switch (status & 0xF0) {
+		case 0x80:
+			return true;
+		case 0x90:
+			return data2 == 0;
+		case 0xB0:
+			return data1 == 64 || data1 == 66 || data1 == 67 || data1 == 120 || data1 == 123;
+		default:
+			return false;
+		}
+	}
+
+	static int midiStatus(ByteBuffer frame) {
+		return frame.get(HEADER_SIZE) & 0xF0;
+	}
+
+	static int midiChannel(ByteBuffer frame) {
+		return frame.get(HEADER_SIZE) & 0x0F;
+	}
+
+	static int midiData1(ByteBuffer frame) {
+		return frame.get(HEADER_SIZE + 1) & 0x7F;
+	}
+
+	static int midiData2(ByteBuffer frame) {
+		return frame.get(HEADER_SIZE + 2) & 0x7F;
+	}
+
+	// Chord keys payload: note(1) | noteOn(1) | chord name (UTF-8, rest of frame)
+	static void writeChordKeys(ByteBuffer frame, int clientId, int sequence, int note, boolean isNoteOn,
+			byte[] chordName) {
+		writeHeader(frame, TYPE_CHORD_KEYS, clientId, sequence);
+		frame.put(HEADER_SIZE, (byte) note);
+		frame.put(HEADER_SIZE + 1, (byte) (isNoteOn ? 1 : 0));
+		int length = Math.min(chordName.length, frame.capacity() - HEADER_SIZE - 2);
+		frame.position(HEADER_SIZE + 2);
+		frame.put(chordName, 0, length);
+		frame.flip();
+	}
+
+	static int chordNote(ByteBuffer frame) {
+		return frame.get(HEADER_SIZE) & 0x7F;
+	}
+
+	static boolean chordNoteOn(ByteBuffer frame) {
+		return frame.get(HEADER_SIZE + 1) != 0;
+	}
+
+	static String chordName(ByteBuffer frame) {
+		int offset = HEADER_SIZE + 2;
+		int length = frame.limit() - offset;
+		if (length <= 0) {
+			return "";
+		}
+		byte[] name = new byte[length];
+		frame.get(offset, name);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	// Chat payload: message (UTF-8, rest of frame)
+	static void writeText(ByteBuffer frame, int clientId, int sequence, byte[] text) {
+		writeHeader(frame, TYPE_TEXT, clientId, sequence);
+		int length = Math.min(text.length, frame.capacity() - HEADER_SIZE);
+		frame.position(HEADER_SIZE);
+		frame.put(text, 0, length);
+		frame.flip();
+	}
+
+	static String text(ByteBuffer frame) {
+		int length = frame.limit() - HEADER_SIZE;
+		if (length <= 0) {
+			return "";
+		}
+		byte[] text = new byte[length];
+		frame.get(HEADER_SIZE, text);
+		return new String(text, StandardCharsets.UTF_8);
+	}
+
+	static int bundleCount(ByteBuffer frame) {
+		return frame.get(1) & 0xFF;
+	}
+
+	// Copies each frame of the bundle into entry, positioned at 0, and hands it to
+	// the consumer in order.
+	static void forEachBundleEntry(ByteBuffer bundle, ByteBuffer entry, Consumer<ByteBuffer> consumer) {
+		int count = bundleCount(bundle);
+		int offset = BUNDLE_HEADER_SIZE;
+		for (int i = 0; i < count && offset < bundle.limit(); i++) {
+			int length = bundle.get(offset) & 0xFF;
+			offset++;
+			if (offset + length > bundle.limit() || length > entry.capacity()) {
+				return;
+			}
+			entry.clear();
+			entry.put(0, bundle, offset, length);
+			entry.limit(length);
+			consumer.accept(entry);
+			offset += length;
+		}
+	}
+
+	interface MidiEventConsumer {
+		void accept(int status, int channel, int data1, int data2);
+	}
+
+	// Replays a channel state frame as the MIDI events that recreate it: program
+	// change, then controllers, then the held notes.
+	static void forEachChannelStateEvent(ByteBuffer frame, MidiEventConsumer consumer) {
+		if (frame.limit() < CHANNEL_STATE_CONTROLLERS_OFFSET + 1) {
+			return;
+		}
+		int channel = frame.get(HEADER_SIZE) & 0x0F;
+		int program = frame.get(HEADER_SIZE + 1) & 0xFF;
+		if (program != NO_PROGRAM) {
+			consumer.accept(0xC0, channel, program & 0x7F, 0);
+		}
+		int count = frame.get(CHANNEL_STATE_CONTROLLERS_OFFSET) & 0xFF;
+		int offset = CHANNEL_STATE_CONTROLLERS_OFFSET + 1;
+		for (int i = 0; i < count && offset + 1 < frame.limit(); i++, offset += 2) {
+			consumer.accept(0xB0, channel, frame.get(offset) & 0x7F, frame.get(offset + 1) & 0x7F);
+		}
+		for (int half = 0; half < 2; half++) {
+			long notes = frame.getLong(CHANNEL_STATE_NOTES_OFFSET + half * 8);
+			while (notes != 0) {
+				int bit = Long.numberOfTrailingZeros(notes);
+				notes &= notes - 1;
+				consumer.accept(0x90, channel, half * 64 + bit, SNAPSHOT_VELOCITY);
+			}
+		}
+	}
+
+	static String midiText(int clientId, String clientName, int status, int channel, int data1, int data2) {
+		return "MIDI:" + clientId + ":" + clientName + ":" + status + ":" + channel + ":" + data1 + ":" + data2;
+	}
+
+	static String chordKeysText(int clientId, String clientName, int note, boolean isNoteOn, String chordName) {
+		return "CHORD_KEYS:" + clientId + ":" + clientName + ":" + note + ":" + isNoteOn + ":" + chordName;
+	}
+
+	static String textText(int clientId, String clientName, String message) {
+		return "TEXT:" + clientId + ":" + clientName + ":" + message;
+	}
+
+	// Handshake options are appended to CONNECT and ID as ";key=value" pairs so
+	// that servers and clients that predate them still see a usable message.
+	static String withOption(String message, String key, Object value) {
+		return message + ";" + key + "=" + value;
+	}
+
+	// A ';' in a client name would start the options of the message it is sent in.
+	static String sanitizeClientName(String name) {
+		return name.replace(";", "").trim();
+	}
+
+	static String stripOptions(String message) {
+		int index = message.indexOf(';');
+		return index == -1 ? message : message.substring(0, index);
+	}
+
+	// The last occurrence wins, so options a sender appends to a message take
+	// precedence over anything that came in with the name in front of them.
+	static String option(String message, String key) {
+		String[] parts = message.split(";");
+		for (int i = parts.length - 1; i >= 1; i--) {
+			int equals = parts[i].indexOf('=');
+			if (equals != -1 && parts[i].substring(0, equals).equals(key)) {
+				return parts[i].substring(equals + 1);
+			}
+		}
+		return null;
+	}
+
+	static int intOption(String message, String key, int defaultValue) {
+		String value = option(message, key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	static int protocolVersion(String message) {
+		return Math.min(intOption(message, OPTION_PROTOCOL, VERSION_TEXT), VERSION_BINARY);
+	}
+}
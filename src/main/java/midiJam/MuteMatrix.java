@@ -0,0 +1,48 @@
+package midiJam;
+
+import java.util.Arrays;
+
+// Square bit matrix indexed by room slot: bit (recipient, sender) is set when
+// the recipient has muted the sender.
+class MuteMatrix {
+
+	private long[][] rows = new long[0][];
+	private int capacity;
+
+	void ensureCapacity(int slots) {
+		if (slots <= capacity) {
+			return;
+		}
+		int newCapacity = Math.max(64, Integer.highestOneBit(slots - 1) << 1);
+		int words = newCapacity >>> 6;
+		long[][] newRows = new long[newCapacity][];
+		for (int i = 0; i < newCapacity; i++) {
+			newRows[i] = i < rows.length ? Arrays.copyOf(rows[i], words) : new long[words];
+		}
+		rows = newRows;
+		capacity = newCapacity;
+	}
+
+	void set(int recipientSlot, int senderSlot) {
+		rows[recipientSlot][senderSlot >>> 6] |= 1L << senderSlot;
+	}
+
+	void clear(int recipientSlot, int senderSlot) {
+		rows[recipientSlot][senderSlot >>> 6] &= ~(1L << senderSlot);
+	}
+
+	boolean isSet(int recipientSlot, int senderSlot) {
+		return (rows[recipientSlot][senderSlot >>> 6] & (1L << senderSlot)) != 0;
+	}
+
+	// Forgets everything a slot muted and everyone who muted it, so the slot can
+	// be handed to the next client that joins.
+	void clearSlot(int slot) {
+		Arrays.fill(rows[slot], 0L);
+		long mask = ~(1L << slot);
+		int word = slot >>> 6;
+		for (long[] row : rows) {
+			row[word] &= mask;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package midiJam;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+class NioRelayEngine implements ServerTransport {
+
+	// Datagrams that may wait for room in the socket send buffer.
+	private static final int MAX_BACKLOG = 8192;
+
+	private final DatagramChannel channel;
+	private final int localPort;
+	// Only set while a receive timeout is: the channel is then non-blocking and
+	// receive waits on the selector.
+	private Selector selector;
+	private SelectionKey key;
+	private long receiveTimeoutMillis;
+
+	// A non-blocking send finds the socket send buffer full now and then. Such a
+	// datagram is copied here instead of being dropped, later sends queue up
+	// behind it to keep the order, and the receiving thread sends the backlog
+	// once the selector reports the channel writable again.
+	private final ArrayDeque<Backlogged> backlog = new ArrayDeque<>();
+	private volatile boolean backlogged;
+
+	private final AtomicLong receivedPackets = new AtomicLong();
+	private final AtomicLong sentPackets = new AtomicLong();
+	private final AtomicLong sendFailures = new AtomicLong();
+
+	NioRelayEngine(int port, int receiveBufferSize, int sendBufferSize) throws IOException {
+		channel = DatagramChannel.open();
+		if (receiveBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		}
+		if (sendBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+		}
+		channel.bind(new InetSocketAddress(port));
+		localPort = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+	}
+
+	@Override
+	public ByteBuffer allocateFrame(int capacity) {
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	@Override
+	public InetSocketAddress receive(ByteBuffer frame) throws IOException {
+		if (backlogged) {
+			sendBacklog();
+		}
+		frame.clear();
+		InetSocketAddress source = (InetSocketAddress) channel.receive(frame);
+		if (source == null && selector != null) {
+			// Nothing queued; the busy path above never touches the selector.
+			selector.selectedKeys().clear();
+			try {
+				selector.select(receiveTimeoutMillis);
+			} catch (ClosedSelectorException e) {
+				throw new ClosedChannelException();
+			}
+			if (backlogged) {
+				sendBacklog();
+			}
+			source = (InetSocketAddress) channel.receive(frame);
+		}
+		frame.flip();
+		if (source != null) {
+			receivedPackets.incrementAndGet();
+		}
+		return source;
+	}
+
+	@Override
+	public void setReceiveTimeout(int millis) throws IOException {
+		if (millis > 0 && selector == null) {
+			selector = Selector.open();
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ);
+		}
+		receiveTimeoutMillis = millis;
+	}
+
+	// The frame is sent from position 0 up to its limit and left untouched, so
+	// one encoded frame can be handed to every recipient in turn.
+	@Override
+	public void send(ByteBuffer frame, InetSocketAddress target) throws IOException {
+		frame.position(0);
+		try {
+			if (!backlogged && channel.send(frame, target) != 0) {
+				sentPackets.incrementAndGet();
+			} else {
+				queue(frame, target);
+			}
+		} catch (ClosedChannelException e) {
+			throw e;
+		} catch (IOException e) {
+			sendFailures.incrementAndGet();
+			throw e;
+		} finally {
+			frame.position(0);
+		}
+	}
+
+	private void queue(ByteBuffer frame, InetSocketAddress target) throws IOException {
+		synchronized (backlog) {
+			if (backlog.size() >= MAX_BACKLOG) {
+				throw new IOException("Send backlog full, datagram to " + target + " dropped");
+			}
+			frame.position(0);
+			ByteBuffer copy = ByteBuffer.allocate(frame.limit());
+			copy.put(frame).flip();
+			backlog.add(new Backlogged(copy, target));
+			if (!backlogged) {
+				backlogged = true;
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				selector.wakeup();
+			}
+		}
+	}
+
+	// Sends as much of the backlog as the socket takes now. A datagram that
+	// fails outright is dropped and the failure passed on.
+	private void sendBacklog() throws IOException {
+		synchronized (backlog) {
+			Backlogged next;
+			while ((next = backlog.peek()) != null) {
+				try {
+					if (channel.send(next.frame, next.target) == 0) {
+						return;
+					}
+				} catch (ClosedChannelException e) {
+					throw e;
+				} catch (IOException e) {
+					backlog.poll();
+					sendFailures.incrementAndGet();
+					throw e;
+				}
+				backlog.poll();
+				sentPackets.incrementAndGet();
+			}
+			backlogged = false;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return localPort;
+	}
+
+	@Override
+	public void close() {
+		try {
+			channel.close();
+			if (selector != null) {
+				selector.close();
+			}
+		} catch (IOException e) {
+			// Nothing left to release.
+		}
+	}
+
+	int getReceiveBufferSize() throws IOException {
+		return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+	}
+
+	int getSendBufferSize() throws IOException {
+		return channel.getOption(StandardSocketOptions.SO_SNDBUF);
+	}
+
+	long getReceivedPackets() {
+		return receivedPackets.get();
+	}
+
+	long getSentPackets() {
+		return sentPackets.get();
+	}
+
+	long getSendFailures() {
+		return sendFailures.get();
+	}
+
+	// Datagrams the kernel discarded because the socket receive buffer was full.
+	// Read from the "drops" column of /proc/net/udp{,6}; -1 where unavailable.
+	long getKernelReceiveDrops() {
+		long drops = -1;
+		String port = String.format(":%04X", localPort);
+		for (String table : new String[] { "/proc/net/udp", "/proc/net/udp6" }) {
+			Path path = Paths.get(table);
+			if (!Files.isReadable(path)) {
+				continue;
+			}
+			try {
+				List<String> lines = Files.readAllLines(path);
+				for (int i = 1; i < lines.size(); i++) {
+					String[] columns = lines.get(i).trim().split("\\s+");
+					if (columns.length > 12 && columns[1].endsWith(port)) {
+						drops = Math.max(drops, 0) + Long.parseLong(columns[columns.length - 1]);
+					}
+				}
+			} catch (IOException | NumberFormatException e) {
+				return drops;
+			}
+		}
+		return drops;
+	}
+
+	private static final class Backlogged {
+		final ByteBuffer frame;
+		final InetSocketAddress target;
+
+		Backlogged(ByteBuffer frame, InetSocketAddress target) {
+			this.frame = frame;
+			this.target = target;
+		}
+	}
+}
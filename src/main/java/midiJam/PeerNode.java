@@ -0,0 +1,158 @@
+package midiJam;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Another server this one is federated with. The link carries the two nodes'
+// roster changes as text and relays each local message to the peer once, in a
+// TYPE_PEER_FRAME with the link's own sequence number; the peer fans it out to
+// its own clients. Players on the peer appear here as proxy clients: members
+// of their room with a local id, so rosters, mutes, channel state and the
+// session journal treat them like anyone else, but nothing is ever sent to a
+// proxy directly.
+//
+// Nodes only relay their own clients' traffic, so every node has to peer with
+// every other node that shares a room.
+class PeerNode {
+
+	private final InetSocketAddress address;
+	private volatile String name;
+	private volatile boolean up;
+	private volatile long lastHeardNanos;
+	private int linkSequence;
+
+	private final SequenceTracker linkIn = new SequenceTracker();
+	private final ReliableSender reliableOut = new ReliableSender();
+	private final ReliableReceiver reliableIn = new ReliableReceiver();
+	private final ClockEstimator clock = new ClockEstimator();
+	private final Map<Integer, ClientInfo> proxies = new ConcurrentHashMap<>();
+	final LongAdder framesIn = new LongAdder();
+	final LongAdder framesOut = new LongAdder();
+
+	// Full roster sync in progress (relay thread only): which pages of it have
+	// arrived, so proxies missing from a complete sync can be removed.
+	private long rosterSync = -1;
+	private long rosterPagesSeen;
+	private long lastRosterRequestNanos;
+
+	// Set while a message is fanned out when one of this peer's proxies is among
+	// the recipients. Relay thread only.
+	private boolean forwardPending;
+
+	PeerNode(InetSocketAddress address) {
+		this.address = address;
+		this.name = address.getHostString() + ":" + address.getPort();
+	}
+
+	InetSocketAddress getAddress() {
+		return address;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	void setName(String name) {
+		this.name = name;
+	}
+
+	boolean isUp() {
+		return up;
+	}
+
+	void setUp(boolean up) {
+		this.up = up;
+	}
+
+	long getLastHeardNanos() {
+		return lastHeardNanos;
+	}
+
+	void heard(long now) {
+		lastHeardNanos = now;
+	}
+
+	synchronized int nextLinkSequence() {
+		linkSequence = (linkSequence + 1) & 0xFFFF;
+		return linkSequence;
+	}
+
+	// Sequence accounting for frames this peer relays to us.
+	SequenceTracker getLinkIn() {
+		return linkIn;
+	}
+
+	ReliableSender getReliableOut() {
+		return reliableOut;
+	}
+
+	ReliableReceiver getReliableIn() {
+		return reliableIn;
+	}
+
+	ClockEstimator getClock() {
+		return clock;
+	}
+
+	// remoteId is the player's id on the peer.
+	ClientInfo getProxy(int remoteId) {
+		return proxies.get(remoteId);
+	}
+
+	void putProxy(int remoteId, ClientInfo proxy) {
+		proxies.put(remoteId, proxy);
+	}
+
+	boolean removeProxy(int remoteId, ClientInfo proxy) {
+		return proxies.remove(remoteId, proxy);
+	}
+
+	Collection<ClientInfo> getProxies() {
+		return proxies.values();
+	}
+
+	int getProxyCount() {
+		return proxies.size();
+	}
+
+	// The full roster sync most recently started by the peer.
+	long getRosterSync() {
+		return rosterSync;
+	}
+
+	// Records one page of full roster sync number sync. Returns true once every
+	// page of that sync has arrived.
+	boolean rosterPageReceived(long sync, int page, int pages) {
+		if (sync != rosterSync) {
+			rosterSync = sync;
+			rosterPagesSeen = 0;
+		}
+		if (page < 0 || page >= 64 || pages > 64) {
+			return false;
+		}
+		rosterPagesSeen |= 1L << page;
+		return rosterPagesSeen == (pages == 64 ? -1L : (1L << pages) - 1);
+	}
+
+	// Rate-limits the roster requests sent when a frame names an unknown player.
+	boolean shouldRequestRoster(long now, long intervalNanos) {
+		if (now - lastRosterRequestNanos < intervalNanos) {
+			return false;
+		}
+		lastRosterRequestNanos = now;
+		return true;
+	}
+
+	void setForwardPending() {
+		forwardPending = true;
+	}
+
+	boolean takeForwardPending() {
+		boolean pending = forwardPending;
+		forwardPending = false;
+		return pending;
+	}
+}
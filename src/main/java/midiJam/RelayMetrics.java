@@ -0,0 +1,494 @@
+package midiJam;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Counters for the relay path. Everything is a LongAdder or a histogram so the
+// relay, batcher and timer threads can record without contending; readers
+// (JMX, the stats endpoint) sum on demand.
+class RelayMetrics implements RelayMetricsMBean {
+
+	static final String OBJECT_NAME = "midiJam:type=RelayMetrics";
+
+	enum MessageType {
+		MIDI, CHORD_KEYS, TEXT, PING, CONTROL, PEER, UNKNOWN;
+
+		boolean isRelayed() {
+			return this == MIDI || this == CHORD_KEYS || this == TEXT;
+		}
+	}
+
+	private static final MessageType[] TYPES = MessageType.values();
+	private static final FloodGuard.TrafficClass[] TRAFFIC_CLASSES = FloodGuard.TrafficClass.values();
+
+	private final ClientRegistry clients;
+	private final Map<String, Room> rooms;
+	private volatile PeerNode[] peers = new PeerNode[0];
+
+	private final LongAdder[] packetsByType = new LongAdder[TYPES.length];
+	private final LongAdder[] bytesByType = new LongAdder[TYPES.length];
+	private final LatencyHistogram[] latencyByType = new LatencyHistogram[TYPES.length];
+	private final LongAdder datagramsSent = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder relayedMessages = new LongAdder();
+	private final LongAdder relayedDatagrams = new LongAdder();
+	private final LongAdder reliableRetransmits = new LongAdder();
+	private final LongAdder reliableGiveUps = new LongAdder();
+	private final LongAdder controllersCoalesced = new LongAdder();
+	private final LongAdder directSkipped = new LongAdder();
+	private final LongAdder[] throttledDropsByClass = new LongAdder[TRAFFIC_CLASSES.length];
+	private final LongAdder[] throttledCoalescedByClass = new LongAdder[TRAFFIC_CLASSES.length];
+
+	private long lastSampleNanos = System.nanoTime();
+	private long lastPacketsReceived;
+	private long lastDatagramsSent;
+	private volatile double packetsPerSecond;
+	private volatile double datagramsSentPerSecond;
+
+	RelayMetrics(ClientRegistry clients, Map<String, Room> rooms) {
+		this.clients = clients;
+		this.rooms = rooms;
+		for (int i = 0; i < TYPES.length; i++) {
+			packetsByType[i] = new LongAdder();
+			bytesByType[i] = new LongAdder();
+			latencyByType[i] = new LatencyHistogram();
+		}
+		for (int i = 0; i < TRAFFIC_CLASSES.length; i++) {
+			throttledDropsByClass[i] = new LongAdder();
+			throttledCoalescedByClass[i] = new LongAdder();
+		}
+	}
+
+	static MessageType classify(String message) {
+		if (message.startsWith("MIDI:")) {
+			return MessageType.MIDI;
+		} else if (message.startsWith("CHORD_KEYS:")) {
+			return MessageType.CHORD_KEYS;
+		} else if (message.startsWith("TEXT:")) {
+			return MessageType.TEXT;
+		} else if (message.startsWith("PING_RESPONSE:")) {
+			return MessageType.PING;
+		} else if (message.startsWith("PEER_")) {
+			return MessageType.PEER;
+		}
+		return MessageType.CONTROL;
+	}
+
+	static MessageType classify(byte binaryType) {
+		switch (binaryType) {
+		case MidiProtocol.TYPE_MIDI:
+		case MidiProtocol.TYPE_MIDI_RELIABLE:
+			return MessageType.MIDI;
+		case MidiProtocol.TYPE_CHORD_KEYS:
+			return MessageType.CHORD_KEYS;
+		case MidiProtocol.TYPE_TEXT:
+			return MessageType.TEXT;
+		case MidiProtocol.TYPE_ACK:
+		case MidiProtocol.TYPE_NACK:
+		case MidiProtocol.TYPE_SKIP:
+			return MessageType.CONTROL;
+		case MidiProtocol.TYPE_PEER_FRAME:
+			return MessageType.PEER;
+		default:
+			return MessageType.UNKNOWN;
+		}
+	}
+
+	void setPeers(PeerNode[] peers) {
+		this.peers = peers;
+	}
+
+	// Called once per incoming packet after it has been handled; elapsedNanos is
+	// the time from receive to the last send (or batch enqueue) of its fan-out.
+	void recordReceive(ClientInfo sender, MessageType type, int bytes, long elapsedNanos) {
+		packetsByType[type.ordinal()].increment();
+		bytesByType[type.ordinal()].add(bytes);
+		if (type.isRelayed()) {
+			latencyByType[type.ordinal()].record(elapsedNanos);
+		}
+		if (sender != null) {
+			sender.getCounters().packetsIn.increment();
+			sender.getCounters().bytesIn.add(bytes);
+		}
+	}
+
+	void recordSend(ClientInfo client, int bytes) {
+		datagramsSent.increment();
+		bytesSent.add(bytes);
+		client.getCounters().packetsOut.increment();
+		client.getCounters().bytesOut.add(bytes);
+	}
+
+	void recordFanOut(int recipients) {
+		relayedMessages.increment();
+		relayedDatagrams.add(recipients);
+	}
+
+	// Copies not sent because the sender already plays directly to the recipient.
+	void recordDirectSkipped(int recipients) {
+		directSkipped.add(recipients);
+	}
+
+	void recordRetransmits(int frames) {
+		reliableRetransmits.add(frames);
+	}
+
+	void recordGiveUps(int frames) {
+		reliableGiveUps.add(frames);
+	}
+
+	// A frame the sender's FloodGuard did not forward straight away: dropped, or
+	// held back to be coalesced with later values.
+	void recordThrottled(ClientInfo sender, FloodGuard.TrafficClass trafficClass, FloodGuard.Decision decision) {
+		if (decision == FloodGuard.Decision.HOLD) {
+			throttledCoalescedByClass[trafficClass.ordinal()].increment();
+			sender.getCounters().throttledCoalesced.increment();
+		} else {
+			throttledDropsByClass[trafficClass.ordinal()].increment();
+			sender.getCounters().throttledDrops.increment();
+		}
+	}
+
+	// Controller values the sender's coalescer replaced with a newer one.
+	void recordCoalesced(ClientInfo sender, long values) {
+		if (values > 0) {
+			controllersCoalesced.add(values);
+			sender.getCounters().controllersCoalesced.add(values);
+		}
+	}
+
+	// Turns the running totals into rates; called periodically by the server.
+	synchronized void sample() {
+		long now = System.nanoTime();
+		long packets = getPacketsReceived();
+		long sent = getDatagramsSent();
+		double seconds = (now - lastSampleNanos) / 1e9;
+		if (seconds > 0) {
+			packetsPerSecond = (packets - lastPacketsReceived) / seconds;
+			datagramsSentPerSecond = (sent - lastDatagramsSent) / seconds;
+		}
+		lastSampleNanos = now;
+		lastPacketsReceived = packets;
+		lastDatagramsSent = sent;
+	}
+
+	void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(new StandardMBean(this, RelayMetricsMBean.class), name);
+		} catch (JMException e) {
+			throw new IllegalStateException("Failed to register relay metrics: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public long getPacketsReceived() {
+		long total = 0;
+		for (LongAdder adder : packetsByType) {
+			total += adder.sum();
+		}
+		return total;
+	}
+
+	@Override
+	public long getBytesReceived() {
+		long total = 0;
+		for (LongAdder adder : bytesByType) {
+			total += adder.sum();
+		}
+		return total;
+	}
+
+	@Override
+	public long getDatagramsSent() {
+		return datagramsSent.sum();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	@Override
+	public double getPacketsPerSecond() {
+		return packetsPerSecond;
+	}
+
+	@Override
+	public double getDatagramsSentPerSecond() {
+		return datagramsSentPerSecond;
+	}
+
+	@Override
+	public double getAverageFanOut() {
+		long messages = relayedMessages.sum();
+		return messages == 0 ? 0 : (double) relayedDatagrams.sum() / messages;
+	}
+
+	@Override
+	public int getConnectedClients() {
+		return clients.size();
+	}
+
+	@Override
+	public int getRooms() {
+		return rooms.size();
+	}
+
+	@Override
+	public long getMidiLatencyP50Micros() {
+		return latencyByType[MessageType.MIDI.ordinal()].getPercentileNanos(50) / 1000;
+	}
+
+	@Override
+	public long getMidiLatencyP99Micros() {
+		return latencyByType[MessageType.MIDI.ordinal()].getPercentileNanos(99) / 1000;
+	}
+
+	@Override
+	public long getMidiLatencyMaxMicros() {
+		return latencyByType[MessageType.MIDI.ordinal()].getMaxNanos() / 1000;
+	}
+
+	@Override
+	public long getReliableRetransmits() {
+		return reliableRetransmits.sum();
+	}
+
+	@Override
+	public long getReliableGiveUps() {
+		return reliableGiveUps.sum();
+	}
+
+	@Override
+	public long getThrottledDrops() {
+		return sum(throttledDropsByClass);
+	}
+
+	@Override
+	public long getThrottledCoalesced() {
+		return sum(throttledCoalescedByClass);
+	}
+
+	@Override
+	public long getControllersCoalesced() {
+		return controllersCoalesced.sum();
+	}
+
+	@Override
+	public long getDirectSkipped() {
+		return directSkipped.sum();
+	}
+
+	// MIDI packets received, for the server window's events per second.
+	long getMidiEventsReceived() {
+		return packetsByType[MessageType.MIDI.ordinal()].sum();
+	}
+
+	private static long sum(LongAdder[] adders) {
+		long total = 0;
+		for (LongAdder adder : adders) {
+			total += adder.sum();
+		}
+		return total;
+	}
+
+	String toText() {
+		StringBuilder text = new StringBuilder();
+		text.append("clients ").append(getConnectedClients()).append('\n');
+		text.append("rooms ").append(getRooms()).append('\n');
+		text.append("packets_received ").append(getPacketsReceived()).append('\n');
+		text.append("bytes_received ").append(getBytesReceived()).append('\n');
+		text.append("datagrams_sent ").append(getDatagramsSent()).append('\n');
+		text.append("bytes_sent ").append(getBytesSent()).append('\n');
+		text.append("packets_per_second ").append(String.format(Locale.ROOT, "%.1f", getPacketsPerSecond()))
+				.append('\n');
+		text.append("datagrams_sent_per_second ")
+				.append(String.format(Locale.ROOT, "%.1f", getDatagramsSentPerSecond())).append('\n');
+		text.append("average_fan_out ").append(String.format(Locale.ROOT, "%.2f", getAverageFanOut())).append('\n');
+		text.append("reliable_retransmits ").append(getReliableRetransmits()).append('\n');
+		text.append("reliable_give_ups ").append(getReliableGiveUps()).append('\n');
+		text.append("controllers_coalesced ").append(getControllersCoalesced()).append('\n');
+		text.append("direct_skipped ").append(getDirectSkipped()).append('\n');
+		for (FloodGuard.TrafficClass trafficClass : TRAFFIC_CLASSES) {
+			String name = trafficClass.name().toLowerCase(Locale.ROOT);
+			text.append("throttled{class=").append(name).append(",action=dropped} ")
+					.append(throttledDropsByClass[trafficClass.ordinal()].sum()).append('\n');
+			text.append("throttled{class=").append(name).append(",action=coalesced} ")
+					.append(throttledCoalescedByClass[trafficClass.ordinal()].sum()).append('\n');
+		}
+		for (MessageType type : TYPES) {
+			String name = type.name().toLowerCase(Locale.ROOT);
+			text.append("type_packets{type=").append(name).append("} ").append(packetsByType[type.ordinal()].sum())
+					.append('\n');
+			text.append("type_bytes{type=").append(name).append("} ").append(bytesByType[type.ordinal()].sum())
+					.append('\n');
+			if (type.isRelayed()) {
+				LatencyHistogram latency = latencyByType[type.ordinal()];
+				text.append("relay_latency_us{type=").append(name).append(",p=50} ")
+						.append(latency.getPercentileNanos(50) / 1000).append('\n');
+				text.append("relay_latency_us{type=").append(name).append(",p=99} ")
+						.append(latency.getPercentileNanos(99) / 1000).append('\n');
+				text.append("relay_latency_us{type=").append(name).append(",p=max} ")
+						.append(latency.getMaxNanos() / 1000).append('\n');
+			}
+		}
+		for (ClientInfo client : clients.snapshot()) {
+			ClientCounters counters = client.getCounters();
+			ClockEstimator clock = client.getClock();
+			text.append("client{id=").append(client.getId()).append(",name=").append(client.getName())
+					.append(",room=").append(client.getRoom().getName()).append("} packets_in=")
+					.append(counters.packetsIn.sum()).append(" bytes_in=").append(counters.bytesIn.sum())
+					.append(" packets_out=").append(counters.packetsOut.sum()).append(" bytes_out=")
+					.append(counters.bytesOut.sum()).append(" rtt_us=").append(clock.getSmoothedRttNanos() / 1000)
+					.append(" jitter_us=").append(clock.getJitterNanos() / 1000).append(" offset_us=")
+					.append(clock.hasOffset() ? String.valueOf(clock.getOffsetNanos() / 1000) : "n/a");
+			SequenceTracker sequence = client.getReceiveSequence();
+			text.append(" seq_lost=").append(sequence.getLost()).append(" seq_recovered=")
+					.append(sequence.getRecovered()).append(" seq_reordered=")
+					.append(sequence.getReordered()).append(" seq_duplicates=").append(sequence.getDuplicates())
+					.append(" seq_late=").append(sequence.getLate()).append(" throttled_dropped=")
+					.append(counters.throttledDrops.sum()).append(" throttled_coalesced=")
+					.append(counters.throttledCoalesced.sum()).append(" controllers_coalesced=")
+					.append(counters.controllersCoalesced.sum()).append('\n');
+		}
+		for (PeerNode peer : peers) {
+			SequenceTracker linkIn = peer.getLinkIn();
+			text.append("peer{name=").append(peer.getName()).append(",address=")
+					.append(peer.getAddress().getHostString()).append(':').append(peer.getAddress().getPort())
+					.append("} up=").append(peer.isUp()).append(" players=").append(peer.getProxyCount())
+					.append(" frames_in=").append(peer.framesIn.sum()).append(" frames_out=")
+					.append(peer.framesOut.sum()).append(" rtt_us=")
+					.append(peer.getClock().getSmoothedRttNanos() / 1000).append(" link_lost=")
+					.append(linkIn.getLost()).append(" link_late=").append(linkIn.getLate()).append('\n');
+		}
+		return text.toString();
+	}
+
+	String toJson() {
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"clients\":").append(getConnectedClients());
+		json.append(",\"rooms\":").append(getRooms());
+		json.append(",\"packetsReceived\":").append(getPacketsReceived());
+		json.append(",\"bytesReceived\":").append(getBytesReceived());
+		json.append(",\"datagramsSent\":").append(getDatagramsSent());
+		json.append(",\"bytesSent\":").append(getBytesSent());
+		json.append(",\"packetsPerSecond\":").append(getPacketsPerSecond());
+		json.append(",\"datagramsSentPerSecond\":").append(getDatagramsSentPerSecond());
+		json.append(",\"averageFanOut\":").append(getAverageFanOut());
+		json.append(",\"reliableRetransmits\":").append(getReliableRetransmits());
+		json.append(",\"reliableGiveUps\":").append(getReliableGiveUps());
+		json.append(",\"controllersCoalesced\":").append(getControllersCoalesced());
+		json.append(",\"directSkipped\":").append(getDirectSkipped());
+		json.append(",\"throttled\":{");
+		for (FloodGuard.TrafficClass trafficClass : TRAFFIC_CLASSES) {
+			if (trafficClass.ordinal() > 0) {
+				json.append(',');
+			}
+			json.append('"').append(trafficClass.name().toLowerCase(Locale.ROOT)).append("\":{\"dropped\":")
+					.append(throttledDropsByClass[trafficClass.ordinal()].sum()).append(",\"coalesced\":")
+					.append(throttledCoalescedByClass[trafficClass.ordinal()].sum()).append('}');
+		}
+		json.append('}');
+		json.append(",\"types\":{");
+		for (MessageType type : TYPES) {
+			if (type.ordinal() > 0) {
+				json.append(',');
+			}
+			json.append('"').append(type.name().toLowerCase(Locale.ROOT)).append("\":{\"packets\":")
+					.append(packetsByType[type.ordinal()].sum()).append(",\"bytes\":")
+					.append(bytesByType[type.ordinal()].sum());
+			if (type.isRelayed()) {
+				LatencyHistogram latency = latencyByType[type.ordinal()];
+				json.append(",\"latencyMicros\":{\"p50\":").append(latency.getPercentileNanos(50) / 1000)
+						.append(",\"p99\":").append(latency.getPercentileNanos(99) / 1000).append(",\"max\":")
+						.append(latency.getMaxNanos() / 1000).append('}');
+			}
+			json.append('}');
+		}
+		json.append("},\"perClient\":[");
+		ClientInfo[] snapshot = clients.snapshot();
+		for (int i = 0; i < snapshot.length; i++) {
+			ClientInfo client = snapshot[i];
+			ClientCounters counters = client.getCounters();
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"id\":").append(client.getId()).append(",\"name\":");
+			appendJsonString(json, client.getName());
+			json.append(",\"room\":");
+			appendJsonString(json, client.getRoom().getName());
+			json.append(",\"packetsIn\":").append(counters.packetsIn.sum()).append(",\"bytesIn\":")
+					.append(counters.bytesIn.sum()).append(",\"packetsOut\":").append(counters.packetsOut.sum())
+					.append(",\"bytesOut\":").append(counters.bytesOut.sum());
+			ClockEstimator clock = client.getClock();
+			json.append(",\"rttMicros\":").append(clock.getSmoothedRttNanos() / 1000).append(",\"jitterMicros\":")
+					.append(clock.getJitterNanos() / 1000).append(",\"offsetMicros\":")
+					.append(clock.hasOffset() ? String.valueOf(clock.getOffsetNanos() / 1000) : "null");
+			SequenceTracker sequence = client.getReceiveSequence();
+			json.append(",\"lost\":").append(sequence.getLost()).append(",\"recovered\":")
+					.append(sequence.getRecovered()).append(",\"reordered\":")
+					.append(sequence.getReordered()).append(",\"duplicates\":").append(sequence.getDuplicates())
+					.append(",\"late\":").append(sequence.getLate()).append(",\"throttledDropped\":")
+					.append(counters.throttledDrops.sum()).append(",\"throttledCoalesced\":")
+					.append(counters.throttledCoalesced.sum()).append(",\"controllersCoalesced\":")
+					.append(counters.controllersCoalesced.sum()).append('}');
+		}
+		json.append("],\"peers\":[");
+		PeerNode[] peerSnapshot = peers;
+		for (int i = 0; i < peerSnapshot.length; i++) {
+			PeerNode peer = peerSnapshot[i];
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"name\":");
+			appendJsonString(json, peer.getName());
+			json.append(",\"address\":");
+			appendJsonString(json, peer.getAddress().getHostString() + ":" + peer.getAddress().getPort());
+			json.append(",\"up\":").append(peer.isUp()).append(",\"players\":").append(peer.getProxyCount())
+					.append(",\"framesIn\":").append(peer.framesIn.sum()).append(",\"framesOut\":")
+					.append(peer.framesOut.sum()).append(",\"rttMicros\":")
+					.append(peer.getClock().getSmoothedRttNanos() / 1000).append(",\"linkLost\":")
+					.append(peer.getLinkIn().getLost()).append(",\"linkLate\":").append(peer.getLinkIn().getLate())
+					.append('}');
+		}
+		json.append("]}");
+		return json.toString();
+	}
+
+	private static void appendJsonString(StringBuilder json, String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+
+	static class ClientCounters {
+		final LongAdder packetsIn = new LongAdder();
+		final LongAdder bytesIn = new LongAdder();
+		final LongAdder packetsOut = new LongAdder();
+		final LongAdder bytesOut = new LongAdder();
+		final LongAdder throttledDrops = new LongAdder();
+		final LongAdder throttledCoalesced = new LongAdder();
+		final LongAdder controllersCoalesced = new LongAdder();
+	}
+}
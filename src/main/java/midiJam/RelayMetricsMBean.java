@@ -0,0 +1,40 @@
+package midiJam;
+
+public interface RelayMetricsMBean {
+
+	long getPacketsReceived();
+
+	long getBytesReceived();
+
+	long getDatagramsSent();
+
+	long getBytesSent();
+
+	double getPacketsPerSecond();
+
+	double getDatagramsSentPerSecond();
+
+	double getAverageFanOut();
+
+	int getConnectedClients();
+
+	int getRooms();
+
+	long getMidiLatencyP50Micros();
+
+	long getMidiLatencyP99Micros();
+
+	long getMidiLatencyMaxMicros();
+
+	long getReliableRetransmits();
+
+	long getReliableGiveUps();
+
+	long getThrottledDrops();
+
+	long getThrottledCoalesced();
+
+	long getControllersCoalesced();
+
+	long getDirectSkipped();
+}
@@ -0,0 +1,51 @@
+package midiJam;
+
+import java.util.function.IntConsumer;
+
+// Receiving side of one reliable link. Frames are delivered as soon as they
+// arrive, in any order; this only filters retransmitted duplicates and reports
+// newly noticed gaps so the sender can resend them without waiting for its
+// timeout. Tracks a 64-sequence window above the lowest missing sequence.
+class ReliableReceiver {
+
+	private static final int WINDOW = 64;
+
+	private int base = 1;
+	private long received;
+	// Offset from base of the highest sequence seen so far, or -1 for none.
+	private int highest = -1;
+
+	// Returns false for duplicates and for sequences older than the window.
+	synchronized boolean accept(int sequence, IntConsumer missing) {
+		int offset = (sequence - base) & 0xFFFF;
+		if (offset >= 0x8000) {
+			return false;
+		}
+		if (offset >= WINDOW) {
+			// Too far ahead to track the gap; everything before it is written off.
+			base = sequence;
+			received = 0;
+			highest = -1;
+			offset = 0;
+		}
+		long bit = 1L << offset;
+		if ((received & bit) != 0) {
+			return false;
+		}
+		received |= bit;
+
+		for (int i = highest + 1; i < offset; i++) {
+			if ((received & (1L << i)) == 0) {
+				missing.accept((base + i) & 0xFFFF);
+			}
+		}
+		highest = Math.max(highest, offset);
+
+		while ((received & 1) != 0) {
+			received >>>= 1;
+			base = (base + 1) & 0xFFFF;
+			highest--;
+		}
+		return true;
+	}
+}
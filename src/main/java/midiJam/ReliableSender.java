@@ -0,0 +1,105 @@
+package midiJam;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+// Sending side of one reliable link. Each reliable frame gets the next link
+// sequence and a copy is kept until it is ACKed, NACKed into a retransmit, or
+// has been retried MAX_RETRIES times. The window is small and fixed: if it
+// wraps onto a frame that is still unacknowledged, that frame is given up.
+class ReliableSender {
+
+	static final int WINDOW = 64;
+	static final int MAX_RETRIES = 5;
+	private static final int SLOT_SIZE = 16;
+
+	private final byte[][] frames = new byte[WINDOW][SLOT_SIZE];
+	private final int[] lengths = new int[WINDOW];
+	private final int[] sequences = new int[WINDOW];
+	private final long[] sentAt = new long[WINDOW];
+	private final int[] retries = new int[WINDOW];
+	private final boolean[] pending = new boolean[WINDOW];
+	private int nextSequence = 1;
+	private int giveUps;
+
+	// Stamps the next link sequence into the frame and keeps a copy of it.
+	synchronized void track(ByteBuffer frame, long now) {
+		int sequence = nextSequence;
+		nextSequence = (nextSequence + 1) & 0xFFFF;
+		MidiProtocol.setReliableSequence(frame, sequence);
+
+		int slot = sequence % WINDOW;
+		if (pending[slot]) {
+			giveUps++;
+		}
+		int length = Math.min(frame.limit(), SLOT_SIZE);
+		frame.get(0, frames[slot], 0, length);
+		lengths[slot] = length;
+		sequences[slot] = sequence;
+		sentAt[slot] = now;
+		retries[slot] = 0;
+		pending[slot] = true;
+	}
+
+	synchronized void ack(int sequence) {
+		int slot = sequence % WINDOW;
+		if (pending[slot] && sequences[slot] == sequence) {
+			pending[slot] = false;
+		}
+	}
+
+	// Resends a frame the receiver reported missing, if it is still held.
+	synchronized boolean nack(int sequence, long now, ByteBuffer out) {
+		int slot = sequence % WINDOW;
+		if (!pending[slot] || sequences[slot] != sequence) {
+			return false;
+		}
+		return retry(slot, now, out);
+	}
+
+	// Hands every frame that has waited longer than rtoNanos to the consumer and
+	// returns how many were resent.
+	synchronized int retransmitDue(long now, long rtoNanos, ByteBuffer out, Consumer<ByteBuffer> send) {
+		int resent = 0;
+		for (int slot = 0; slot < WINDOW; slot++) {
+			if (pending[slot] && now - sentAt[slot] >= rtoNanos && retry(slot, now, out)) {
+				send.accept(out);
+				resent++;
+			}
+		}
+		return resent;
+	}
+
+	// When the oldest unacknowledged frame is due for a retransmit at rtoNanos;
+	// Long.MAX_VALUE if nothing is waiting.
+	synchronized long nextDueNanos(long rtoNanos) {
+		long next = Long.MAX_VALUE;
+		for (int slot = 0; slot < WINDOW; slot++) {
+			if (pending[slot]) {
+				next = Math.min(next, sentAt[slot] + rtoNanos);
+			}
+		}
+		return next;
+	}
+
+	// Returns the number of frames abandoned since the last call.
+	synchronized int takeGiveUps() {
+		int count = giveUps;
+		giveUps = 0;
+		return count;
+	}
+
+	private boolean retry(int slot, long now, ByteBuffer out) {
+		if (retries[slot] >= MAX_RETRIES) {
+			pending[slot] = false;
+			giveUps++;
+			return false;
+		}
+		retries[slot]++;
+		sentAt[slot] = now;
+		out.clear();
+		out.put(frames[slot], 0, lengths[slot]);
+		out.flip();
+		return true;
+	}
+}
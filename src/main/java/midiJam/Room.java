@@ -0,0 +1,118 @@
+package midiJam;
+
+import java.util.BitSet;
+
+class Room {
+
+	static final String DEFAULT_ROOM = "main";
+	static final int MAX_NAME_LENGTH = 32;
+
+	private static final ClientInfo[] NO_RECIPIENTS = new ClientInfo[0];
+
+	private final String name;
+	private final ClientRegistry clients = new ClientRegistry();
+	private final MuteMatrix muteMatrix = new MuteMatrix();
+	private final BitSet usedSlots = new BitSet();
+	private long rosterEpoch;
+
+	Room(String name) {
+		this.name = name;
+	}
+
+	static String sanitizeName(String requested) {
+		if (requested == null) {
+			return DEFAULT_ROOM;
+		}
+		String name = requested.trim().replaceAll("[:;,=\\s]", "");
+		if (name.isEmpty()) {
+			return DEFAULT_ROOM;
+		}
+		return name.length() > MAX_NAME_LENGTH ? name.substring(0, MAX_NAME_LENGTH) : name;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	ClientRegistry getClients() {
+		return clients;
+	}
+
+	// Every membership change bumps the roster epoch. Clients apply deltas in
+	// epoch order and ask for a full roster when they notice a gap.
+	synchronized long getRosterEpoch() {
+		return rosterEpoch;
+	}
+
+	synchronized long join(ClientInfo client) {
+		int slot = usedSlots.nextClearBit(0);
+		usedSlots.set(slot);
+		muteMatrix.ensureCapacity(slot + 1);
+		muteMatrix.clearSlot(slot);
+		client.setRoomSlot(slot);
+		clients.add(client);
+		updateRecipients();
+		return ++rosterEpoch;
+	}
+
+	synchronized long leave(ClientInfo client) {
+		if (clients.remove(client.getId()) == null) {
+			return rosterEpoch;
+		}
+		muteMatrix.clearSlot(client.getRoomSlot());
+		usedSlots.clear(client.getRoomSlot());
+		client.setRecipients(NO_RECIPIENTS);
+		updateRecipients();
+		return ++rosterEpoch;
+	}
+
+	synchronized long rename(ClientInfo client, String name) {
+		client.setName(name);
+		return ++rosterEpoch;
+	}
+
+	boolean isEmpty() {
+		return clients.size() == 0;
+	}
+
+	synchronized boolean mute(int muterId, int mutedId) {
+		ClientInfo muter = clients.get(muterId);
+		ClientInfo muted = clients.get(mutedId);
+		if (muter == null || muted == null) {
+			return false;
+		}
+		muteMatrix.set(muter.getRoomSlot(), muted.getRoomSlot());
+		updateRecipients();
+		return true;
+	}
+
+	synchronized boolean unmute(int unmuterId, int unmutedId) {
+		ClientInfo unmuter = clients.get(unmuterId);
+		ClientInfo unmuted = clients.get(unmutedId);
+		if (unmuter == null || unmuted == null) {
+			return false;
+		}
+		muteMatrix.clear(unmuter.getRoomSlot(), unmuted.getRoomSlot());
+		updateRecipients();
+		return true;
+	}
+
+	// Rebuilds every member's fan-out list so that forwarding a note is a plain
+	// walk over an array: everyone in the room except the sender and the members
+	// that muted it.
+	private void updateRecipients() {
+		ClientInfo[] members = clients.snapshot();
+		ClientInfo[] scratch = new ClientInfo[members.length];
+		for (ClientInfo sender : members) {
+			int count = 0;
+			for (ClientInfo recipient : members) {
+				if (recipient != sender && !muteMatrix.isSet(recipient.getRoomSlot(), sender.getRoomSlot())) {
+					scratch[count++] = recipient;
+				}
+			}
+			ClientInfo[] recipients = new ClientInfo[count];
+			System.arraycopy(scratch, 0, recipients, 0, count);
+			sender.setRecipients(recipients);
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package midiJam;
+
+import java.util.Locale;
+
+// Loss, reorder and duplicate accounting for one sender's 16-bit sequence
+// numbers. A 64-bit bitmap remembers which of the last 64 sequences up to the
+// highest one seen have arrived: a sequence is only counted lost once it slides
+// out of that window, so reordering within the window is not mistaken for
+// loss. Anything older than the window is too late to play and is dropped.
+//
+// Sequences the server reports as skipped are marked in the same window
+// without counting as received, so rate limiting and controller thinning are
+// not mistaken for loss. A skipped sequence that arrives after all is a value
+// the server held back, and is taken without counting as reordered.
+class SequenceTracker {
+
+	static final int WINDOW = 64;
+
+	private boolean started;
+	private int highest;
+	// Bit i is set when sequence (highest - i) has arrived or was skipped.
+	private long window;
+	// Bit i is set when sequence (highest - i) was skipped and has not arrived.
+	private long skippedWindow;
+
+	private long received;
+	private long lost;
+	private long reordered;
+	private long duplicates;
+	private long late;
+	private long recovered;
+	private long skipped;
+
+	// Returns false for duplicates and for sequences older than the window.
+	synchronized boolean accept(int sequence) {
+		return accept(sequence, false);
+	}
+
+	// The same as accept for an event rebuilt from another frame's journal,
+	// except that it is counted as recovered and that journal entries already
+	// seen are expected rather than counted as duplicates. Nothing is recovered
+	// before the first frame: those events predate this receiver.
+	synchronized boolean recover(int sequence) {
+		return started && accept(sequence, true);
+	}
+
+	// True if the sequence is known to have arrived already. Sequences older than
+	// the window are unknown and report false.
+	synchronized boolean hasSeen(int sequence) {
+		if (!started) {
+			return false;
+		}
+		int behind = (highest - sequence) & 0xFFFF;
+		return behind < WINDOW && (window & ~skippedWindow & (1L << behind)) != 0;
+	}
+
+	// Marks the sequences a SKIP frame lists, oldest first. Nothing is skipped
+	// before the first frame: those sequences were never expected.
+	synchronized void skip(int newest, long mask) {
+		if (!started) {
+			return;
+		}
+		for (int i = WINDOW - 1; i >= 0; i--) {
+			if ((mask & (1L << i)) != 0) {
+				markSkipped((newest - i) & 0xFFFF);
+			}
+		}
+	}
+
+	private void markSkipped(int sequence) {
+		int ahead = (sequence - highest) & 0xFFFF;
+		if (ahead != 0 && ahead < 0x8000) {
+			slide(ahead);
+			window |= 1;
+			skippedWindow |= 1;
+			highest = sequence;
+			skipped++;
+			return;
+		}
+		int behind = (highest - sequence) & 0xFFFF;
+		long bit = 1L << behind;
+		if (behind < WINDOW && (window & bit) == 0) {
+			window |= bit;
+			skippedWindow |= bit;
+			skipped++;
+		}
+	}
+
+	// Moves the window ahead, counting whatever slides out unseen as lost.
+	private void slide(int ahead) {
+		if (ahead >= WINDOW) {
+			lost += WINDOW - Long.bitCount(window) + (ahead - WINDOW);
+			window = 0;
+			skippedWindow = 0;
+		} else {
+			lost += ahead - Long.bitCount(window >>> (WINDOW - ahead));
+			window <<= ahead;
+			skippedWindow <<= ahead;
+		}
+	}
+
+	private boolean accept(int sequence, boolean recovery) {
+		if (!started) {
+			started = true;
+			highest = sequence;
+			// Nothing before the first sequence is expected.
+			window = -1L;
+			received++;
+			return true;
+		}
+
+		int distance = (highest - sequence) & 0xFFFF;
+		if (distance < WINDOW && (skippedWindow & (1L << distance)) != 0) {
+			// Held back by the server and sent after newer frames. A journal entry
+			// for it is not played: the server chose not to relay that value.
+			if (recovery) {
+				return false;
+			}
+			skippedWindow &= ~(1L << distance);
+			skipped--;
+			received++;
+			return true;
+		}
+
+		int ahead = (sequence - highest) & 0xFFFF;
+		if (ahead == 0) {
+			if (!recovery) {
+				duplicates++;
+			}
+			return false;
+		}
+		if (ahead < 0x8000) {
+			slide(ahead);
+			window |= 1;
+			highest = sequence;
+			received++;
+			if (recovery) {
+				recovered++;
+			}
+			return true;
+		}
+
+		int behind = 0x10000 - ahead;
+		if (behind >= WINDOW) {
+			if (!recovery) {
+				late++;
+			}
+			return false;
+		}
+		long bit = 1L << behind;
+		if ((window & bit) != 0) {
+			if (!recovery) {
+				duplicates++;
+			}
+			return false;
+		}
+		window |= bit;
+		if (recovery) {
+			recovered++;
+		} else {
+			reordered++;
+		}
+		received++;
+		return true;
+	}
+
+	synchronized long getReceived() {
+		return received;
+	}
+
+	synchronized long getLost() {
+		return lost;
+	}
+
+	synchronized long getReordered() {
+		return reordered;
+	}
+
+	synchronized long getDuplicates() {
+		return duplicates;
+	}
+
+	synchronized long getLate() {
+		return late;
+	}
+
+	synchronized long getRecovered() {
+		return recovered;
+	}
+
+	// Sequences the server reported as skipped that have not turned up since.
+	synchronized long getSkipped() {
+		return skipped;
+	}
+
+	synchronized double getLossRatio() {
+		long expected = received + lost;
+		return expected == 0 ? 0 : (double) lost / expected;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(Locale.ROOT,
+				"received=%d lost=%d (%.2f%%) recovered=%d reordered=%d duplicates=%d late=%d skipped=%d", received,
+				lost, getLossRatio() * 100, recovered, reordered, duplicates, late, skipped);
+	}
+}
@@ -0,0 +1,120 @@
+package midiJam;
+
+import java.awt.BorderLayout;
+import java.util.Locale;
+
+import javax.swing.BorderFactory;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+
+// Status panel of the server window. The logger's drain thread appends lines to
+// a bounded ring and the EDT repaints from it at a fixed frame rate, so a burst
+// of log output costs one text update per frame however many lines it has.
+// Above the log a counters line rolls the relay traffic up into rates instead
+// of a line per note.
+@SuppressWarnings("serial")
+class ServerStatusView extends JPanel {
+
+	private static final int MAX_LINES = 25;
+	private static final int FRAME_MILLIS = 100;
+	private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+
+	private final JLabel countersLabel = new JLabel(" ");
+	private final JTextArea logArea = new JTextArea();
+	private final Timer repaintTimer = new Timer(FRAME_MILLIS, e -> refresh());
+
+	// Guarded by this; the oldest line is overwritten once the ring is full.
+	private final String[] lines = new String[MAX_LINES];
+	private int nextLine;
+	private int lineCount;
+	private boolean dirty;
+
+	private volatile RelayMetrics metrics;
+	// EDT only.
+	private long rateWindowStart = System.nanoTime();
+	private long rateWindowEvents = -1;
+
+	ServerStatusView() {
+		super(new BorderLayout());
+		logArea.setEditable(false);
+		countersLabel.setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
+		add(countersLabel, BorderLayout.NORTH);
+		add(new JScrollPane(logArea), BorderLayout.CENTER);
+		setBorder(BorderFactory.createTitledBorder("Status"));
+	}
+
+	void setMetrics(RelayMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	void start() {
+		repaintTimer.start();
+	}
+
+	void stop() {
+		repaintTimer.stop();
+	}
+
+	// Called by the logger's drain thread with one or more newline separated lines.
+	synchronized void append(String batch) {
+		int start = 0;
+		while (start <= batch.length()) {
+			int end = batch.indexOf('\n', start);
+			if (end < 0) {
+				end = batch.length();
+			}
+			lines[nextLine] = batch.substring(start, end);
+			nextLine = (nextLine + 1) % MAX_LINES;
+			lineCount = Math.min(lineCount + 1, MAX_LINES);
+			start = end + 1;
+		}
+		dirty = true;
+	}
+
+	private void refresh() {
+		String text = null;
+		synchronized (this) {
+			if (dirty) {
+				StringBuilder builder = new StringBuilder();
+				int first = (nextLine - lineCount + MAX_LINES) % MAX_LINES;
+				for (int i = 0; i < lineCount; i++) {
+					builder.append(lines[(first + i) % MAX_LINES]).append('\n');
+				}
+				text = builder.toString();
+				dirty = false;
+			}
+		}
+		if (text != null) {
+			logArea.setText(text);
+			logArea.setCaretPosition(text.length());
+		}
+		updateCounters();
+	}
+
+	private void updateCounters() {
+		RelayMetrics metrics = this.metrics;
+		if (metrics == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		long events = metrics.getMidiEventsReceived();
+		if (rateWindowEvents < 0) {
+			rateWindowStart = now;
+			rateWindowEvents = events;
+		}
+		long elapsed = now - rateWindowStart;
+		if (elapsed < RATE_WINDOW_NANOS) {
+			return;
+		}
+		long perSecond = Math.round((events - rateWindowEvents) * 1e9 / elapsed);
+		rateWindowStart = now;
+		rateWindowEvents = events;
+
+		int clients = metrics.getConnectedClients();
+		countersLabel.setText(String.format(Locale.ROOT, "%,d MIDI events/s from %d %s", perSecond, clients,
+				clients == 1 ? "client" : "clients"));
+	}
+}
@@ -0,0 +1,24 @@
+package midiJam;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+interface ServerTransport {
+
+	ByteBuffer allocateFrame(int capacity);
+
+	// Returns null if nothing arrived within the receive timeout.
+	InetSocketAddress receive(ByteBuffer frame) throws IOException;
+
+	// 0 waits forever.
+	void setReceiveTimeout(int millis) throws IOException;
+
+	void send(ByteBuffer frame, InetSocketAddress target) throws IOException;
+
+	boolean isOpen();
+
+	int getLocalPort();
+
+	void close();
+}
@@ -1,36 +1,100 @@
 package midiJam;
 
-import javax.swing.JTextArea;
-
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ServerUtils {
 	private static final int MAX_ID = 9999;
 	final static String PORT_FILE_NAME = "port.config";
-	DatagramSocket serverSocket;
+	ServerTransport transport;
 	Thread serverThread;
-	private Set<Integer> assignedIds = new HashSet<>();
-	Map<Integer, ClientInfo> connectedClients = new HashMap<>();
-	private Timer pingTimer;
-	private static final long CLIENT_TIMEOUT_MS = 10000;
+	String relayEngine = "socket";
+	int receiveBufferSize;
+	int sendBufferSize;
+	long batchWindowMicros;
+	FloodGuard.Limits floodLimits = FloodGuard.Limits.defaults();
+	int coalesceIntervalMillis = 5;
+	int coalesceMaxRate = 200;
+	private EgressBatcher egressBatcher;
+	private final ClientIdAllocator clientIds = new ClientIdAllocator(MAX_ID);
+	final ClientRegistry connectedClients = new ClientRegistry();
+	final Map<String, Room> rooms = new ConcurrentHashMap<>();
+	final RelayMetrics metrics = new RelayMetrics(connectedClients, rooms);
+	int statsPort;
+	String nodeName;
+	final List<InetSocketAddress> peerAddresses = new ArrayList<>();
+	// Fixed once the server starts; looked up for every packet.
+	private final Map<InetSocketAddress, PeerNode> peers = new HashMap<>();
+	private PeerNode[] peerList = new PeerNode[0];
+	private final AtomicLong peerRosterSync = new AtomicLong();
+	Path sessionJournalPath;
+	private SessionJournal sessionJournal;
+	private StatsServer statsServer;
+	// A client that has been silent this long is pinged, and pinged again as
+	// often while it stays silent; one that keeps sending only gets a ping every
+	// RTT_REFRESH_NANOS, to keep its round trip current.
+	private static final long IDLE_PING_NANOS = 3_000_000_000L;
+	private static final long CLIENT_TIMEOUT_NANOS = 10_000_000_000L;
+	private static final long RTT_REFRESH_NANOS = 30_000_000_000L;
+	// Rooms get every member's round trip this often (clients drop players they
+	// stop hearing about).
+	private static final long PING_INFO_INTERVAL_NANOS = 5_000_000_000L;
+	private static final int LIVENESS_WHEEL_SLOTS = 1024;
+	private static final long LIVENESS_TICK_NANOS = 10_000_000L;
+	private static final long HOUSEKEEPING_INTERVAL_NANOS = 5_000_000_000L;
+	private static final long MIN_RTO_NANOS = 20_000_000L;
+	private static final long DEFAULT_RTO_NANOS = 100_000_000L;
+	private static final int ROSTER_PAGE_SIZE = 400;
+	private static final long PEER_TIMEOUT_NANOS = 15_000_000_000L;
+	private static final long PEER_ROSTER_REQUEST_INTERVAL_NANOS = 1_000_000_000L;
+	// Room for a client frame wrapped for a peer link.
+	private static final int MAX_FRAME_SIZE = 512 + MidiProtocol.HEADER_SIZE;
+	private ByteBuffer relayFrame;
+	private ByteBuffer legacyFrame;
+	private ByteBuffer controlFrame;
+	private ByteBuffer retransmitFrame;
+	private final byte[] textBuffer = new byte[512];
+	private final CharsetEncoder textEncoder = Charset.defaultCharset().newEncoder();
+	private long lastKernelReceiveDrops;
+	// Senders with controller values held back by their FloodGuard or pending in
+	// their coalescer. Relay thread only.
+	private final List<ClientInfo> holdingSenders = new ArrayList<>();
+	private final List<ClientInfo> coalescingSenders = new ArrayList<>();
+	private ByteBuffer coalescedFrame;
+	private ByteBuffer skipFrame;
+	private ByteBuffer peerFrame;
+	private ByteBuffer linkFrame;
+	// Per-client liveness deadlines. Relay thread only.
+	private TimingWheel<ClientInfo> liveness;
+	private long lastHousekeepingNanos;
+	// When the earliest unacknowledged reliable frame is due for a retransmit.
+	// Relay thread only.
+	private long nextRetransmitNanos = Long.MAX_VALUE;
 
 	Logger logger;
 
-	public ServerUtils(boolean isGui, JTextArea statusArea) {
+	public ServerUtils(boolean isGui, ServerStatusView statusView) {
 		if (isGui) {
-			this.logger = new Logger(statusArea);
+			this.logger = new Logger(statusView::append);
+			statusView.setMetrics(metrics);
 		} else {
 			this.logger = new Logger();
 		}
@@ -67,220 +131,963 @@ public class ServerUtils {
 		}
 	}
 
+	void openTransport(int port) throws IOException {
+		if ("nio".equals(relayEngine)) {
+			NioRelayEngine engine = new NioRelayEngine(port, receiveBufferSize, sendBufferSize);
+			logger.log("NIO relay engine started. Receive buffer: " + engine.getReceiveBufferSize()
+					+ " bytes, Send buffer: " + engine.getSendBufferSize() + " bytes");
+			transport = engine;
+		} else {
+			transport = new SocketTransport(port);
+		}
+	}
+
 	void startServerThread() {
+		if (batchWindowMicros > 0) {
+			egressBatcher = new EgressBatcher(transport, logger, metrics, batchWindowMicros);
+			egressBatcher.start();
+			logger.log("Egress batching enabled. Window: " + batchWindowMicros + "us");
+		}
+		startMetrics();
+		startSessionJournal();
+		startPeers();
 		serverThread = new Thread(() -> {
-			byte[] buffer = new byte[512];
-			while (!serverSocket.isClosed()) {
-				handleClientRequest(buffer);
+			ByteBuffer frame = transport.allocateFrame(MAX_FRAME_SIZE);
+			allocateRelayBuffers();
+			int receiveTimeout = -1;
+			while (transport.isOpen()) {
+				int timeout = relayWaitMillis(System.nanoTime());
+				if (timeout != receiveTimeout) {
+					try {
+						transport.setReceiveTimeout(timeout);
+						receiveTimeout = timeout;
+					} catch (IOException e) {
+						logger.warn("Failed to set the receive timeout; held-back events and liveness checks wait "
+								+ "for the next packet: " + e.getMessage());
+					}
+				}
+				relayNext(frame);
 			}
 		});
 		serverThread.start();
 	}
 
+	// Handles the next packet, if one arrives within the receive timeout, then
+	// whatever else has come due.
+	void relayNext(ByteBuffer frame) {
+		handleClientRequest(frame);
+		long now = System.nanoTime();
+		liveness.advance(now);
+		if (now - lastHousekeepingNanos >= HOUSEKEEPING_INTERVAL_NANOS) {
+			lastHousekeepingNanos = now;
+			pingPeers();
+			checkKernelReceiveDrops();
+			metrics.sample();
+		}
+		if (!coalescingSenders.isEmpty()) {
+			releaseCoalescedControllers();
+		}
+		if (!holdingSenders.isEmpty()) {
+			releaseHeldEvents();
+		}
+		if (now >= nextRetransmitNanos) {
+			retransmitDueFrames(now);
+		}
+	}
+
+	// How long the relay thread may wait for a packet before something else is
+	// due: a held-back or pending controller value, a reliable retransmit, a
+	// liveness check or housekeeping. An idle server sleeps until then instead of polling.
+	private int relayWaitMillis(long now) {
+		long next = Math.min(lastHousekeepingNanos + HOUSEKEEPING_INTERVAL_NANOS, liveness.nextDeadline());
+		next = Math.min(next, nextRetransmitNanos);
+		for (int i = 0; i < coalescingSenders.size(); i++) {
+			next = Math.min(next, coalescingSenders.get(i).getCoalescer().nextReleaseNanos());
+		}
+		for (int i = 0; i < holdingSenders.size(); i++) {
+			next = Math.min(next, holdingSenders.get(i).getFloodGuard().nextReleaseNanos(now));
+		}
+		// Rounded up, and never 0, which would wait forever.
+		long millis = (next - now + 999_999) / 1_000_000;
+		return (int) Math.max(1, Math.min(millis, HOUSEKEEPING_INTERVAL_NANOS / 1_000_000));
+	}
+
+	private void startPeers() {
+		if (nodeName == null) {
+			nodeName = "node-" + transport.getLocalPort();
+		}
+		for (InetSocketAddress address : peerAddresses) {
+			peers.put(address, new PeerNode(address));
+			logger.log("Federating with peer node at " + address.getHostString() + ":" + address.getPort()
+					+ " as " + nodeName);
+		}
+		peerList = peers.values().toArray(new PeerNode[0]);
+		metrics.setPeers(peerList);
+	}
+
+	private void startMetrics() {
+		try {
+			metrics.register();
+		} catch (IllegalStateException e) {
+			logger.warn(e.getMessage());
+		}
+		if (statsPort > 0) {
+			try {
+				statsServer = new StatsServer(statsPort, metrics);
+				statsServer.start();
+				logger.log("Stats available at http://127.0.0.1:" + statsServer.getPort() + "/stats (and /stats.json)");
+			} catch (IOException e) {
+				logger.warn("Failed to start stats endpoint on port " + statsPort + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private void startSessionJournal() {
+		if (sessionJournalPath == null) {
+			return;
+		}
+		try {
+			sessionJournal = new SessionJournal(sessionJournalPath, logger);
+			logger.log("Recording session to " + sessionJournalPath);
+		} catch (IOException e) {
+			logger.warn("Failed to open session journal " + sessionJournalPath + ": " + e.getMessage());
+		}
+	}
+
+	// Scratch frames and the liveness wheel, owned by whichever thread calls
+	// handleClientRequest.
+	void allocateRelayBuffers() {
+		liveness = new TimingWheel<>(LIVENESS_WHEEL_SLOTS, LIVENESS_TICK_NANOS, System.nanoTime(),
+				this::checkLiveness);
+		relayFrame = transport.allocateFrame(512);
+		legacyFrame = transport.allocateFrame(512);
+		controlFrame = transport.allocateFrame(MidiProtocol.RELIABLE_MIDI_FRAME_SIZE);
+		retransmitFrame = transport.allocateFrame(MidiProtocol.RELIABLE_MIDI_FRAME_SIZE);
+		coalescedFrame = transport.allocateFrame(MidiProtocol.RELIABLE_MIDI_FRAME_SIZE);
+		skipFrame = transport.allocateFrame(MidiProtocol.SKIP_FRAME_SIZE);
+		peerFrame = transport.allocateFrame(MAX_FRAME_SIZE);
+		linkFrame = transport.allocateFrame(MAX_FRAME_SIZE);
+	}
+
 	void closeServer() {
-		if (serverSocket != null && !serverSocket.isClosed()) {
+		if (transport != null && transport.isOpen()) {
 
 			broadcastServerShutdown();
 
-			serverSocket.close();
+			if (egressBatcher != null) {
+				egressBatcher.stop();
+			}
+			if (statsServer != null) {
+				statsServer.stop();
+				statsServer = null;
+			}
+			if (sessionJournal != null) {
+				sessionJournal.close();
+				if (sessionJournal.getDroppedCount() > 0) {
+					logger.warn("Session journal dropped " + sessionJournal.getDroppedCount() + " events.");
+				}
+				logger.log("Session saved to " + sessionJournal.getPath());
+				sessionJournal = null;
+			}
+			transport.close();
 			logger.log("Server socket closed.");
 		}
 	}
 
 	private void broadcastServerShutdown() {
-		String shutdownMessage = "SERVER_SHUTDOWN";
-
-		for (ClientInfo client : connectedClients.values()) {
-			sendPacketToClient(shutdownMessage, client);
-		}
+		broadcastToClients("SERVER_SHUTDOWN");
 
 		logger.log("All clients have been notified of server shutdown.");
 
 		connectedClients.clear();
+		rooms.clear();
+		clientIds.reset();
 	}
 
-	void handleClientRequest(byte[] buffer) {
+	void handleClientRequest(ByteBuffer frame) {
 		try {
-			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-			serverSocket.receive(packet);
-			String message = new String(packet.getData(), 0, packet.getLength()).trim();
-			InetAddress clientAddress = packet.getAddress();
-			int clientPort = packet.getPort();
-
-			if (message.startsWith("CONNECT:")) {
-				String[] parts = message.split(":", 2);
-				if (parts.length == 2) {
-					String clientName = parts[1];
-					handleConnectMessage(clientAddress, clientPort, clientName);
-				} else {
-					logger.log("Invalid CONNECT message format.");
+			InetSocketAddress source = transport.receive(frame);
+			if (source == null) {
+				return;
+			}
+			long receivedAt = System.nanoTime();
+			int size = frame.limit();
+			PeerNode peer = peerList.length == 0 ? null : peers.get(source);
+			if (peer != null) {
+				handlePeerMessage(frame, peer, receivedAt);
+				metrics.recordReceive(null, RelayMetrics.MessageType.PEER, size, System.nanoTime() - receivedAt);
+				return;
+			}
+			// The sender is whoever owns the source address. Ids and names carried in
+			// the payload are never trusted.
+			ClientInfo sender = connectedClients.getByAddress(source);
+			if (sender != null) {
+				sender.heard(receivedAt);
+			}
+			RelayMetrics.MessageType type;
+			if (MidiProtocol.isBinary(frame)) {
+				type = RelayMetrics.classify(MidiProtocol.type(frame));
+				if (sender != null) {
+					handleBinaryMessage(frame, sender);
 				}
-			} else if (message.startsWith("DISCONNECT:")) {
-				handleDisconnectMessage(message);
-			} else if (message.startsWith("TEXT:")) {
-				handleTextMessage(message);
-			} else if (message.startsWith("MIDI:")) {
-				handleMidiMessage(message);
-			} else if (message.startsWith("CHORD_KEYS:")) {
-				handleChordKeysMessage(message);
-			} else if (message.startsWith("MUTE:")) {
-				handleMuteMessage(message);
-			} else if (message.startsWith("UNMUTE:")) {
-				handleUnmuteMessage(message);
-			} else if (message.startsWith("PING_RESPONSE:")) {
-				handlePingResponse(message, packet);
 			} else {
-				logger.log("Unknown message type: " + message);
+				String message = readText(frame);
+				type = RelayMetrics.classify(message);
+				handleTextRequest(message, source, sender, receivedAt);
 			}
+			metrics.recordReceive(sender, type, size, System.nanoTime() - receivedAt);
 		} catch (IOException e) {
-			if (!serverSocket.isClosed()) {
-				logger.log("Error: " + e.getMessage());
+			if (transport.isOpen()) {
+				logger.error("Error: " + e.getMessage());
 			}
 		}
 	}
 
-	private void handlePingResponse(String message, DatagramPacket packet) {
-		String[] parts = message.split(":");
-		long sentTime = Long.parseLong(parts[1]);
-		long roundTripTime = System.currentTimeMillis() - sentTime;
+	private void handleTextRequest(String message, InetSocketAddress source, ClientInfo sender,
+			long receivedAt) throws IOException {
+		if (message.startsWith("CONNECT:")) {
+			String[] parts = MidiProtocol.stripOptions(message).split(":", 2);
+			if (parts.length == 2) {
+				if (sender != null) {
+					handleDisconnectMessage(sender);
+				}
+				String clientName = parts[1];
+				handleConnectMessage(source.getAddress(), source.getPort(), clientName, message);
+			} else {
+				logger.warn("Invalid CONNECT message format.");
+			}
+			return;
+		}
 
-		InetAddress clientAddress = packet.getAddress();
-		int clientPort = packet.getPort();
+		if (sender == null) {
+			logger.debug("Ignoring message from unknown address " + source + ": " + message);
+		} else if (isThrottledControl(message) && !admitControl(sender)) {
+			return;
+		} else if (message.startsWith("DISCONNECT:")) {
+			handleDisconnectMessage(sender);
+		} else if (message.startsWith("TEXT:")) {
+			handleTextMessage(message, sender);
+		} else if (message.startsWith("MIDI:")) {
+			handleMidiMessage(message, sender);
+		} else if (message.startsWith("CHORD_KEYS:")) {
+			handleChordKeysMessage(message, sender);
+		} else if (message.startsWith("MUTE:")) {
+			handleMuteMessage(message, sender);
+		} else if (message.startsWith("UNMUTE:")) {
+			handleUnmuteMessage(message, sender);
+		} else if (message.startsWith("PING_RESPONSE:")) {
+			handlePingResponse(message, sender, receivedAt);
+		} else if (message.startsWith("ROSTER_SYNC")) {
+			sendRoster(sender);
+		} else if (message.startsWith("RENAME:")) {
+			handleRenameMessage(message, sender);
+		} else if (message.startsWith("DIRECT:")) {
+			handleDirectMessage(message, sender);
+		} else {
+			logger.warn("Unknown message type: " + message);
+		}
+	}
 
-		for (ClientInfo client : connectedClients.values()) {
-			if (client.getAddress().equals(clientAddress) && client.getPort() == clientPort) {
+	private void handleBinaryMessage(ByteBuffer frame, ClientInfo sender) {
+		if (MidiProtocol.clientId(frame) != sender.getHandle()) {
+			logger.debug("Dropping stale frame for handle " + MidiProtocol.clientId(frame) + " from client "
+					+ sender.getId());
+			return;
+		}
+		MidiProtocol.setClientId(frame, sender.getId());
+		relayBinaryMessage(frame, sender);
+	}
 
-				client.setLastPingTime(System.currentTimeMillis());
+	// The frame already carries the sender's local id. For a proxy it came from
+	// the peer link, where reliable frames are acknowledged per link.
+	private void relayBinaryMessage(ByteBuffer frame, ClientInfo sender) {
+		if (logger.isTraceEnabled()) {
+			traceBinaryMessage(sender, frame);
+		}
 
-				logger.log("Client " + client.getName() + " Ping: " + roundTripTime + "ms");
+		byte type = MidiProtocol.type(frame);
+		boolean hasLegacyClients = sender.getRoom().getClients().getLegacyClientCount() > 0;
+		if (type == MidiProtocol.TYPE_MIDI && MidiProtocol.journalCount(frame) > 0
+				&& MidiProtocol.hasValidJournal(frame)) {
+			recoverJournal(frame, sender, hasLegacyClients);
+		}
+		if ((type == MidiProtocol.TYPE_MIDI || type == MidiProtocol.TYPE_CHORD_KEYS || type == MidiProtocol.TYPE_TEXT)
+				&& !sender.getReceiveSequence().accept(MidiProtocol.sequence(frame))) {
+			logger.debug("Dropping duplicate or late frame " + MidiProtocol.sequence(frame) + " from client "
+					+ sender.getId());
+			return;
+		}
 
-				sendPingToAllClients(client.getId(), client.getName(), roundTripTime);
-				return;
+		switch (type) {
+		case MidiProtocol.TYPE_MIDI:
+			if (MidiProtocol.hasValidJournal(frame)) {
+				relayMidi(frame, sender, hasLegacyClients);
+			}
+			break;
+		case MidiProtocol.TYPE_MIDI_RELIABLE:
+			if (frame.limit() == MidiProtocol.RELIABLE_MIDI_FRAME_SIZE) {
+				handleReliableMidi(frame, sender, hasLegacyClients);
 			}
+			break;
+		case MidiProtocol.TYPE_ACK:
+			sender.getReliableOut().ack(MidiProtocol.sequence(frame));
+			break;
+		case MidiProtocol.TYPE_NACK:
+			if (admitControl(sender) && sender.getReliableOut().nack(MidiProtocol.sequence(frame), System.nanoTime(), controlFrame)) {
+				sendFrameToClient(controlFrame, sender);
+				metrics.recordRetransmits(1);
+			}
+			break;
+		case MidiProtocol.TYPE_CHORD_KEYS:
+			String legacyMessage = hasLegacyClients ? MidiProtocol.chordKeysText(sender.getId(), sender.getName(),
+					MidiProtocol.chordNote(frame), MidiProtocol.chordNoteOn(frame), MidiProtocol.chordName(frame))
+					: null;
+			forwardFrameToClients(frame, legacyMessage, sender);
+			break;
+		case MidiProtocol.TYPE_SKIP:
+			// Only a peer node reports sequences it did not relay; its proxies pass
+			// the marks on to this node's clients.
+			if (sender.isRemote() && frame.limit() == MidiProtocol.SKIP_FRAME_SIZE) {
+				sender.getReceiveSequence().skip(MidiProtocol.sequence(frame), MidiProtocol.skipMask(frame));
+				deliverToClients(frame, null, sender, sender.getRecipients());
+			}
+			break;
+		case MidiProtocol.TYPE_TEXT:
+			String text = MidiProtocol.text(frame);
+			logger.log("TEXT Message from " + sender.getName() + ": " + text);
+			forwardFrameToClients(frame, MidiProtocol.textText(sender.getId(), sender.getName(), text), sender,
+					sender.getRoom().getClients().snapshot());
+			break;
+		default:
+			logger.warn("Unknown binary message type: " + (MidiProtocol.type(frame) & 0xFF));
+		}
+	}
+
+	private void relayMidi(ByteBuffer frame, ClientInfo sender, boolean hasLegacyClients) {
+		if (coalesce(frame, sender) && admit(frame, sender)) {
+			deliverMidi(frame, sender, hasLegacyClients);
 		}
 	}
 
-	private void sendPingToAllClients(int clientId, String clientName, long ping) {
-		String pingMessage = "PING_INFO:" + clientId + ":" + clientName + ":" + ping + "ms";
-		for (ClientInfo client : connectedClients.values()) {
-			sendPacketToClient(pingMessage, client);
+	private void deliverMidi(ByteBuffer frame, ClientInfo sender, boolean hasLegacyClients) {
+		// Clients without the reliable option still get their state-critical
+		// events delivered reliably on the second hop. The reliable trailer takes
+		// the place of any journal.
+		if (MidiProtocol.isStateCritical(MidiProtocol.midiStatus(frame), MidiProtocol.midiData1(frame),
+				MidiProtocol.midiData2(frame))) {
+			MidiProtocol.setReliable(frame, true);
 		}
+		String legacyMessage = hasLegacyClients ? MidiProtocol.midiText(sender.getId(), sender.getName(),
+				MidiProtocol.midiStatus(frame), MidiProtocol.midiChannel(frame), MidiProtocol.midiData1(frame),
+				MidiProtocol.midiData2(frame)) : null;
+		deliverToClients(frame, legacyMessage, sender, sender.getRecipients());
 	}
 
-	void startPingTimer() {
-		pingTimer = new Timer(true);
-		pingTimer.scheduleAtFixedRate(new TimerTask() {
-			@Override
-			public void run() {
-				pingClients();
-				checkForInactiveClients();
+	// Charges a relayed frame to its sender's budget. Returns false if the frame
+	// was dropped or held back; either way it is counted.
+	private boolean admit(ByteBuffer frame, ClientInfo sender) {
+		FloodGuard guard = sender.getFloodGuard();
+		boolean wasHolding = guard.isHolding();
+		boolean mustDeliver = MidiProtocol.isMidi(frame)
+				&& (MidiProtocol.midiStatus(frame) == 0x80
+						|| MidiProtocol.midiStatus(frame) == 0x90 && MidiProtocol.midiData2(frame) == 0)
+				&& sender.getChannelState().isNoteHeld(MidiProtocol.midiChannel(frame), MidiProtocol.midiData1(frame));
+		FloodGuard.Decision decision = guard.admit(frame, mustDeliver, System.nanoTime());
+		if (decision == FloodGuard.Decision.FORWARD) {
+			if (MidiProtocol.type(frame) == MidiProtocol.TYPE_MIDI && frame.limit() > MidiProtocol.MIDI_FRAME_SIZE
+					&& (guard.isThrottledNear(MidiProtocol.sequence(frame))
+							|| sender.getCoalescer().isAbsorbedNear(MidiProtocol.sequence(frame)))) {
+				frame.limit(MidiProtocol.MIDI_FRAME_SIZE);
 			}
-		}, 0, 5000);
+			return true;
+		}
+		skip(frame, sender);
+		FloodGuard.TrafficClass trafficClass = FloodGuard.classify(frame);
+		metrics.recordThrottled(sender, trafficClass, decision);
+		if (decision == FloodGuard.Decision.HOLD && !wasHolding) {
+			holdingSenders.add(sender);
+		}
+		reportThrottling(sender, trafficClass, decision);
+		return false;
+	}
 
+	// Runs a MIDI frame through its sender's controller coalescer. Returns false
+	// if the frame was kept back as a pending value. Anything that must stay in
+	// order first flushes what is pending for the sender.
+	private boolean coalesce(ByteBuffer frame, ClientInfo sender) {
+		ControllerCoalescer coalescer = sender.getCoalescer();
+		if (!coalescer.isEnabled()) {
+			return true;
+		}
+		boolean hadPending = coalescer.hasPending();
+		long now = System.nanoTime();
+		if (!coalescer.offer(frame, now)) {
+			skip(frame, sender);
+			if (!hadPending && !coalescingSenders.contains(sender)) {
+				coalescingSenders.add(sender);
+			}
+			return false;
+		}
+		if (hadPending
+				&& !ControllerCoalescer.isCoalescable(MidiProtocol.midiStatus(frame), MidiProtocol.midiData1(frame))) {
+			releaseCoalesced(sender, true, now);
+		}
+		return true;
 	}
 
-	private void checkForInactiveClients() {
-		long currentTime = System.currentTimeMillis();
+	private void releaseCoalesced(ClientInfo sender, boolean force, long now) {
+		ControllerCoalescer coalescer = sender.getCoalescer();
+		boolean hasLegacyClients = sender.getRoom().getClients().getLegacyClientCount() > 0;
+		while (coalescer.releaseNext(now, force, coalescedFrame, sender.getId())) {
+			if (admit(coalescedFrame, sender)) {
+				deliverMidi(coalescedFrame, sender, hasLegacyClients);
+			}
+		}
+		metrics.recordCoalesced(sender, coalescer.takeCoalescedCount());
+	}
+
+	// Sends the pending controller values whose spacing is up.
+	private void releaseCoalescedControllers() {
+		long now = System.nanoTime();
+		for (int i = coalescingSenders.size() - 1; i >= 0; i--) {
+			ClientInfo sender = coalescingSenders.get(i);
+			if (connectedClients.get(sender.getId()) != sender) {
+				sender.getCoalescer().clear();
+			} else {
+				releaseCoalesced(sender, false, now);
+			}
+			if (!sender.getCoalescer().hasPending()) {
+				coalescingSenders.remove(i);
+			}
+		}
+	}
+
+	// Marks a frame that was dropped, replaced or held back, so its recipients do
+	// not count it as lost.
+	private void skip(ByteBuffer frame, ClientInfo sender) {
+		if (!isSequenced(MidiProtocol.type(frame))) {
+			return;
+		}
+		SkippedSequences skipped = sender.getSkippedSequences();
+		if (!skipped.add(MidiProtocol.sequence(frame))) {
+			sendSkipped(sender);
+			skipped.add(MidiProtocol.sequence(frame));
+		}
+	}
+
+	// Sends the sender's pending marks ahead of a frame they have to precede: a
+	// held value relayed behind newer frames, or one far enough ahead of the
+	// oldest mark that receivers would otherwise count it lost.
+	private void reportSkipped(int sequence, ClientInfo sender) {
+		SkippedSequences skipped = sender.getSkippedSequences();
+		if (skipped.hasPending() && (skipped.isBehindRelayed(sequence) || skipped.isDue(sequence))) {
+			sendSkipped(sender);
+		}
+		skipped.relayed(sequence);
+	}
+
+	private void sendSkipped(ClientInfo sender) {
+		sender.getSkippedSequences().writeFrame(skipFrame, sender.getId());
+		deliverToClients(skipFrame, null, sender, sender.getRecipients());
+	}
 
-//		logger.log("Checking for inactive clients at time: " + currentTime);
+	// Frame types that carry the sender's own sequence number.
+	private static boolean isSequenced(byte type) {
+		return type == MidiProtocol.TYPE_MIDI || type == MidiProtocol.TYPE_MIDI_RELIABLE
+				|| type == MidiProtocol.TYPE_CHORD_KEYS || type == MidiProtocol.TYPE_TEXT;
+	}
 
-		for (Integer clientId : connectedClients.keySet()) {
-			ClientInfo client = connectedClients.get(clientId);
-			long lastPingTime = client.getLastPingTime();
-			long timeSinceLastPing = currentTime - lastPingTime;
+	private boolean isThrottledControl(String message) {
+		return message.startsWith("RENAME:") || message.startsWith("MUTE:") || message.startsWith("UNMUTE:")
+				|| message.startsWith("ROSTER_SYNC") || message.startsWith("DIRECT:");
+	}
 
-//			logger.log("Client " + clientId + " - Last Ping Time: " + lastPingTime);
-//			logger.log("Client " + clientId + " - Time Since Last Ping: " + timeSinceLastPing + "ms");
-//			logger.log("Client " + clientId + " - Timeout Threshold: " + CLIENT_TIMEOUT_MS + "ms");
+	private boolean admitControl(ClientInfo sender) {
+		FloodGuard guard = sender.getFloodGuard();
+		if (guard.admit(FloodGuard.TrafficClass.CONTROL, System.nanoTime()) == FloodGuard.Decision.FORWARD) {
+			return true;
+		}
+		metrics.recordThrottled(sender, FloodGuard.TrafficClass.CONTROL, FloodGuard.Decision.DROP);
+		reportThrottling(sender, FloodGuard.TrafficClass.CONTROL, FloodGuard.Decision.DROP);
+		return false;
+	}
 
-			if (timeSinceLastPing > CLIENT_TIMEOUT_MS) {
-//				logger.log("Client " + clientId + " has been disconnected due to inactivity. Time Since Last Ping: "
-//						+ timeSinceLastPing + "ms");
-				handleDisconnectClient(clientId);
+	private void reportThrottling(ClientInfo sender, FloodGuard.TrafficClass trafficClass,
+			FloodGuard.Decision decision) {
+		if (sender.getFloodGuard().shouldReport(trafficClass)) {
+			logger.warn("Client " + sender.getId() + " (" + sender.getName() + ") is over its "
+					+ trafficClass.name().toLowerCase(Locale.ROOT) + " budget; "
+					+ (decision == FloodGuard.Decision.HOLD ? "coalescing" : "dropping") + " the excess");
+		}
+	}
+
+	// Forwards held-back controller values, oldest first, as their senders'
+	// budgets refill.
+	private void releaseHeldEvents() {
+		long now = System.nanoTime();
+		for (int i = holdingSenders.size() - 1; i >= 0; i--) {
+			ClientInfo sender = holdingSenders.get(i);
+			FloodGuard guard = sender.getFloodGuard();
+			if (connectedClients.get(sender.getId()) != sender) {
+				guard.clearHeld();
+			}
+			boolean hasLegacyClients = guard.isHolding()
+					&& sender.getRoom().getClients().getLegacyClientCount() > 0;
+			while (guard.releaseNext(now, relayFrame, sender.getId())) {
+				deliverMidi(relayFrame, sender, hasLegacyClients);
+			}
+			if (!guard.isHolding()) {
+				holdingSenders.remove(i);
 			}
 		}
 	}
 
+	// Relays, oldest first, any journaled events whose own frames never arrived,
+	// ahead of the frame that carried them. A note-on already ended by a later
+	// event is only marked as recovered.
+	private void recoverJournal(ByteBuffer frame, ClientInfo sender, boolean hasLegacyClients) {
+		SequenceTracker receiveSequence = sender.getReceiveSequence();
+		int count = MidiProtocol.journalCount(frame);
+		for (int i = 0; i < count; i++) {
+			if (receiveSequence.recover(MidiProtocol.journalSequence(frame, i))
+					&& !MidiProtocol.isEndedInJournal(frame, i)) {
+				MidiProtocol.readJournalEntry(frame, i, relayFrame);
+				relayMidi(relayFrame, sender, hasLegacyClients);
+			}
+		}
+	}
+
+	// Every copy is ACKed, including duplicates whose first ACK was lost; gaps are
+	// NACKed as soon as they show up. Only the first copy is relayed.
+	private void handleReliableMidi(ByteBuffer frame, ClientInfo sender, boolean hasLegacyClients) {
+		int reliableSequence = MidiProtocol.reliableSequence(frame);
+		sendControl(MidiProtocol.TYPE_ACK, reliableSequence, sender);
+		ReliableReceiver reliableIn = sender.isRemote() ? sender.getPeer().getReliableIn() : sender.getReliableIn();
+		if (!reliableIn.accept(reliableSequence,
+				missing -> sendControl(MidiProtocol.TYPE_NACK, missing, sender))) {
+			return;
+		}
+		// The event may already have been recovered from a journal. Otherwise it is
+		// relayed even when the sequence tracker calls it late: a late note-off is
+		// still worth playing.
+		if (sender.getReceiveSequence().hasSeen(MidiProtocol.sequence(frame))) {
+			return;
+		}
+		sender.getReceiveSequence().accept(MidiProtocol.sequence(frame));
+		String legacyMessage = hasLegacyClients ? MidiProtocol.midiText(sender.getId(), sender.getName(),
+				MidiProtocol.midiStatus(frame), MidiProtocol.midiChannel(frame), MidiProtocol.midiData1(frame),
+				MidiProtocol.midiData2(frame)) : null;
+		forwardFrameToClients(frame, legacyMessage, sender);
+	}
+
+	private void sendControl(byte type, int reliableSequence, ClientInfo client) {
+		MidiProtocol.writeAck(controlFrame, type, client.getId(), reliableSequence);
+		if (client.isRemote()) {
+			sendRawToPeer(client.getPeer(), controlFrame);
+		} else {
+			sendFrameToClient(controlFrame, client);
+		}
+	}
+
+	private void traceBinaryMessage(ClientInfo sender, ByteBuffer frame) {
+		if (MidiProtocol.isMidi(frame)) {
+			logger.trace(String.format("MIDI from %s: Status=%d, Channel=%d, Data1=%d, Data2=%d", sender.getName(),
+					MidiProtocol.midiStatus(frame), MidiProtocol.midiChannel(frame), MidiProtocol.midiData1(frame),
+					MidiProtocol.midiData2(frame)));
+		} else if (MidiProtocol.type(frame) == MidiProtocol.TYPE_CHORD_KEYS) {
+			logger.trace(String.format("CHORD_KEYS from %s (ID: %d): Note=%d, isNoteOn=%b", sender.getName(),
+					sender.getId(), MidiProtocol.chordNote(frame), MidiProtocol.chordNoteOn(frame)));
+		}
+	}
+
+	// PING_RESPONSE:<t1> from clients that only echo the server's timestamp,
+	// PING_RESPONSE:<t1>:<t2>:<t3> from clients that add their own receive and
+	// send times. receivedAt is t4.
+	private void handlePingResponse(String message, ClientInfo client, long receivedAt) {
+		String[] parts = message.split(":");
+		ClockEstimator clock = client.getClock();
+		try {
+			long sentTime = Long.parseLong(parts[1]);
+			if (parts.length >= 4) {
+				clock.addSample(sentTime, Long.parseLong(parts[2]), Long.parseLong(parts[3]), receivedAt);
+			} else {
+				clock.addRoundTrip(receivedAt - sentTime);
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			logger.warn("Invalid PING_RESPONSE message format.");
+			return;
+		}
+
+		if (logger.isEnabled(Logger.Level.DEBUG)) {
+			logger.debug(String.format(Locale.ROOT, "Client %s RTT: %.3fms (smoothed %.3fms, jitter %.3fms)%s",
+					client.getName(), clock.getLastRttNanos() / 1e6, clock.getSmoothedRttNanos() / 1e6,
+					clock.getJitterNanos() / 1e6, clock.hasOffset()
+							? String.format(Locale.ROOT, ", offset %.3fms", clock.getOffsetNanos() / 1e6)
+							: ""));
+		}
+
+		sendPingToRoom(client, clock.getSmoothedRttNanos(), receivedAt);
+	}
+
+	private void sendPingToRoom(ClientInfo client, long pingNanos, long now) {
+		client.setLastPingInfoNanos(now);
+		broadcastToRoom(client.getRoom(), "PING_INFO:" + client.getId() + ":" + client.getName() + ":"
+				+ String.format(Locale.ROOT, "%.2f", pingNanos / 1e6) + "ms");
+	}
+
+	// Resends the reliable frames whose ACK is overdue on every client and peer
+	// link, and works out when the next one will be.
+	private void retransmitDueFrames(long now) {
+		nextRetransmitNanos = Math.min(retransmitReliableFrames(now), retransmitPeerFrames(now));
+	}
+
+	private long retransmitReliableFrames(long now) {
+		long next = Long.MAX_VALUE;
+		for (ClientInfo client : connectedClients.snapshot()) {
+			if (!client.acceptsReliable()) {
+				continue;
+			}
+			ReliableSender reliableOut = client.getReliableOut();
+			long rto = retransmitTimeout(client);
+			int resent = reliableOut.retransmitDue(now, rto, retransmitFrame,
+					frame -> sendFrameToClient(frame, client));
+			if (resent > 0) {
+				metrics.recordRetransmits(resent);
+			}
+			int giveUps = reliableOut.takeGiveUps();
+			if (giveUps > 0) {
+				metrics.recordGiveUps(giveUps);
+				logger.debug("Gave up on " + giveUps + " reliable frame(s) to client " + client.getId());
+			}
+			next = Math.min(next, reliableOut.nextDueNanos(rto));
+		}
+		return next;
+	}
+
+	// Frames for a peer that is down wait until it is back and the next frame
+	// for it is tracked.
+	private long retransmitPeerFrames(long now) {
+		long next = Long.MAX_VALUE;
+		for (PeerNode peer : peerList) {
+			if (!peer.isUp()) {
+				continue;
+			}
+			ReliableSender reliableOut = peer.getReliableOut();
+			long rto = retransmitTimeout(peer.getClock());
+			int resent = reliableOut.retransmitDue(now, rto, retransmitFrame,
+					frame -> sendToPeer(peer, frame, peerFrame));
+			if (resent > 0) {
+				metrics.recordRetransmits(resent);
+			}
+			int giveUps = reliableOut.takeGiveUps();
+			if (giveUps > 0) {
+				metrics.recordGiveUps(giveUps);
+				logger.debug("Gave up on " + giveUps + " reliable frame(s) to peer " + peer.getName());
+			}
+			next = Math.min(next, reliableOut.nextDueNanos(rto));
+		}
+		return next;
+	}
+
+	private static long retransmitTimeout(ClientInfo client) {
+		return retransmitTimeout(client.getClock());
+	}
+
+	// RFC 6298 style: smoothed RTT plus four times its variation, from the ping
+	// exchange. Until the first ping comes back a conservative default is used.
+	private static long retransmitTimeout(ClockEstimator clock) {
+		long smoothedRtt = clock.getSmoothedRttNanos();
+		if (smoothedRtt < 0) {
+			return DEFAULT_RTO_NANOS;
+		}
+		return Math.max(MIN_RTO_NANOS, smoothedRtt + 4 * clock.getJitterNanos());
+	}
+
+	private void checkKernelReceiveDrops() {
+		if (!(transport instanceof NioRelayEngine)) {
+			return;
+		}
+		long drops = ((NioRelayEngine) transport).getKernelReceiveDrops();
+		if (drops > lastKernelReceiveDrops) {
+			logger.warn("Kernel dropped " + (drops - lastKernelReceiveDrops) + " incoming packets (total: " + drops
+					+ "). Consider a larger -rcvbuf.");
+			lastKernelReceiveDrops = drops;
+		}
+	}
+
+	// Runs when a client's liveness deadline comes up. Packets only stamp the
+	// client as heard; the deadline is moved here, lazily, so a busy client costs
+	// one wheel operation every few seconds rather than one per packet.
+	private void checkLiveness(ClientInfo client, long now) {
+		long silence = now - client.getLastHeardNanos();
+		if (silence >= CLIENT_TIMEOUT_NANOS) {
+			handleDisconnectClient(client.getId());
+			return;
+		}
+		long sincePing = now - client.getLastPingSentNanos();
+		if (silence >= IDLE_PING_NANOS && sincePing >= IDLE_PING_NANOS || sincePing >= RTT_REFRESH_NANOS) {
+			client.setLastPingSentNanos(now);
+			sendFrameToClient(ByteBuffer.wrap(("PING:" + now).getBytes()), client);
+		}
+		if (now - client.getLastPingInfoNanos() >= PING_INFO_INTERVAL_NANOS) {
+			long rtt = client.getClock().getSmoothedRttNanos();
+			if (rtt >= 0) {
+				sendPingToRoom(client, rtt, now);
+			} else {
+				client.setLastPingInfoNanos(now);
+			}
+		}
+
+		long next = Math.min(client.getLastPingSentNanos() + RTT_REFRESH_NANOS,
+				client.getLastPingInfoNanos() + PING_INFO_INTERVAL_NANOS);
+		if (silence < IDLE_PING_NANOS) {
+			next = Math.min(next, client.getLastHeardNanos() + IDLE_PING_NANOS);
+		} else {
+			next = Math.min(next, Math.min(client.getLastPingSentNanos() + IDLE_PING_NANOS,
+					client.getLastHeardNanos() + CLIENT_TIMEOUT_NANOS));
+		}
+		liveness.schedule(client.getLivenessTimeout(), next);
+	}
+
 	private void handleDisconnectClient(int clientId) {
-		connectedClients.remove(clientId);
+		ClientInfo client = removeClient(clientId);
+		if (client == null) {
+			return;
+		}
 		logger.log("Client " + clientId + " disconnected due to inactivity.");
-		broadcastClientCount();
-		broadcastClientList();
 	}
 
-	private void pingClients() {
-		long currentTime = System.currentTimeMillis();
-		for (ClientInfo client : connectedClients.values()) {
-			String pingMessage = "PING:" + currentTime;
-			sendPacketToClient(pingMessage, client);
+	private long joinRoom(ClientInfo client, String roomName) {
+		synchronized (rooms) {
+			Room room = rooms.computeIfAbsent(roomName, Room::new);
+			client.setRoom(room);
+			if (!client.isRemote()) {
+				connectedClients.add(client);
+			}
+			return room.join(client);
+		}
+	}
+
+	private ClientInfo removeClient(int clientId) {
+		ClientInfo client = connectedClients.remove(clientId);
+		if (client == null) {
+			return null;
 		}
+		liveness.cancel(client.getLivenessTimeout());
+		leaveRoom(client);
+		announceToPeers("PEER_LEAVE:" + clientId);
+		return client;
 	}
 
-	private void handleConnectMessage(InetAddress clientAddress, int clientPort, String clientName) throws IOException {
-		int clientId = assignClientId();
-		connectedClients.put(clientId, new ClientInfo(clientId, clientAddress, clientPort, clientName));
-		logger.log("Client: " + clientId + " (" + clientName + ") connected");
+	private void leaveRoom(ClientInfo client) {
+		long epoch;
+		synchronized (rooms) {
+			clientIds.release(client.getId());
+			Room room = client.getRoom();
+			epoch = room.leave(client);
+			if (room.isEmpty()) {
+				rooms.remove(room.getName(), room);
+			}
+		}
+		if (client.acceptsDirect()) {
+			for (ClientInfo member : client.getRoom().getClients().snapshot()) {
+				member.clearDirectRecipient(client.getId());
+			}
+		}
+		broadcastRosterChange(client.getRoom(), "ROSTER_LEAVE:" + epoch + ":" + client.getId(), null);
+	}
+
+	private void handleConnectMessage(InetAddress clientAddress, int clientPort, String clientName,
+			String connectMessage) throws IOException {
+		int protocolVersion = MidiProtocol.protocolVersion(connectMessage);
+		String roomName = Room.sanitizeName(MidiProtocol.option(connectMessage, MidiProtocol.OPTION_ROOM));
+		int clientId = clientIds.allocate();
+		if (clientId == -1) {
+			logger.warn("All client IDs are in use. Rejecting " + clientName + ".");
+			return;
+		}
+		ClientInfo client = new ClientInfo(clientId, clientAddress, clientPort, clientName, protocolVersion);
+		client.setGeneration(clientIds.generation(clientId));
+		client.setAcceptsBundles(protocolVersion >= MidiProtocol.VERSION_BINARY
+				&& "1".equals(MidiProtocol.option(connectMessage, MidiProtocol.OPTION_BUNDLE)));
+		client.setAcceptsReliable(protocolVersion >= MidiProtocol.VERSION_BINARY
+				&& "1".equals(MidiProtocol.option(connectMessage, MidiProtocol.OPTION_RELIABLE)));
+		client.setAcceptsJournal(protocolVersion >= MidiProtocol.VERSION_BINARY
+				&& "1".equals(MidiProtocol.option(connectMessage, MidiProtocol.OPTION_JOURNAL)));
+		client.setAcceptsDirect(protocolVersion >= MidiProtocol.VERSION_BINARY
+				&& "1".equals(MidiProtocol.option(connectMessage, MidiProtocol.OPTION_DIRECT)));
+		client.setFloodGuard(new FloodGuard(floodLimits));
+		client.setCoalescer(new ControllerCoalescer(coalesceIntervalMillis * 1_000_000L, coalesceMaxRate));
+		long epoch = joinRoom(client, roomName);
+		if (sessionJournal != null) {
+			sessionJournal.recordName(clientId, clientName);
+		}
+		// The first check pings at once, for a round trip to show.
+		long now = System.nanoTime();
+		client.setLastPingSentNanos(now - RTT_REFRESH_NANOS);
+		client.setLastPingInfoNanos(now);
+		liveness.schedule(client.getLivenessTimeout(), now);
+		logger.log("Client: " + clientId + " (" + clientName + ") connected to room " + roomName);
 
 		String idMessage = "ID:" + clientId;
-		DatagramPacket idPacket = new DatagramPacket(idMessage.getBytes(), idMessage.length(), clientAddress,
-				clientPort);
-		serverSocket.send(idPacket);
+		if (protocolVersion > MidiProtocol.VERSION_TEXT) {
+			idMessage = MidiProtocol.withOption(idMessage, MidiProtocol.OPTION_PROTOCOL, protocolVersion);
+			idMessage = MidiProtocol.withOption(idMessage, MidiProtocol.OPTION_GENERATION, client.getGeneration());
+		}
+		transport.send(ByteBuffer.wrap(idMessage.getBytes()), client.getSocketAddress());
 
-		broadcastClientCount();
-		broadcastClientList();
+		if (protocolVersion >= MidiProtocol.VERSION_BINARY) {
+			sendRoster(client);
+		}
+		sendChannelState(client);
+		broadcastRosterChange(client.getRoom(), "ROSTER_JOIN:" + epoch + ":" + clientId + ":" + clientName, client);
+		if (client.acceptsDirect()) {
+			introduceDirectPeers(client);
+		}
+		announceToPeers("PEER_JOIN:" + clientId + ":" + roomName + ":" + clientName);
 	}
 
-	private void handleDisconnectMessage(String message) {
-		try {
-			int clientId = Integer.parseInt(message.substring(11));
-			connectedClients.remove(clientId);
-			logger.log("Client: " + clientId + " disconnected");
+	// Brings a client that joins mid-song up to date with what everyone else in
+	// the room has sounding: programs, controller positions and held notes.
+	private void sendChannelState(ClientInfo client) {
+		for (ClientInfo member : client.getRoom().getClients().snapshot()) {
+			if (member == client) {
+				continue;
+			}
+			ChannelStateTable state = member.getChannelState();
+			for (int channel = 0; channel < 16; channel++) {
+				if (!state.hasState(channel)) {
+					continue;
+				}
+				state.writeSnapshot(relayFrame, member.getId(), channel);
+				if (client.getProtocolVersion() >= MidiProtocol.VERSION_BINARY) {
+					sendFrameToClient(relayFrame, client);
+				} else {
+					MidiProtocol.forEachChannelStateEvent(relayFrame, (status, ch, data1, data2) -> {
+						encodeText(legacyFrame, MidiProtocol.midiText(member.getId(), member.getName(), status, ch,
+								data1, data2));
+						sendFrameToClient(legacyFrame, client);
+					});
+				}
+			}
+		}
+	}
 
-			broadcastClientCount();
-			broadcastClientList();
-		} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
-			logger.log("Invalid disconnect message format: " + e.getMessage());
+	// Tells the newcomer and every other direct mode player in its room the
+	// address the server sees the other one at, so both can start punching
+	// through to each other.
+	private void introduceDirectPeers(ClientInfo client) {
+		ByteBuffer newcomerEndpoint = ByteBuffer.wrap(endpointMessage(client).getBytes());
+		for (ClientInfo member : client.getRoom().getClients().snapshot()) {
+			if (member == client || member.isRemote() || !member.acceptsDirect()) {
+				continue;
+			}
+			sendFrameToClient(ByteBuffer.wrap(endpointMessage(member).getBytes()), client);
+			sendFrameToClient(newcomerEndpoint, member);
 		}
 	}
 
-	private void handleChordKeysMessage(String message) {
+	private static String endpointMessage(ClientInfo client) {
+		return "ENDPOINT:" + client.getId() + ":" + client.getAddress().getHostAddress() + ":" + client.getPort();
+	}
+
+	// DIRECT:<id>,<id>,... lists everyone the sender currently reaches directly;
+	// an empty list sends it all back through the server. Only plain MIDI is
+	// left out of the fan-out: reliable events, chords and chat still go through
+	// the server to everyone.
+	private void handleDirectMessage(String message, ClientInfo sender) {
+		if (!sender.acceptsDirect()) {
+			return;
+		}
+		BitSet recipients = new BitSet();
+		for (String id : message.substring(7).split(",")) {
+			if (id.trim().isEmpty()) {
+				continue;
+			}
+			ClientInfo recipient;
+			try {
+				recipient = sender.getRoom().getClients().get(Integer.parseInt(id.trim()));
+			} catch (NumberFormatException e) {
+				logger.warn("Invalid DIRECT message format.");
+				return;
+			}
+			if (recipient != null && !recipient.isRemote() && recipient.acceptsDirect()) {
+				recipients.set(recipient.getId());
+			}
+		}
+		sender.setDirectRecipients(recipients);
+	}
+
+	private void handleRenameMessage(String message, ClientInfo sender) {
+		String newName = MidiProtocol.sanitizeClientName(message.substring(7));
+		if (newName.isEmpty() || newName.equals(sender.getName())) {
+			return;
+		}
+		logger.log("Client " + sender.getId() + " (" + sender.getName() + ") renamed to " + newName);
+		long epoch = sender.getRoom().rename(sender, newName);
+		if (sessionJournal != null) {
+			sessionJournal.recordName(sender.getId(), newName);
+		}
+		broadcastRosterChange(sender.getRoom(), "ROSTER_RENAME:" + epoch + ":" + sender.getId() + ":" + newName,
+				null);
+		announceToPeers("PEER_RENAME:" + sender.getId() + ":" + newName);
+	}
+
+	private void handleDisconnectMessage(ClientInfo sender) {
+		ClientInfo client = removeClient(sender.getId());
+		if (client == null) {
+			return;
+		}
+		logger.log("Client: " + client.getId() + " disconnected");
+	}
+
+	private void handleChordKeysMessage(String message, ClientInfo sender) {
 		String[] parts = message.split(":", 6);
 		if (parts.length == 6) {
-			int clientId = Integer.parseInt(parts[1]);
-			String clientName = parts[2];
-			int note = Integer.parseInt(parts[3]);
+			int note;
+			try {
+				note = Integer.parseInt(parts[3]);
+			} catch (NumberFormatException e) {
+				logger.warn("Error parsing CHORD_KEYS data from client " + sender.getName() + ": " + e.getMessage());
+				return;
+			}
 			boolean isNoteOn = Boolean.parseBoolean(parts[4]);
 			String chordName = parts[5];
 
-			logger.log(String.format("CHORD_KEYS from %s (ID: %d): Note=%d, isNoteOn=%b, Chord=%s", clientName,
-					clientId, note, isNoteOn, chordName));
+			if (logger.isTraceEnabled()) {
+				logger.trace(String.format("CHORD_KEYS from %s (ID: %d): Note=%d, isNoteOn=%b, Chord=%s",
+						sender.getName(), sender.getId(), note, isNoteOn, chordName));
+			}
 
-			forwardMessageToClients(message, clientId);
+			MidiProtocol.writeChordKeys(relayFrame, sender.getId(), sender.nextSequence(), note, isNoteOn,
+					chordName.getBytes(StandardCharsets.UTF_8));
+			forwardFrameToClients(relayFrame,
+					MidiProtocol.chordKeysText(sender.getId(), sender.getName(), note, isNoteOn, chordName), sender);
 		} else {
-			logger.log("Invalid CHORD_KEYS message format.");
+			logger.warn("Invalid CHORD_KEYS message format.");
 		}
 	}
 
-	private void handleTextMessage(String message) {
+	private void handleTextMessage(String message, ClientInfo sender) {
 		String[] parts = message.split(":", 4);
 		if (parts.length == 4) {
-			int clientId = Integer.parseInt(parts[1]);
-			String clientName = parts[2];
 			String actualMessage = parts[3];
 
-			logger.log("TEXT Message from " + clientName + ": " + actualMessage);
+			logger.log("TEXT Message from " + sender.getName() + ": " + actualMessage);
 
-			forwardMessageToClients("TEXT:" + clientId + ":" + clientName + ":" + actualMessage, clientId);
+			MidiProtocol.writeText(relayFrame, sender.getId(), sender.nextSequence(),
+					actualMessage.getBytes(StandardCharsets.UTF_8));
+			forwardFrameToClients(relayFrame, MidiProtocol.textText(sender.getId(), sender.getName(), actualMessage),
+					sender, sender.getRoom().getClients().snapshot());
 		} else {
-			logger.log("Invalid TEXT message format.");
+			logger.warn("Invalid TEXT message format.");
 		}
 	}
 
-	private void handleMidiMessage(String message) {
+	private void handleMidiMessage(String message, ClientInfo sender) {
 		String[] parts = message.split(":");
 		if (parts.length == 7) {
-			int clientId = Integer.parseInt(parts[1]);
-			String clientName = parts[2];
+			String clientName = sender.getName();
 			int status, channel, data1, data2;
 
 			try {
@@ -289,160 +1096,510 @@ public class ServerUtils {
 				data1 = Integer.parseInt(parts[5]);
 				data2 = Integer.parseInt(parts[6]);
 			} catch (NumberFormatException e) {
-				logger.log("Error parsing MIDI data from client " + clientName + ": " + e.getMessage());
+				logger.warn("Error parsing MIDI data from client " + clientName + ": " + e.getMessage());
 				return;
 			}
 
-			logger.log(String.format("MIDI from %s: Status=%d, Channel=%d, Data1=%d, Data2=%d", clientName, status,
-					channel, data1, data2));
+			if (logger.isTraceEnabled()) {
+				logger.trace(String.format("MIDI from %s: Status=%d, Channel=%d, Data1=%d, Data2=%d", clientName,
+						status, channel, data1, data2));
+			}
 
-			forwardMessageToClients(message, clientId);
+			if (MidiProtocol.isStateCritical(status, data1, data2)) {
+				MidiProtocol.writeReliableMidi(relayFrame, sender.getId(), sender.nextSequence(), status, channel,
+						data1, data2);
+			} else {
+				MidiProtocol.writeMidi(relayFrame, sender.getId(), sender.nextSequence(), status, channel, data1,
+						data2);
+			}
+			forwardFrameToClients(relayFrame,
+					MidiProtocol.midiText(sender.getId(), clientName, status, channel, data1, data2), sender);
 		} else {
-			logger.log("Invalid MIDI message format.");
+			logger.warn("Invalid MIDI message format.");
 		}
 	}
 
-	private void handleMuteMessage(String message) {
+	private void handleMuteMessage(String message, ClientInfo muterClient) {
 		String[] parts = message.split(":");
 		if (parts.length == 3) {
-			int muterId = Integer.parseInt(parts[1]);
-			int mutedId = Integer.parseInt(parts[2]);
+			int muterId = muterClient.getId();
+			int mutedId;
+			try {
+				mutedId = Integer.parseInt(parts[2]);
+			} catch (NumberFormatException e) {
+				logger.warn("Invalid MUTE message format.");
+				return;
+			}
 
-			ClientInfo muterClient = connectedClients.get(muterId);
-			if (muterClient != null) {
-				muterClient.addMutedClient(mutedId);
+			if (muterClient.getRoom().mute(muterId, mutedId)) {
 				logger.log("Client " + muterId + " muted client " + mutedId);
 			} else {
-				logger.log("Client " + muterId + " not found.");
+				logger.log("Client " + mutedId + " not found.");
 			}
 		} else {
-			logger.log("Invalid MUTE message format.");
+			logger.warn("Invalid MUTE message format.");
 		}
 	}
 
-	private void handleUnmuteMessage(String message) {
+	private void handleUnmuteMessage(String message, ClientInfo unmuterClient) {
 		String[] parts = message.split(":");
 		if (parts.length == 3) {
-			int unmuterId = Integer.parseInt(parts[1]);
-			int unmutedId = Integer.parseInt(parts[2]);
+			int unmuterId = unmuterClient.getId();
+			int unmutedId;
+			try {
+				unmutedId = Integer.parseInt(parts[2]);
+			} catch (NumberFormatException e) {
+				logger.warn("Invalid UNMUTE message format.");
+				return;
+			}
 
-			ClientInfo unmuterClient = connectedClients.get(unmuterId);
-			if (unmuterClient != null) {
-				unmuterClient.removeMutedClient(unmutedId);
+			if (unmuterClient.getRoom().unmute(unmuterId, unmutedId)) {
 				logger.log("Client " + unmuterId + " unmuted client " + unmutedId);
 			} else {
-				logger.log("Client " + unmuterId + " not found.");
+				logger.log("Client " + unmutedId + " not found.");
 			}
 		} else {
-			logger.log("Invalid UNMUTE message format.");
+			logger.warn("Invalid UNMUTE message format.");
 		}
 	}
 
-	private void forwardMessageToClients(String message, int senderClientId) {
-		boolean isMutedMessage = message.startsWith("MIDI:") || message.startsWith("CHORD_KEYS:");
+	private void forwardFrameToClients(ByteBuffer frame, String legacyMessage, ClientInfo sender) {
+		forwardFrameToClients(frame, legacyMessage, sender, sender.getRecipients());
+	}
+
+	private void forwardFrameToClients(ByteBuffer frame, String legacyMessage, ClientInfo sender,
+			ClientInfo[] recipients) {
+		if (MidiProtocol.isMidi(frame) && !coalesce(frame, sender)) {
+			return;
+		}
+		if (admit(frame, sender)) {
+			deliverToClients(frame, legacyMessage, sender, recipients);
+		}
+	}
 
-		connectedClients.values().stream().filter(client -> client.getId() != senderClientId).forEach(client -> {
-			if (isMutedMessage) {
-				if (!client.getMutedClients().contains(senderClientId)) {
-					sendPacketToClient(message, client);
+	private void deliverToClients(ByteBuffer frame, String legacyMessage, ClientInfo sender,
+			ClientInfo[] recipients) {
+		if (isSequenced(MidiProtocol.type(frame))) {
+			reportSkipped(MidiProtocol.sequence(frame), sender);
+		}
+		if (legacyMessage != null) {
+			encodeText(legacyFrame, legacyMessage);
+		}
+		if (MidiProtocol.isMidi(frame)) {
+			sender.getChannelState().apply(frame);
+			if (sessionJournal != null) {
+				sessionJournal.recordMidi(sender.getId(), frame);
+			}
+		}
+		boolean reliable = MidiProtocol.type(frame) == MidiProtocol.TYPE_MIDI_RELIABLE;
+		long now = reliable ? System.nanoTime() : 0;
+		int journaledLimit = frame.limit();
+		boolean journaled = MidiProtocol.type(frame) == MidiProtocol.TYPE_MIDI
+				&& journaledLimit > MidiProtocol.MIDI_FRAME_SIZE;
+		boolean skipDirect = sender.hasDirectRecipients() && MidiProtocol.type(frame) == MidiProtocol.TYPE_MIDI;
+		int directSkipped = 0;
+		int fanOut = 0;
+		for (int i = 0; i < recipients.length; i++) {
+			ClientInfo client = recipients[i];
+			if (client == sender) {
+				continue;
+			}
+			if (client.isRemote()) {
+				// Each peer gets one copy, sent below, and only of this node's own traffic.
+				if (!sender.isRemote()) {
+					client.getPeer().setForwardPending();
 				}
+				continue;
+			}
+			if (skipDirect && client.acceptsDirect() && sender.isDirectTo(client.getId())) {
+				directSkipped++;
+				continue;
+			}
+			if (reliable && client.getProtocolVersion() >= MidiProtocol.VERSION_BINARY) {
+				// Each recipient link has its own reliable sequence; recipients that did
+				// not ask for reliable delivery get the plain frame.
+				MidiProtocol.setReliable(frame, client.acceptsReliable());
+				if (client.acceptsReliable()) {
+					client.getReliableOut().track(frame, now);
+					nextRetransmitNanos = Math.min(nextRetransmitNanos, now + retransmitTimeout(client));
+				}
+			} else if (journaled) {
+				frame.limit(client.acceptsJournal() ? journaledLimit : MidiProtocol.MIDI_FRAME_SIZE);
+			}
+			if (egressBatcher != null && client.acceptsBundles()) {
+				egressBatcher.enqueue(client, frame);
+			} else if (client.getProtocolVersion() >= MidiProtocol.VERSION_BINARY) {
+				sendFrameToClient(frame, client);
+			} else if (legacyMessage != null) {
+				sendFrameToClient(legacyFrame, client);
 			} else {
-				sendPacketToClient(message, client);
+				continue;
 			}
-		});
+			fanOut++;
+		}
+		if (peerList.length > 0 && !sender.isRemote()) {
+			fanOut += forwardToPeers(frame, reliable, journaled ? journaledLimit : frame.limit());
+		}
+		if (directSkipped > 0) {
+			metrics.recordDirectSkipped(directSkipped);
+		}
+		metrics.recordFanOut(fanOut);
+	}
+
+	private String readText(ByteBuffer frame) {
+		int length = Math.min(frame.limit(), textBuffer.length);
+		frame.get(0, textBuffer, 0, length);
+		return new String(textBuffer, 0, length).trim();
+	}
+
+	private void encodeText(ByteBuffer frame, String message) {
+		frame.clear();
+		textEncoder.reset().encode(CharBuffer.wrap(message), frame, true);
+		frame.flip();
 	}
 
-	private void sendPacketToClient(String message, ClientInfo client) {
+	private void sendFrameToClient(ByteBuffer frame, ClientInfo client) {
 		try {
-			byte[] buffer = message.getBytes();
-			DatagramPacket packet = new DatagramPacket(buffer, buffer.length, client.getAddress(), client.getPort());
-			serverSocket.send(packet);
+			transport.send(frame, client.getSocketAddress());
+			metrics.recordSend(client, frame.limit());
 		} catch (Exception e) {
-			logger.log("Failed to forward message to ID: " + client.getId() + ": " + e.getMessage());
+			logger.warn("Failed to forward message to ID: " + client.getId() + ": " + e.getMessage());
+		}
+	}
+
+	private void broadcastToClients(String message) {
+		ByteBuffer frame = ByteBuffer.wrap(message.getBytes());
+		for (ClientInfo client : connectedClients.snapshot()) {
+			sendFrameToClient(frame, client);
 		}
 	}
 
-	private void broadcastClientCount() {
-		String countMessage = "COUNT:" + connectedClients.size();
-		for (ClientInfo client : connectedClients.values()) {
-			sendPacketToClient(countMessage, client);
+	private void broadcastToRoom(Room room, String message) {
+		ByteBuffer frame = ByteBuffer.wrap(message.getBytes());
+		for (ClientInfo client : room.getClients().snapshot()) {
+			if (!client.isRemote()) {
+				sendFrameToClient(frame, client);
+			}
 		}
 	}
 
-	private void broadcastClientList() {
+	// v2 clients get the one-line delta, v1 clients still get the full count and
+	// list they have always received.
+	private void broadcastRosterChange(Room room, String delta, ClientInfo newcomer) {
+		ClientInfo[] members = room.getClients().snapshot();
+		ByteBuffer deltaFrame = ByteBuffer.wrap(delta.getBytes());
+		for (ClientInfo client : members) {
+			if (client != newcomer && !client.isRemote()
+					&& client.getProtocolVersion() >= MidiProtocol.VERSION_BINARY) {
+				sendFrameToClient(deltaFrame, client);
+			}
+		}
+		if (room.getClients().getLegacyClientCount() == 0) {
+			return;
+		}
+
 		StringBuilder clientListMessage = new StringBuilder("CLIENT_LIST:");
-		for (ClientInfo client : connectedClients.values()) {
+		for (ClientInfo client : members) {
 			clientListMessage.append(client.getId()).append(":").append(client.getName()).append(",");
 		}
+		ByteBuffer countFrame = ByteBuffer.wrap(("COUNT:" + members.length).getBytes());
+		ByteBuffer listFrame = ByteBuffer.wrap(clientListMessage.toString().getBytes());
+		for (ClientInfo client : members) {
+			if (client.getProtocolVersion() < MidiProtocol.VERSION_BINARY) {
+				sendFrameToClient(countFrame, client);
+				sendFrameToClient(listFrame, client);
+			}
+		}
+	}
+
+	// Full roster for one client, split into pages that each fit a datagram:
+	// ROSTER:<epoch>:<page>:<pages>:<id>:<name>,<id>:<name>,...
+	private void sendRoster(ClientInfo client) {
+		Room room = client.getRoom();
+		long epoch;
+		ClientInfo[] members;
+		synchronized (room) {
+			epoch = room.getRosterEpoch();
+			members = room.getClients().snapshot();
+		}
 
-		String message = clientListMessage.toString();
-		for (ClientInfo client : connectedClients.values()) {
-			sendPacketToClient(message, client);
+		List<String> pages = new ArrayList<>();
+		StringBuilder page = new StringBuilder();
+		for (ClientInfo member : members) {
+			String entry = member.getId() + ":" + member.getName() + ",";
+			if (page.length() > 0 && page.length() + entry.length() > ROSTER_PAGE_SIZE) {
+				pages.add(page.toString());
+				page.setLength(0);
+			}
+			page.append(entry);
+		}
+		pages.add(page.toString());
+
+		for (int i = 0; i < pages.size(); i++) {
+			String message = "ROSTER:" + epoch + ":" + i + ":" + pages.size() + ":" + pages.get(i);
+			sendFrameToClient(ByteBuffer.wrap(message.getBytes()), client);
 		}
 	}
 
-	private int assignClientId() {
-		for (int id = 0; id < MAX_ID; id++) {
-			if (!assignedIds.contains(id)) {
-				assignedIds.add(id);
-				return id;
+	private void handlePeerMessage(ByteBuffer frame, PeerNode peer, long receivedAt) {
+		peer.heard(receivedAt);
+		if (!MidiProtocol.isBinary(frame)) {
+			handlePeerText(readText(frame), peer, receivedAt);
+		} else {
+			switch (MidiProtocol.type(frame)) {
+			case MidiProtocol.TYPE_PEER_FRAME:
+				handlePeerFrame(frame, peer, receivedAt);
+				break;
+			case MidiProtocol.TYPE_ACK:
+				peer.getReliableOut().ack(MidiProtocol.sequence(frame));
+				break;
+			case MidiProtocol.TYPE_NACK:
+				if (peer.getReliableOut().nack(MidiProtocol.sequence(frame), receivedAt, controlFrame)) {
+					sendToPeer(peer, controlFrame, peerFrame);
+					metrics.recordRetransmits(1);
+				}
+				break;
+			default:
+				logger.warn("Unknown binary message type from peer " + peer.getName() + ": "
+						+ (MidiProtocol.type(frame) & 0xFF));
 			}
 		}
-		throw new RuntimeException("All client IDs are in use.");
+		if (!peer.isUp()) {
+			peer.setUp(true);
+			logger.log("Peer node " + peer.getName() + " is up.");
+			sendTextToPeer(peer, "PEER_HELLO:" + nodeName + ":" + System.nanoTime());
+			sendPeerRoster(peer);
+		}
 	}
 
-	private class ClientInfo {
-		private int id;
-		private InetAddress address;
-		private int port;
-		private String name;
-		private Set<Integer> mutedClients;
-		private long lastPingTime;
+	// A message one of the peer's players sent, relayed here for this node's
+	// clients. It goes through the same path as local traffic under the proxy's
+	// id, minus the peer's own rate limits and coalescing.
+	private void handlePeerFrame(ByteBuffer frame, PeerNode peer, long receivedAt) {
+		peer.framesIn.increment();
+		if (!peer.getLinkIn().accept(MidiProtocol.sequence(frame))) {
+			return;
+		}
+		if (!MidiProtocol.unwrapPeerFrame(frame, linkFrame)) {
+			logger.warn("Dropping malformed frame from peer " + peer.getName());
+			return;
+		}
+		ClientInfo proxy = peer.getProxy(MidiProtocol.clientId(linkFrame));
+		if (proxy == null) {
+			// A join we missed; the full roster brings the player in.
+			if (peer.shouldRequestRoster(receivedAt, PEER_ROSTER_REQUEST_INTERVAL_NANOS)) {
+				sendTextToPeer(peer, "PEER_ROSTER_SYNC");
+			}
+			return;
+		}
+		MidiProtocol.setClientId(linkFrame, proxy.getId());
+		relayBinaryMessage(linkFrame, proxy);
+	}
 
-		public ClientInfo(int id, InetAddress address, int port, String name) {
-			this.id = id;
-			this.address = address;
-			this.port = port;
-			this.name = name;
-			this.mutedClients = new HashSet<>();
-			this.lastPingTime = System.currentTimeMillis();
+	private void handlePeerText(String message, PeerNode peer, long receivedAt) {
+		try {
+			if (message.startsWith("PEER_HELLO:")) {
+				String[] parts = message.split(":", 3);
+				peer.setName(parts[1]);
+				sendTextToPeer(peer, "PEER_ECHO:" + parts[2]);
+			} else if (message.startsWith("PEER_ECHO:")) {
+				peer.getClock().addRoundTrip(receivedAt - Long.parseLong(message.substring(10)));
+			} else if (message.startsWith("PEER_JOIN:")) {
+				String[] parts = message.split(":", 4);
+				addProxy(peer, Integer.parseInt(parts[1]), parts[2], parts[3], peer.getRosterSync());
+			} else if (message.startsWith("PEER_LEAVE:")) {
+				ClientInfo proxy = peer.getProxy(Integer.parseInt(message.substring(11)));
+				if (proxy != null) {
+					removeProxy(peer, proxy);
+				}
+			} else if (message.startsWith("PEER_RENAME:")) {
+				String[] parts = message.split(":", 3);
+				ClientInfo proxy = peer.getProxy(Integer.parseInt(parts[1]));
+				if (proxy != null) {
+					renameProxy(proxy, parts[2]);
+				}
+			} else if (message.startsWith("PEER_ROSTER:")) {
+				handlePeerRoster(message, peer);
+			} else if (message.startsWith("PEER_ROSTER_SYNC")) {
+				sendPeerRoster(peer);
+			} else {
+				logger.warn("Unknown message type from peer " + peer.getName() + ": " + message);
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			logger.warn("Invalid message from peer " + peer.getName() + ": " + message);
 		}
+	}
 
-		public int getId() {
-			return id;
+	// PEER_ROSTER:<sync>:<page>:<pages>:<id>:<room>:<name>\n... Proxies that are
+	// missing from a complete sync have left without us hearing about it.
+	private void handlePeerRoster(String message, PeerNode peer) {
+		String[] parts = message.split(":", 5);
+		long sync = Long.parseLong(parts[1]);
+		int page = Integer.parseInt(parts[2]);
+		int pages = Integer.parseInt(parts[3]);
+		for (String entry : parts[4].split("\n")) {
+			String[] fields = entry.split(":", 3);
+			if (fields.length < 3) {
+				continue;
+			}
+			int remoteId = Integer.parseInt(fields[0]);
+			ClientInfo proxy = peer.getProxy(remoteId);
+			if (proxy != null && !proxy.getRoom().getName().equals(fields[1])) {
+				removeProxy(peer, proxy);
+				proxy = null;
+			}
+			if (proxy == null) {
+				addProxy(peer, remoteId, fields[1], fields[2], sync);
+			} else {
+				proxy.setRosterSync(sync);
+				if (!proxy.getName().equals(fields[2])) {
+					renameProxy(proxy, fields[2]);
+				}
+			}
 		}
+		if (peer.rosterPageReceived(sync, page, pages)) {
+			for (ClientInfo proxy : peer.getProxies()) {
+				if (proxy.getRosterSync() != sync) {
+					removeProxy(peer, proxy);
+				}
+			}
+		}
+	}
 
-		public InetAddress getAddress() {
-			return address;
+	private void addProxy(PeerNode peer, int remoteId, String roomName, String name, long rosterSync) {
+		if (peer.getProxy(remoteId) != null) {
+			return;
+		}
+		int clientId = clientIds.allocate();
+		if (clientId == -1) {
+			logger.warn("All client IDs are in use. Not adding " + name + " from peer " + peer.getName() + ".");
+			return;
+		}
+		InetSocketAddress address = peer.getAddress();
+		ClientInfo proxy = new ClientInfo(clientId, address.getAddress(), address.getPort(), name,
+				MidiProtocol.VERSION_BINARY);
+		proxy.setGeneration(clientIds.generation(clientId));
+		proxy.setPeer(peer, remoteId);
+		proxy.setRosterSync(rosterSync);
+		// The peer has already applied its own limits and coalescing.
+		proxy.setFloodGuard(new FloodGuard(FloodGuard.Limits.unlimited()));
+		proxy.setCoalescer(new ControllerCoalescer(0, 0));
+		peer.putProxy(remoteId, proxy);
+		String room = Room.sanitizeName(roomName);
+		long epoch = joinRoom(proxy, room);
+		if (sessionJournal != null) {
+			sessionJournal.recordName(clientId, name);
 		}
+		logger.log("Client: " + clientId + " (" + name + ") joined room " + room + " on peer " + peer.getName());
+		broadcastRosterChange(proxy.getRoom(), "ROSTER_JOIN:" + epoch + ":" + clientId + ":" + name, null);
+	}
+
+	private void removeProxy(PeerNode peer, ClientInfo proxy) {
+		if (!peer.removeProxy(proxy.getRemoteId(), proxy)) {
+			return;
+		}
+		leaveRoom(proxy);
+		logger.log("Client: " + proxy.getId() + " (" + proxy.getName() + ") left peer " + peer.getName());
+	}
 
-		public int getPort() {
-			return port;
+	private void renameProxy(ClientInfo proxy, String newName) {
+		long epoch = proxy.getRoom().rename(proxy, newName);
+		if (sessionJournal != null) {
+			sessionJournal.recordName(proxy.getId(), newName);
 		}
+		broadcastRosterChange(proxy.getRoom(), "ROSTER_RENAME:" + epoch + ":" + proxy.getId() + ":" + newName,
+				null);
+	}
 
-		public String getName() {
-			return name;
+	// Every local client, in pages that each fit a datagram. Proxies are left
+	// out: each node only speaks for its own players.
+	private void sendPeerRoster(PeerNode peer) {
+		List<String> pages = new ArrayList<>();
+		StringBuilder page = new StringBuilder();
+		for (ClientInfo client : connectedClients.snapshot()) {
+			String entry = client.getId() + ":" + client.getRoom().getName() + ":" + client.getName() + "\n";
+			if (page.length() > 0 && page.length() + entry.length() > ROSTER_PAGE_SIZE) {
+				pages.add(page.toString());
+				page.setLength(0);
+			}
+			page.append(entry);
 		}
+		pages.add(page.toString());
 
-		public Set<Integer> getMutedClients() {
-			return mutedClients;
+		long sync = peerRosterSync.incrementAndGet();
+		for (int i = 0; i < pages.size(); i++) {
+			sendTextToPeer(peer, "PEER_ROSTER:" + sync + ":" + i + ":" + pages.size() + ":" + pages.get(i));
 		}
+	}
 
-		public void addMutedClient(int clientId) {
-			mutedClients.add(clientId);
+	private void pingPeers() {
+		long now = System.nanoTime();
+		for (PeerNode peer : peerList) {
+			if (peer.isUp() && now - peer.getLastHeardNanos() > PEER_TIMEOUT_NANOS) {
+				peer.setUp(false);
+				logger.warn("Lost peer node " + peer.getName() + ". Removing its " + peer.getProxyCount()
+						+ " client(s).");
+				for (ClientInfo proxy : peer.getProxies()) {
+					removeProxy(peer, proxy);
+				}
+			}
+			sendTextToPeer(peer, "PEER_HELLO:" + nodeName + ":" + now);
+			if (peer.isUp()) {
+				// Repairs any join or leave the link lost.
+				sendPeerRoster(peer);
+			}
 		}
+	}
 
-		public void removeMutedClient(int clientId) {
-			mutedClients.remove(clientId);
+	private void announceToPeers(String message) {
+		for (PeerNode peer : peerList) {
+			if (peer.isUp()) {
+				sendTextToPeer(peer, message);
+			}
 		}
+	}
 
-		public long getLastPingTime() {
-			return lastPingTime;
+	// One copy of a local client's message for each peer that has a player
+	// among its recipients. Returns the number of peers it went to.
+	private int forwardToPeers(ByteBuffer frame, boolean reliable, int limit) {
+		int forwarded = 0;
+		long now = reliable ? System.nanoTime() : 0;
+		for (PeerNode peer : peerList) {
+			if (!peer.takeForwardPending() || !peer.isUp()) {
+				continue;
+			}
+			if (reliable) {
+				MidiProtocol.setReliable(frame, true);
+				peer.getReliableOut().track(frame, now);
+				nextRetransmitNanos = Math.min(nextRetransmitNanos, now + retransmitTimeout(peer.getClock()));
+			} else {
+				frame.limit(limit);
+			}
+			sendToPeer(peer, frame, peerFrame);
+			forwarded++;
 		}
+		return forwarded;
+	}
 
-		public void setLastPingTime(long lastPingTime) {
-			this.lastPingTime = lastPingTime;
+	private void sendToPeer(PeerNode peer, ByteBuffer frame, ByteBuffer wrapped) {
+		if (MidiProtocol.HEADER_SIZE + frame.limit() > wrapped.capacity()) {
+			logger.debug("Frame too large to relay to peer " + peer.getName());
+			return;
 		}
+		MidiProtocol.wrapPeerFrame(wrapped, peer.nextLinkSequence(), frame);
+		sendRawToPeer(peer, wrapped);
+		peer.framesOut.increment();
+	}
 
+	private void sendTextToPeer(PeerNode peer, String message) {
+		sendRawToPeer(peer, ByteBuffer.wrap(message.getBytes()));
+	}
+
+	private void sendRawToPeer(PeerNode peer, ByteBuffer frame) {
+		try {
+			transport.send(frame, peer.getAddress());
+		} catch (Exception e) {
+			logger.warn("Failed to send to peer " + peer.getName() + ": " + e.getMessage());
+		}
 	}
 }
@@ -0,0 +1,154 @@
+package midiJam;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+// Converts a SessionJournal, or a time range of one, into a type 1 Standard MIDI
+// File with one track per participant. Time is kept exact by fixing the tempo
+// at 120 bpm with 480 ticks per quarter note: 960 ticks per second.
+class SessionExporter {
+
+	private static final int TICKS_PER_QUARTER = 480;
+	private static final int MICROS_PER_QUARTER = 500_000;
+	private static final long TICKS_PER_SECOND = TICKS_PER_QUARTER * 1_000_000L / MICROS_PER_QUARTER;
+
+	private final Path journal;
+	private final Logger logger;
+
+	SessionExporter(Path journal, Logger logger) {
+		this.journal = journal;
+		this.logger = logger;
+	}
+
+	// fromNanos and toNanos are session times; pass 0 and Long.MAX_VALUE for all of
+	// it. The export starts at fromNanos. Returns the number of events written.
+	int export(File output, long fromNanos, long toNanos) throws IOException {
+		try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ)) {
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SessionJournal.HEADER_SIZE);
+			if (header.getInt(0) != SessionJournal.MAGIC) {
+				throw new IOException(journal + " is not a session journal");
+			}
+			if (header.getShort(4) != SessionJournal.VERSION) {
+				throw new IOException("Unsupported session journal version " + header.getShort(4));
+			}
+			long length = Math.min(header.getLong(SessionJournal.COMMITTED_LENGTH_OFFSET), channel.size());
+			ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+			Sequence sequence = new Sequence(Sequence.PPQ, TICKS_PER_QUARTER);
+			Track conductor = sequence.createTrack();
+			conductor.add(new MidiEvent(tempo(), 0));
+
+			Map<String, Track> tracks = new LinkedHashMap<>();
+			Map<Integer, String> names = new LinkedHashMap<>();
+			int events = 0;
+			int position = (int) seek(fromNanos);
+			while (position + SessionJournal.RECORD_HEADER_SIZE <= length) {
+				byte kind = records.get(position);
+				long time = records.getLong(position + 1);
+				int senderId = records.getShort(position + 9) & 0xFFFF;
+				int payload = position + SessionJournal.RECORD_HEADER_SIZE;
+				if (kind == SessionJournal.KIND_NAME) {
+					int nameLength = records.get(payload) & 0xFF;
+					byte[] name = new byte[nameLength];
+					for (int i = 0; i < nameLength; i++) {
+						name[i] = records.get(payload + 1 + i);
+					}
+					names.put(senderId, new String(name, StandardCharsets.UTF_8));
+					position = payload + 1 + nameLength;
+					continue;
+				} else if (kind != SessionJournal.KIND_MIDI) {
+					throw new IOException("Corrupt session journal at offset " + position);
+				}
+				position = payload + 3;
+				if (time < fromNanos) {
+					continue;
+				}
+				if (time > toNanos) {
+					break;
+				}
+
+				String name = names.getOrDefault(senderId, "Client " + senderId);
+				// Keyed by name as well as id: ids are reused after a player leaves.
+				Track track = tracks.get(senderId + ":" + name);
+				if (track == null) {
+					track = sequence.createTrack();
+					track.add(new MidiEvent(trackName(name), 0));
+					tracks.put(senderId + ":" + name, track);
+				}
+				int statusAndChannel = records.get(payload) & 0xFF;
+				try {
+					ShortMessage message = new ShortMessage(statusAndChannel & 0xF0, statusAndChannel & 0x0F,
+							records.get(payload + 1) & 0x7F, records.get(payload + 2) & 0x7F);
+					track.add(new MidiEvent(message, (time - fromNanos) * TICKS_PER_SECOND / 1_000_000_000L));
+					events++;
+				} catch (InvalidMidiDataException e) {
+					logger.debug("Skipping invalid MIDI event at offset " + (payload - 3) + ": " + e.getMessage());
+				}
+			}
+
+			MidiSystem.write(sequence, 1, output);
+			logger.log("Exported " + events + " events on " + tracks.size() + " tracks to " + output);
+			return events;
+		} catch (InvalidMidiDataException e) {
+			throw new IOException("Failed to build MIDI file: " + e.getMessage(), e);
+		}
+	}
+
+	// Offset of the last index entry at or before fromNanos, or of the first
+	// record if there is no usable index.
+	private long seek(long fromNanos) throws IOException {
+		Path indexPath = SessionJournal.indexPath(journal);
+		if (fromNanos <= 0 || !Files.exists(indexPath)) {
+			return SessionJournal.HEADER_SIZE;
+		}
+		try (FileChannel index = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+			ByteBuffer entries = index.map(FileChannel.MapMode.READ_ONLY, 0, index.size());
+			if (entries.limit() < SessionJournal.INDEX_HEADER_SIZE
+					|| entries.getInt(0) != SessionJournal.INDEX_MAGIC) {
+				return SessionJournal.HEADER_SIZE;
+			}
+			int low = 0;
+			int high = (entries.limit() - SessionJournal.INDEX_HEADER_SIZE) / SessionJournal.INDEX_ENTRY_SIZE - 1;
+			long offset = SessionJournal.HEADER_SIZE;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int entry = SessionJournal.INDEX_HEADER_SIZE + middle * SessionJournal.INDEX_ENTRY_SIZE;
+				if (entries.getLong(entry) <= fromNanos) {
+					offset = entries.getLong(entry + 8);
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return offset;
+		}
+	}
+
+	private static MetaMessage tempo() throws InvalidMidiDataException {
+		byte[] data = { (byte) (MICROS_PER_QUARTER >> 16), (byte) (MICROS_PER_QUARTER >> 8),
+				(byte) MICROS_PER_QUARTER };
+		return new MetaMessage(0x51, data, data.length);
+	}
+
+	private static MetaMessage trackName(String name) throws InvalidMidiDataException {
+		byte[] data = name.getBytes(StandardCharsets.UTF_8);
+		return new MetaMessage(0x03, data, data.length);
+	}
+}
@@ -0,0 +1,262 @@
+package midiJam;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Append-only recording of everything the server relays, for export with
+// SessionExporter.
+//
+// The relay thread only copies each event into an in-memory ring; a writer
+// thread moves whole records from the ring into the memory-mapped journal file
+// and keeps the sparse time index. If the writer falls behind, new events are
+// dropped and counted rather than making the relay wait.
+//
+// Journal file, big-endian:
+//   header:  magic "MJSJ"(4) | version(2) | reserved(2) | startEpochMillis(8) | committedLength(8)
+//   records: kind(1) | time(8) | senderId(2) | payload
+//     MIDI   payload: statusAndChannel(1) | data1(1) | data2(1)
+//     NAME   payload: length(1) | UTF-8 name
+// time is nanoseconds since the journal was opened. committedLength is only
+// advanced past complete records, so a journal cut short by a crash still reads
+// cleanly up to the last commit.
+//
+// Index file (journal path + ".idx"):
+//   header:  magic "MJSI"(4) | version(2) | reserved(2)
+//   entries: time(8) | offset(8)
+// One entry about every INDEX_INTERVAL_NANOS, pointing at a record boundary
+// where the writer has repeated the NAME records of everyone seen so far, so a
+// reader that seeks there knows every participant.
+class SessionJournal {
+
+	static final int MAGIC = 0x4D4A534A;
+	static final int INDEX_MAGIC = 0x4D4A5349;
+	static final short VERSION = 1;
+	static final int HEADER_SIZE = 24;
+	static final int COMMITTED_LENGTH_OFFSET = 16;
+	static final int INDEX_HEADER_SIZE = 8;
+	static final int INDEX_ENTRY_SIZE = 16;
+
+	static final byte KIND_MIDI = 1;
+	static final byte KIND_NAME = 2;
+	static final int RECORD_HEADER_SIZE = 11;
+	static final int MIDI_RECORD_SIZE = RECORD_HEADER_SIZE + 3;
+
+	static final long INDEX_INTERVAL_NANOS = 1_000_000_000L;
+	private static final int RING_SIZE = 1 << 20;
+	private static final int RING_MASK = RING_SIZE - 1;
+	private static final int CHUNK_SIZE = 4 << 20;
+	private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+	private final Path path;
+	private final Logger logger;
+	private final long startNanos = System.nanoTime();
+	private final byte[] ring = new byte[RING_SIZE];
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean running = true;
+
+	private final FileChannel channel;
+	private final FileChannel indexChannel;
+	private final MappedByteBuffer header;
+	private MappedByteBuffer chunk;
+	private long chunkStart;
+	private long length = HEADER_SIZE;
+	private long nextIndexTime;
+	private final Map<Integer, byte[]> names = new HashMap<>();
+	private final byte[] record = new byte[RECORD_HEADER_SIZE + 1 + 255];
+	private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+	private final Thread writerThread;
+
+	SessionJournal(Path path, Logger logger) throws IOException {
+		this.path = path;
+		this.logger = logger;
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		indexChannel = FileChannel.open(indexPath(path), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		header.putInt(0, MAGIC);
+		header.putShort(4, VERSION);
+		header.putLong(8, System.currentTimeMillis());
+		header.putLong(COMMITTED_LENGTH_OFFSET, HEADER_SIZE);
+		mapChunk(HEADER_SIZE);
+
+		ByteBuffer indexHeader = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+		indexHeader.putInt(0, INDEX_MAGIC);
+		indexHeader.putShort(4, VERSION);
+		indexChannel.write(indexHeader);
+
+		writerThread = new Thread(this::writeLoop, "session-journal");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	static Path indexPath(Path journal) {
+		return journal.resolveSibling(journal.getFileName() + ".idx");
+	}
+
+	Path getPath() {
+		return path;
+	}
+
+	long getDroppedCount() {
+		return dropped.get();
+	}
+
+	// Relay thread only. Copies the event's MIDI bytes; nothing is allocated.
+	void recordMidi(int senderId, ByteBuffer frame) {
+		long position = head.get();
+		if (position + MIDI_RECORD_SIZE - tail.get() > RING_SIZE) {
+			dropped.incrementAndGet();
+			return;
+		}
+		position = putRecordHeader(position, KIND_MIDI, senderId);
+		ring[(int) (position++ & RING_MASK)] = frame.get(MidiProtocol.HEADER_SIZE);
+		ring[(int) (position++ & RING_MASK)] = frame.get(MidiProtocol.HEADER_SIZE + 1);
+		ring[(int) (position++ & RING_MASK)] = frame.get(MidiProtocol.HEADER_SIZE + 2);
+		head.lazySet(position);
+	}
+
+	// Relay thread only; called when a participant connects or is renamed.
+	void recordName(int senderId, String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		int nameLength = Math.min(bytes.length, 255);
+		long position = head.get();
+		if (position + RECORD_HEADER_SIZE + 1 + nameLength - tail.get() > RING_SIZE) {
+			dropped.incrementAndGet();
+			return;
+		}
+		position = putRecordHeader(position, KIND_NAME, senderId);
+		ring[(int) (position++ & RING_MASK)] = (byte) nameLength;
+		for (int i = 0; i < nameLength; i++) {
+			ring[(int) (position++ & RING_MASK)] = bytes[i];
+		}
+		head.lazySet(position);
+	}
+
+	private long putRecordHeader(long position, byte kind, int senderId) {
+		long time = System.nanoTime() - startNanos;
+		ring[(int) (position++ & RING_MASK)] = kind;
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			ring[(int) (position++ & RING_MASK)] = (byte) (time >>> shift);
+		}
+		ring[(int) (position++ & RING_MASK)] = (byte) (senderId >>> 8);
+		ring[(int) (position++ & RING_MASK)] = (byte) senderId;
+		return position;
+	}
+
+	// Stops the writer after it has written everything recorded so far.
+	void close() {
+		running = false;
+		try {
+			writerThread.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			chunk.force();
+			header.force();
+			// Drops the unused tail of the last chunk; readers rely on committedLength
+			// either way, so a platform that refuses to truncate a mapped file is fine.
+			try {
+				channel.truncate(length);
+			} catch (IOException e) {
+			}
+			channel.close();
+			indexChannel.close();
+		} catch (IOException e) {
+			// Everything up to the last commit is already in the mapping.
+		}
+	}
+
+	private void writeLoop() {
+		try {
+			while (running || tail.get() != head.get()) {
+				long position = tail.get();
+				long end = head.get();
+				if (position == end) {
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+					continue;
+				}
+				while (position < end) {
+					position = writeRecord(position);
+				}
+				tail.lazySet(position);
+				header.putLong(COMMITTED_LENGTH_OFFSET, length);
+			}
+		} catch (IOException e) {
+			running = false;
+			logger.error("Session journal stopped: " + e.getMessage());
+		}
+	}
+
+	private long writeRecord(long position) throws IOException {
+		byte kind = ring[(int) (position & RING_MASK)];
+		int size = kind == KIND_NAME ? RECORD_HEADER_SIZE + 1 + (ring[(int) ((position + RECORD_HEADER_SIZE)
+				& RING_MASK)] & 0xFF) : MIDI_RECORD_SIZE;
+		for (int i = 0; i < size; i++) {
+			record[i] = ring[(int) ((position + i) & RING_MASK)];
+		}
+		long time = 0;
+		for (int i = 1; i <= 8; i++) {
+			time = time << 8 | (record[i] & 0xFF);
+		}
+		int senderId = (record[9] & 0xFF) << 8 | (record[10] & 0xFF);
+
+		if (time >= nextIndexTime) {
+			writeIndexEntry(time);
+		}
+		if (kind == KIND_NAME) {
+			byte[] copy = new byte[size];
+			System.arraycopy(record, 0, copy, 0, size);
+			names.put(senderId, copy);
+		}
+		append(record, 0, size);
+		return position + size;
+	}
+
+	private void writeIndexEntry(long time) throws IOException {
+		indexEntry.clear();
+		indexEntry.putLong(0, time);
+		indexEntry.putLong(8, length);
+		indexChannel.write(indexEntry);
+		for (byte[] name : names.values()) {
+			// Repeated with the index entry's time so they sort with it.
+			ByteBuffer.wrap(name).putLong(1, time);
+			append(name, 0, name.length);
+		}
+		nextIndexTime = time - time % INDEX_INTERVAL_NANOS + INDEX_INTERVAL_NANOS;
+	}
+
+	private void append(byte[] bytes, int offset, int count) throws IOException {
+		while (count > 0) {
+			if (!chunk.hasRemaining()) {
+				mapChunk(chunkStart + CHUNK_SIZE);
+			}
+			int n = Math.min(count, chunk.remaining());
+			chunk.put(bytes, offset, n);
+			offset += n;
+			count -= n;
+			length += n;
+		}
+	}
+
+	private void mapChunk(long start) throws IOException {
+		if (chunk != null) {
+			chunk.force();
+		}
+		chunkStart = start;
+		chunk = channel.map(FileChannel.MapMode.READ_WRITE, start, CHUNK_SIZE);
+	}
+}
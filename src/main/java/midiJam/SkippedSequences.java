@@ -0,0 +1,83 @@
+package midiJam;
+
+import java.nio.ByteBuffer;
+
+// Sequences of one sender that the server dropped, replaced or held back
+// instead of relaying them in order, collected until they go out as a SKIP
+// frame. The marks are sent before a held value is relayed behind newer
+// frames, and at the latest once the oldest mark is half a receiver's window
+// behind, so receivers always hear of a mark before it would slide out of
+// their window as lost.
+//
+// Only the relay thread touches a SkippedSequences.
+class SkippedSequences {
+
+	// How far behind the sender's newest frame a mark or a held value may fall
+	// before it has to go out.
+	static final int FLUSH_DISTANCE = SequenceTracker.WINDOW / 2;
+
+	private boolean pending;
+	private int newest;
+	// Bit i is set when sequence (newest - i) is marked.
+	private long mask;
+
+	private boolean relayedAny;
+	private int newestRelayed;
+
+	// Returns false, marking nothing, if the sequence does not fit in one frame
+	// with the marks already pending.
+	boolean add(int sequence) {
+		if (!pending) {
+			pending = true;
+			newest = sequence;
+			mask = 1;
+			return true;
+		}
+		int ahead = MidiProtocol.sequenceDelta(sequence, newest);
+		if (ahead > 0) {
+			if (ahead + oldestOffset() >= SequenceTracker.WINDOW) {
+				return false;
+			}
+			mask = mask << ahead | 1;
+			newest = sequence;
+		} else {
+			if (-ahead >= SequenceTracker.WINDOW) {
+				return false;
+			}
+			mask |= 1L << -ahead;
+		}
+		return true;
+	}
+
+	boolean hasPending() {
+		return pending;
+	}
+
+	// True once relaying this sequence would leave the oldest mark too far behind.
+	boolean isDue(int sequence) {
+		return pending && MidiProtocol.sequenceDelta(sequence, newest - oldestOffset()) >= FLUSH_DISTANCE;
+	}
+
+	// True for a held value relayed after newer frames of the same sender.
+	boolean isBehindRelayed(int sequence) {
+		return relayedAny && MidiProtocol.sequenceDelta(sequence, newestRelayed) < 0;
+	}
+
+	void relayed(int sequence) {
+		if (!relayedAny || MidiProtocol.sequenceDelta(sequence, newestRelayed) > 0) {
+			relayedAny = true;
+			newestRelayed = sequence;
+		}
+	}
+
+	// Writes the pending marks into frame as a SKIP frame and forgets them.
+	void writeFrame(ByteBuffer frame, int clientId) {
+		MidiProtocol.writeSkip(frame, clientId, newest, mask);
+		pending = false;
+		mask = 0;
+	}
+
+	private int oldestOffset() {
+		return 63 - Long.numberOfLeadingZeros(mask);
+	}
+}
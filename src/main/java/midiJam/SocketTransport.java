@@ -0,0 +1,70 @@
+package midiJam;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+class SocketTransport implements ServerTransport {
+
+	private final DatagramSocket socket;
+	private final DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+
+	SocketTransport(int port) throws IOException {
+		this.socket = new DatagramSocket(port);
+	}
+
+	@Override
+	public ByteBuffer allocateFrame(int capacity) {
+		return ByteBuffer.allocate(capacity);
+	}
+
+	@Override
+	public InetSocketAddress receive(ByteBuffer frame) throws IOException {
+		receivePacket.setData(frame.array(), frame.arrayOffset(), frame.capacity());
+		try {
+			socket.receive(receivePacket);
+		} catch (SocketTimeoutException e) {
+			return null;
+		}
+		frame.clear().limit(receivePacket.getLength());
+		return (InetSocketAddress) receivePacket.getSocketAddress();
+	}
+
+	@Override
+	public void setReceiveTimeout(int millis) throws IOException {
+		socket.setSoTimeout(millis);
+	}
+
+	@Override
+	public void send(ByteBuffer frame, InetSocketAddress target) throws IOException {
+		byte[] data;
+		int offset;
+		if (frame.hasArray()) {
+			data = frame.array();
+			offset = frame.arrayOffset();
+		} else {
+			data = new byte[frame.limit()];
+			frame.get(0, data);
+			offset = 0;
+		}
+		socket.send(new DatagramPacket(data, offset, frame.limit(), target));
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !socket.isClosed();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+
+	@Override
+	public void close() {
+		socket.close();
+	}
+}
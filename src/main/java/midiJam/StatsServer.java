@@ -0,0 +1,55 @@
+package midiJam;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Read-only stats endpoint bound to the loopback interface:
+// /stats for plain text, /stats.json for JSON.
+class StatsServer {
+
+	private final HttpServer httpServer;
+
+	StatsServer(int port, RelayMetrics metrics) throws IOException {
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/stats.json",
+				exchange -> respond(exchange, "application/json", metrics::toJson));
+		httpServer.createContext("/stats", exchange -> respond(exchange, "text/plain", metrics::toText));
+	}
+
+	void start() {
+		httpServer.start();
+	}
+
+	void stop() {
+		httpServer.stop(0);
+	}
+
+	int getPort() {
+		return httpServer.getAddress().getPort();
+	}
+
+	private static void respond(HttpExchange exchange, String contentType, Supplier<String> body)
+			throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] response = body.get().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+			exchange.sendResponseHeaders(200, response.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(response);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+}
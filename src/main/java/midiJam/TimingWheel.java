@@ -0,0 +1,149 @@
+package midiJam;
+
+// Hashed timing wheel (Varghese and Lauck): deadlines hash by tick into a ring
+// of slots, each an intrusive doubly linked list, so scheduling and cancelling
+// are O(1) and advancing only looks at the slots whose ticks have passed.
+// Deadlines more than one rotation away stay in their slot until their round
+// comes up. Timeouts never fire early, and at most one tick late.
+//
+// Deadlines are System.nanoTime values. Not thread-safe: the server keeps its
+// wheel on the relay thread.
+class TimingWheel<T> {
+
+	interface Handler<T> {
+		// May schedule the expired timeout again, and schedule new ones, but must
+		// not cancel other timeouts.
+		void expired(T owner, long now);
+	}
+
+	static final class Timeout<T> {
+		final T owner;
+		private Timeout<T> prev;
+		private Timeout<T> next;
+		private long deadlineTick;
+		private int slot = -1;
+
+		Timeout(T owner) {
+			this.owner = owner;
+		}
+
+		boolean isScheduled() {
+			return slot >= 0;
+		}
+	}
+
+	private final Timeout<T>[] slots;
+	private final int mask;
+	private final long tickNanos;
+	private final long origin;
+	private final Handler<T> handler;
+	// Every tick up to and including this one has been processed.
+	private long currentTick;
+	// No timeout is due before this tick. Kept by schedule and advance; a cancel
+	// may leave it early, which only costs an early look.
+	private long nextTick = Long.MAX_VALUE;
+	private int size;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	TimingWheel(int slotCount, long tickNanos, long now, Handler<T> handler) {
+		if (Integer.bitCount(slotCount) != 1) {
+			throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+		}
+		this.slots = (Timeout<T>[]) new Timeout[slotCount];
+		this.mask = slotCount - 1;
+		this.tickNanos = tickNanos;
+		this.origin = now;
+		this.handler = handler;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void schedule(Timeout<T> timeout, long deadline) {
+		cancel(timeout);
+		// Rounded up, so a timeout never fires before its deadline.
+		long tick = Math.max(Math.floorDiv(deadline - origin + tickNanos - 1, tickNanos), currentTick + 1);
+		int slot = (int) (tick & mask);
+		timeout.deadlineTick = tick;
+		timeout.slot = slot;
+		timeout.prev = null;
+		timeout.next = slots[slot];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		slots[slot] = timeout;
+		size++;
+		nextTick = Math.min(nextTick, tick);
+	}
+
+	void cancel(Timeout<T> timeout) {
+		if (timeout.slot < 0) {
+			return;
+		}
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			slots[timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.slot = -1;
+		size--;
+	}
+
+	// Fires every timeout whose tick has passed. After a long stall one full
+	// rotation covers every slot, however many ticks were missed.
+	void advance(long now) {
+		long target = Math.floorDiv(now - origin, tickNanos);
+		if (target <= currentTick) {
+			return;
+		}
+		long start = currentTick;
+		// Set first, so whatever the handler schedules lands after this pass.
+		currentTick = target;
+		long ticks = Math.min(target - start, slots.length);
+		for (long i = 1; i <= ticks; i++) {
+			Timeout<T> timeout = slots[(int) ((start + i) & mask)];
+			while (timeout != null) {
+				Timeout<T> next = timeout.next;
+				if (timeout.deadlineTick <= target) {
+					cancel(timeout);
+					handler.expired(timeout.owner, now);
+				}
+				timeout = next;
+			}
+		}
+		if (nextTick <= target) {
+			nextTick = findNextTick();
+		}
+	}
+
+	// When advance next has something to fire, for whoever decides how long to
+	// sleep; Long.MAX_VALUE when the wheel is empty.
+	long nextDeadline() {
+		return size == 0 ? Long.MAX_VALUE : origin + nextTick * tickNanos;
+	}
+
+	// The earliest tick with a timeout. Slots are visited in tick order from the
+	// next one, so the search stops at the first slot holding a timeout for that
+	// very tick.
+	private long findNextTick() {
+		if (size == 0) {
+			return Long.MAX_VALUE;
+		}
+		long earliest = Long.MAX_VALUE;
+		for (long tick = currentTick + 1; tick <= currentTick + slots.length; tick++) {
+			for (Timeout<T> timeout = slots[(int) (tick & mask)]; timeout != null; timeout = timeout.next) {
+				earliest = Math.min(earliest, timeout.deadlineTick);
+			}
+			if (earliest <= tick) {
+				return earliest;
+			}
+		}
+		return earliest;
+	}
+}
@@ -0,0 +1,54 @@
+package midiJam;
+
+// Token bucket kept as nanoseconds of credit: every token costs 1/rate seconds
+// and the credit is capped at burst tokens, so refilling is one subtraction of
+// timestamps and nothing is allocated. A rate of 0 means unlimited.
+class TokenBucket {
+
+	private final long nanosPerToken;
+	private final long capacityNanos;
+	private long creditNanos;
+	private long lastRefillNanos;
+
+	TokenBucket(double tokensPerSecond, int burst, long now) {
+		nanosPerToken = tokensPerSecond > 0 ? Math.max(1, (long) (1e9 / tokensPerSecond)) : 0;
+		capacityNanos = nanosPerToken * Math.max(1, burst);
+		creditNanos = capacityNanos;
+		lastRefillNanos = now;
+	}
+
+	boolean isUnlimited() {
+		return nanosPerToken == 0;
+	}
+
+	boolean tryTake(long now) {
+		refill(now);
+		if (creditNanos < nanosPerToken) {
+			return false;
+		}
+		creditNanos -= nanosPerToken;
+		return true;
+	}
+
+	// Takes a token even if there is none, so traffic that must go through still
+	// counts against the budget. The debt is capped at one full burst.
+	void take(long now) {
+		refill(now);
+		creditNanos = Math.max(creditNanos - nanosPerToken, -capacityNanos);
+	}
+
+	// How long until tryTake can succeed; 0 if it can now.
+	long nanosUntilToken(long now) {
+		long elapsed = Math.max(0, now - lastRefillNanos);
+		long credit = Math.min(capacityNanos, creditNanos + elapsed);
+		return Math.max(0, nanosPerToken - credit);
+	}
+
+	private void refill(long now) {
+		long elapsed = now - lastRefillNanos;
+		lastRefillNanos = now;
+		if (elapsed > 0) {
+			creditNanos = Math.min(capacityNanos, creditNanos + elapsed);
+		}
+	}
+}
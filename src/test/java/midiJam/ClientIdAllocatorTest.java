@@ -0,0 +1,69 @@
+package midiJam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class ClientIdAllocatorTest {
+
+	// Each reuse of an id hands out a handle no earlier holder had; once the
+	// generation wraps the id is held back until the quarantine has run out.
+	@Test
+	void wrappedIdIsNotReusedUntilQuarantineEnds() {
+		ClientIdAllocator ids = new ClientIdAllocator(1);
+		Set<Integer> handles = new HashSet<>();
+		long now = 0;
+		for (int reuse = 0; reuse <= MidiProtocol.MAX_GENERATION; reuse++) {
+			int id = ids.allocate(now);
+			assertEquals(0, id);
+			assertTrue(handles.add(MidiProtocol.clientHandle(id, ids.generation(id))));
+			ids.release(id, now);
+		}
+
+		assertEquals(0, ids.generation(0));
+		assertEquals(-1, ids.allocate(now));
+		assertEquals(-1, ids.allocate(now + ClientIdAllocator.QUARANTINE_NANOS - 1));
+		assertEquals(0, ids.allocate(now + ClientIdAllocator.QUARANTINE_NANOS));
+	}
+
+	// Other ids keep being handed out while a wrapped one sits out.
+	@Test
+	void quarantineOnlyHoldsBackTheWrappedId() {
+		ClientIdAllocator ids = new ClientIdAllocator(2);
+		int held = ids.allocate(0);
+		for (int reuse = 0; reuse <= MidiProtocol.MAX_GENERATION; reuse++) {
+			ids.release(ids.allocate(0), 0);
+		}
+
+		assertEquals(0, ids.available());
+		assertEquals(-1, ids.allocate(0));
+		ids.release(held, 0);
+		assertEquals(held, ids.allocate(0));
+		assertEquals(1 - held, ids.allocate(ClientIdAllocator.QUARANTINE_NANOS));
+	}
+
+	// A frame still carrying the handle of an earlier holder of the sender's id
+	// is dropped rather than relayed as the sender's.
+	@Test
+	void frameWithStaleGenerationIsDropped() {
+		ServerUtils server = new ServerUtils(false, null);
+		server.coalesceIntervalMillis = 0;
+		server.coalesceMaxRate = 0;
+		RelayHarness relay = new RelayHarness(server);
+		RelayHarness.Player sender = relay.connect("sender");
+		RelayHarness.Player receiver = relay.connect("receiver");
+
+		int handle = sender.handle;
+		sender.handle = MidiProtocol.clientHandle(sender.id, (handle >>> 14) + 1);
+		sender.sendMidi(0x90, 0, 60, 100);
+		sender.handle = handle;
+		sender.sendMidi(0x90, 0, 62, 100);
+
+		assertEquals(1, receiver.eventsFrom(sender).size());
+		assertEquals(0x90 | 62 << 8, (int) receiver.eventsFrom(sender).get(0));
+	}
+}
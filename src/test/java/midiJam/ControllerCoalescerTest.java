@@ -0,0 +1,64 @@
+package midiJam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class ControllerCoalescerTest {
+
+	// The values a sweep coalesces away are never relayed, and the one kept for
+	// each controller goes out after the other controller's newer values;
+	// receivers must count neither as loss nor as reordering.
+	@Test
+	void coalescedSweepIsNotCountedLost() throws InterruptedException {
+		ServerUtils server = new ServerUtils(false, null);
+		server.floodLimits = FloodGuard.Limits.unlimited();
+		RelayHarness relay = new RelayHarness(server);
+		RelayHarness.Player sender = relay.connect("sender");
+		RelayHarness.Player receiver = relay.connect("receiver");
+
+		for (int value = 0; value < 128; value++) {
+			sender.sendMidi(0xE0, 0, 0, value);
+			sender.sendMidi(0xB0, 0, 1, value);
+		}
+		relay.idleUntil(() -> receiver.lastControllerValue(0, 1) == 127, 2000);
+		// Notes play on far enough for the last marks to be reported.
+		for (int i = 0; i < 40; i++) {
+			sender.sendMidi(0x90, 0, 60, 100);
+		}
+
+		SequenceTracker tracker = receiver.receiveSequence(sender);
+		assertEquals(127, receiver.lastControllerValue(0, 1));
+		assertEquals(0, tracker.getLost());
+		assertEquals(0, tracker.getReordered());
+		assertEquals(0, tracker.getLate());
+		assertTrue(tracker.getSkipped() > 0);
+		assertEquals(2 * 128 + 40, tracker.getReceived() + tracker.getSkipped());
+	}
+
+	// A value pending behind a long spacing goes out before the sender's newer
+	// frames push it out of the receivers' window. Each aftertouch key's first
+	// value is relayed at once, without flushing what is pending.
+	@Test
+	void pendingValueIsReleasedBeforeItIsLate() {
+		ServerUtils server = new ServerUtils(false, null);
+		server.floodLimits = FloodGuard.Limits.unlimited();
+		server.coalesceIntervalMillis = 60_000;
+		RelayHarness relay = new RelayHarness(server);
+		RelayHarness.Player sender = relay.connect("sender");
+		RelayHarness.Player receiver = relay.connect("receiver");
+
+		sender.sendMidi(0xB0, 0, 1, 10);
+		sender.sendMidi(0xB0, 0, 1, 20);
+		for (int note = 0; note < 100; note++) {
+			sender.sendMidi(0xA0, 0, note, 64);
+		}
+
+		SequenceTracker tracker = receiver.receiveSequence(sender);
+		assertEquals(20, receiver.lastControllerValue(0, 1));
+		assertEquals(0, tracker.getLost());
+		assertEquals(0, tracker.getReordered());
+		assertEquals(0, tracker.getLate());
+	}
+}
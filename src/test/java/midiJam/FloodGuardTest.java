@@ -0,0 +1,68 @@
+package midiJam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class FloodGuardTest {
+
+	// A sweep over the controller budget is held back value by value; the values
+	// it replaces are never relayed and the one it keeps goes out behind newer
+	// notes. None of that may look like loss or reordering to a receiver.
+	@Test
+	void heldControllerSweepIsNotCountedLostOrReordered() throws InterruptedException {
+		ServerUtils server = new ServerUtils(false, null);
+		server.floodLimits.set("controllers=20/1");
+		server.floodLimits.set("notes=0");
+		server.coalesceIntervalMillis = 0;
+		server.coalesceMaxRate = 0;
+		RelayHarness relay = new RelayHarness(server);
+		RelayHarness.Player sender = relay.connect("sender");
+		RelayHarness.Player receiver = relay.connect("receiver");
+
+		for (int value = 0; value < 128; value++) {
+			sender.sendMidi(0xB0, 0, 1, value);
+			sender.sendMidi(0x90, 0, 60, 100);
+			sender.sendMidi(0x80, 0, 60, 0);
+		}
+		relay.idleUntil(() -> receiver.lastControllerValue(0, 1) == 127, 2000);
+
+		SequenceTracker tracker = receiver.receiveSequence(sender);
+		assertEquals(127, receiver.lastControllerValue(0, 1));
+		assertEquals(0, tracker.getLost());
+		assertEquals(0, tracker.getReordered());
+		assertEquals(0, tracker.getLate());
+		assertTrue(tracker.getSkipped() > 0);
+		assertEquals(3 * 128, tracker.getReceived() + tracker.getSkipped());
+	}
+
+	// Notes over budget are dropped, hundreds in a row.
+	@Test
+	void droppedNotesAreNotCountedLost() {
+		ServerUtils server = new ServerUtils(false, null);
+		server.floodLimits.set("notes=10/10");
+		server.coalesceIntervalMillis = 0;
+		server.coalesceMaxRate = 0;
+		RelayHarness relay = new RelayHarness(server);
+		RelayHarness.Player sender = relay.connect("sender");
+		RelayHarness.Player receiver = relay.connect("receiver");
+
+		for (int i = 0; i < 500; i++) {
+			sender.sendMidi(0x90, 0, 60 + i % 12, 100);
+			sender.sendMidi(0x80, 0, 60 + i % 12, 0);
+		}
+		// Controllers, on their own budget, play on far enough for the last drops
+		// to be reported.
+		for (int value = 0; value < 40; value++) {
+			sender.sendMidi(0xB0, 0, 7, value);
+		}
+
+		SequenceTracker tracker = receiver.receiveSequence(sender);
+		assertEquals(39, receiver.lastControllerValue(0, 7));
+		assertEquals(0, tracker.getLost());
+		assertEquals(0, tracker.getReordered());
+		assertTrue(tracker.getSkipped() > 0);
+		assertEquals(1040, tracker.getReceived() + tracker.getSkipped());
+	}
+}
@@ -0,0 +1,45 @@
+package midiJam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class LoggerTest {
+
+	// Loggers come and go with every server and client, so they must not bring
+	// a thread each.
+	@Test
+	void loggersShareOneDrainThread() {
+		List<List<String>> outputs = new ArrayList<>();
+		List<Logger> loggers = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			List<String> lines = new ArrayList<>();
+			outputs.add(lines);
+			loggers.add(new Logger(batch -> {
+				synchronized (lines) {
+					lines.addAll(Arrays.asList(batch.split("\n")));
+				}
+			}));
+		}
+		for (int i = 0; i < loggers.size(); i++) {
+			loggers.get(i).log("first " + i);
+			loggers.get(i).warn("second " + i);
+		}
+		for (Logger logger : loggers) {
+			logger.flush();
+		}
+
+		for (int i = 0; i < outputs.size(); i++) {
+			synchronized (outputs.get(i)) {
+				assertEquals(Arrays.asList("first " + i, "[WARN] second " + i), outputs.get(i));
+			}
+		}
+		long drainThreads = Thread.getAllStackTraces().keySet().stream()
+				.filter(thread -> thread.getName().equals("logger")).count();
+		assertEquals(1, drainThreads);
+	}
+}
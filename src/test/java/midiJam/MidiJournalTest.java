@@ -0,0 +1,94 @@
+package midiJam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class MidiJournalTest {
+
+	// Note-on 62, note-on 60 (lost), note-off 60, then note-on 64 carrying all
+	// three in its journal.
+	private static void playLostNoteOn(RelayHarness.Player sender) {
+		sender.journal.setDepth(MidiProtocol.MAX_JOURNAL_DEPTH);
+		sender.sendMidi(0x90, 0, 62, 100);
+		sender.loseNext();
+		sender.sendMidi(0x90, 0, 60, 100);
+		sender.sendMidi(0x80, 0, 60, 0);
+		sender.sendMidi(0x90, 0, 64, 100);
+	}
+
+	// The server recovers the lost note-on from the journal and the receiver sees
+	// the same journal: neither may play it after its note-off.
+	@Test
+	void lostNoteOnIsNotReplayedAfterItsNoteOff() {
+		ServerUtils server = new ServerUtils(false, null);
+		RelayHarness relay = new RelayHarness(server);
+		RelayHarness.Player sender = relay.connect("sender");
+		RelayHarness.Player receiver = relay.connect("receiver", MidiProtocol.OPTION_JOURNAL);
+
+		playLostNoteOn(sender);
+
+		assertEquals(Arrays.asList(0x90 | 62 << 8, 0x80 | 60 << 8, 0x90 | 64 << 8), receiver.eventsFrom(sender));
+		assertEquals(0, receiver.receiveSequence(sender).getLost());
+	}
+
+	// The same sequence straight from the sender to a client, as in direct mode.
+	@Test
+	void clientDoesNotReplayLostNoteOnAfterItsNoteOff() {
+		RelayHarness relay = new RelayHarness(new ServerUtils(false, null));
+		RelayHarness.Player receiver = relay.connect("receiver");
+		MidiJournal journal = new MidiJournal(MidiProtocol.MAX_JOURNAL_DEPTH);
+		ByteBuffer frame = ByteBuffer.allocate(64);
+		int[][] events = { { 0x90, 62, 100 }, { 0x90, 60, 100 }, { 0x80, 60, 0 }, { 0x90, 64, 100 } };
+		for (int sequence = 0; sequence < events.length; sequence++) {
+			MidiProtocol.writeMidi(frame, 9, sequence, events[sequence][0], 0, events[sequence][1],
+					events[sequence][2]);
+			journal.appendTo(frame);
+			journal.record(frame);
+			if (sequence != 1) {
+				receiver.client.handleServerPacket(frame);
+			}
+		}
+
+		assertEquals(Arrays.asList(0x90 | 62 << 8, 0x80 | 60 << 8, 0x90 | 64 << 8), receiver.eventsFrom(9));
+	}
+
+	// A lost event nothing later undoes is played from the next frame's journal.
+	@Test
+	void lostEventIsRecoveredFromTheNextFrame() {
+		ServerUtils server = new ServerUtils(false, null);
+		RelayHarness relay = new RelayHarness(server);
+		RelayHarness.Player sender = relay.connect("sender");
+		RelayHarness.Player receiver = relay.connect("receiver", MidiProtocol.OPTION_JOURNAL);
+		sender.journal.setDepth(MidiProtocol.MAX_JOURNAL_DEPTH);
+
+		sender.sendMidi(0x90, 0, 62, 100);
+		sender.loseNext();
+		sender.sendMidi(0x90, 0, 60, 100);
+		sender.sendMidi(0x90, 0, 64, 100);
+
+		assertEquals(Arrays.asList(0x90 | 62 << 8, 0x90 | 60 << 8, 0x90 | 64 << 8), receiver.eventsFrom(sender));
+		assertEquals(0, receiver.receiveSequence(sender).getLost());
+	}
+
+	@Test
+	void journalRepeatsTheLatestEventsOldestFirst() {
+		MidiJournal journal = new MidiJournal(2);
+		ByteBuffer frame = ByteBuffer.allocate(64);
+		for (int sequence = 1; sequence <= 3; sequence++) {
+			MidiProtocol.writeMidi(frame, 7, sequence, 0x90, 0, 59 + sequence, 100);
+			journal.appendTo(frame);
+			journal.record(frame);
+		}
+
+		assertEquals(2, MidiProtocol.journalCount(frame));
+		assertEquals(1, MidiProtocol.journalSequence(frame, 0));
+		assertEquals(2, MidiProtocol.journalSequence(frame, 1));
+		ByteBuffer entry = ByteBuffer.allocate(MidiProtocol.MIDI_FRAME_SIZE);
+		MidiProtocol.readJournalEntry(frame, 1, entry);
+		assertEquals(61, MidiProtocol.midiData1(entry));
+	}
+}
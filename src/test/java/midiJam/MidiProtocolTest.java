@@ -0,0 +1,31 @@
+package midiJam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class MidiProtocolTest {
+
+	// Options smuggled in with the name come before the ones the client appends
+	// and so cannot override them.
+	@Test
+	void nameCannotOverrideHandshakeOptions() {
+		String connectMessage = MidiProtocol.withOption("CONNECT:bob;proto=1;room=other", MidiProtocol.OPTION_PROTOCOL,
+				MidiProtocol.VERSION_BINARY);
+		connectMessage = MidiProtocol.withOption(connectMessage, MidiProtocol.OPTION_ROOM, "lobby");
+
+		assertEquals(MidiProtocol.VERSION_BINARY, MidiProtocol.protocolVersion(connectMessage));
+		assertEquals("lobby", MidiProtocol.option(connectMessage, MidiProtocol.OPTION_ROOM));
+	}
+
+	@Test
+	void sanitizedNameCarriesNoOptions() {
+		String name = MidiProtocol.sanitizeClientName(" bob;proto=1 ");
+		String connectMessage = MidiProtocol.withOption("CONNECT:" + name, MidiProtocol.OPTION_PROTOCOL,
+				MidiProtocol.VERSION_BINARY);
+
+		assertEquals("bobproto=1", name);
+		assertEquals("CONNECT:bobproto=1", MidiProtocol.stripOptions(connectMessage));
+		assertEquals(MidiProtocol.VERSION_BINARY, MidiProtocol.protocolVersion(connectMessage));
+	}
+}
@@ -0,0 +1,200 @@
+package midiJam;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+// A ServerUtils relay driven one packet at a time over an in-memory transport.
+// Every player is a headless MidiJamClientNetworking that decodes what the
+// server sends it, so tests see the receive side exactly as a client does.
+class RelayHarness implements ServerTransport {
+
+	private final ServerUtils server;
+	private final ByteBuffer frame = ByteBuffer.allocate(1024);
+	private final ArrayDeque<Datagram> inbound = new ArrayDeque<>();
+	private final Map<InetSocketAddress, Player> players = new HashMap<>();
+	private int nextPort = 40000;
+
+	// The server's limits must be configured before it is handed over.
+	RelayHarness(ServerUtils server) {
+		this.server = server;
+		server.transport = this;
+		server.allocateRelayBuffers();
+	}
+
+	// Options are handshake flags such as MidiProtocol.OPTION_JOURNAL, all set to 1.
+	Player connect(String name, String... options) {
+		Player player = new Player(new InetSocketAddress(InetAddress.getLoopbackAddress(), nextPort++));
+		players.put(player.address, player);
+		String connectMessage = MidiProtocol.withOption("CONNECT:" + name, MidiProtocol.OPTION_PROTOCOL,
+				MidiProtocol.VERSION_BINARY);
+		for (String option : options) {
+			connectMessage = MidiProtocol.withOption(connectMessage, option, 1);
+		}
+		player.send(ByteBuffer.wrap(connectMessage.getBytes()));
+		if (player.id < 0) {
+			throw new IllegalStateException("No ID for " + name);
+		}
+		return player;
+	}
+
+	// Lets the relay run with nothing arriving until the condition holds.
+	void idleUntil(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+		while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+			server.relayNext(frame);
+			Thread.sleep(1);
+		}
+	}
+
+	@Override
+	public ByteBuffer allocateFrame(int capacity) {
+		return ByteBuffer.allocate(capacity);
+	}
+
+	@Override
+	public InetSocketAddress receive(ByteBuffer frame) {
+		Datagram datagram = inbound.poll();
+		if (datagram == null) {
+			return null;
+		}
+		frame.clear();
+		frame.put(datagram.payload);
+		frame.flip();
+		return datagram.source;
+	}
+
+	@Override
+	public void setReceiveTimeout(int millis) {
+	}
+
+	@Override
+	public void send(ByteBuffer frame, InetSocketAddress target) {
+		Player player = players.get(target);
+		if (player == null) {
+			return;
+		}
+		byte[] payload = new byte[frame.limit()];
+		frame.duplicate().position(0).get(payload);
+		ByteBuffer copy = ByteBuffer.wrap(payload);
+		if (MidiProtocol.isBinary(copy)) {
+			player.client.handleServerPacket(copy);
+		} else {
+			String message = new String(payload).trim();
+			if (message.startsWith("ID:")) {
+				player.id = Integer.parseInt(MidiProtocol.stripOptions(message).substring(3));
+				player.handle = MidiProtocol.clientHandle(player.id,
+						MidiProtocol.intOption(message, MidiProtocol.OPTION_GENERATION, 0));
+			}
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public int getLocalPort() {
+		return 0;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	class Player {
+		final InetSocketAddress address;
+		final List<int[]> events = new ArrayList<>();
+		final MidiJamClientNetworking client = new MidiJamClientNetworking(new ClientUtils(false, null), null) {
+			@Override
+			void handleMidiEvent(int senderClientId, int status, int channel, int data1, int data2) {
+				events.add(new int[] { senderClientId, status, channel, data1, data2 });
+			}
+		};
+		// Repeated in each MIDI frame this player sends; depth 0 until a test sets it.
+		final MidiJournal journal = new MidiJournal(0);
+		int id = -1;
+		int handle;
+		private int sequence;
+		private boolean loseNext;
+		private final ByteBuffer midiFrame = ByteBuffer.allocate(MidiProtocol.MIDI_FRAME_SIZE + 1
+				+ MidiProtocol.MAX_JOURNAL_DEPTH * MidiProtocol.JOURNAL_ENTRY_SIZE);
+
+		Player(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		void sendMidi(int status, int channel, int data1, int data2) {
+			MidiProtocol.writeMidi(midiFrame, handle, sequence, status, channel, data1, data2);
+			journal.appendTo(midiFrame);
+			journal.record(midiFrame);
+			sequence = (sequence + 1) & 0xFFFF;
+			if (loseNext) {
+				loseNext = false;
+				return;
+			}
+			send(midiFrame);
+		}
+
+		// The next frame this player sends never reaches the server.
+		void loseNext() {
+			loseNext = true;
+		}
+
+		// Events this player heard from sender, as status | data1 << 8, status
+		// including the channel.
+		List<Integer> eventsFrom(Player sender) {
+			return eventsFrom(sender.id);
+		}
+
+		List<Integer> eventsFrom(int senderId) {
+			List<Integer> heard = new ArrayList<>();
+			for (int[] event : events) {
+				if (event[0] == senderId) {
+					heard.add(event[1] | event[2] | event[3] << 8);
+				}
+			}
+			return heard;
+		}
+
+		// Sequence accounting for what this player heard from sender.
+		SequenceTracker receiveSequence(Player sender) {
+			return client.receiveSequence(sender.id);
+		}
+
+		// The last value this player heard for a controller, or -1.
+		int lastControllerValue(int channel, int controller) {
+			for (int i = events.size() - 1; i >= 0; i--) {
+				int[] event = events.get(i);
+				if (event[1] == 0xB0 && event[2] == channel && event[3] == controller) {
+					return event[4];
+				}
+			}
+			return -1;
+		}
+
+		private void send(ByteBuffer payload) {
+			byte[] bytes = new byte[payload.limit()];
+			payload.duplicate().position(0).get(bytes);
+			inbound.add(new Datagram(address, bytes));
+			server.relayNext(frame);
+		}
+	}
+
+	private static class Datagram {
+		final InetSocketAddress source;
+		final byte[] payload;
+
+		Datagram(InetSocketAddress source, byte[] payload) {
+			this.source = source;
+			this.payload = payload;
+		}
+	}
+}
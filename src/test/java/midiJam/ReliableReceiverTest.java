@@ -0,0 +1,59 @@
+package midiJam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ReliableReceiverTest {
+
+	private final ReliableReceiver receiver = new ReliableReceiver();
+	private final List<Integer> missing = new ArrayList<>();
+
+	// Each gap is NACKed once, when it is first noticed; the retransmit that
+	// fills it is delivered and any further copy is dropped.
+	@Test
+	void gapIsReportedOnceAndFilledOnce() {
+		assertTrue(receiver.accept(1, missing::add));
+		assertTrue(receiver.accept(4, missing::add));
+		assertEquals(Arrays.asList(2, 3), missing);
+
+		assertTrue(receiver.accept(5, missing::add));
+		assertTrue(receiver.accept(3, missing::add));
+		assertTrue(receiver.accept(2, missing::add));
+		assertEquals(Arrays.asList(2, 3), missing);
+
+		assertFalse(receiver.accept(2, missing::add));
+		assertFalse(receiver.accept(5, missing::add));
+		assertTrue(receiver.accept(6, missing::add));
+		assertEquals(Arrays.asList(2, 3), missing);
+	}
+
+	// A sequence too far ahead to track the gap writes off everything before it.
+	@Test
+	void farAheadSequenceWritesOffTheGap() {
+		assertTrue(receiver.accept(1, missing::add));
+		assertTrue(receiver.accept(100, missing::add));
+		assertEquals(Collections.emptyList(), missing);
+
+		assertFalse(receiver.accept(50, missing::add));
+		assertTrue(receiver.accept(101, missing::add));
+		assertEquals(Collections.emptyList(), missing);
+	}
+
+	@Test
+	void sequenceWrapIsNotAGap() {
+		for (int sequence = 1; sequence <= 0xFFFF; sequence++) {
+			assertTrue(receiver.accept(sequence, missing::add));
+		}
+		assertTrue(receiver.accept(0, missing::add));
+		assertTrue(receiver.accept(1, missing::add));
+		assertEquals(Collections.emptyList(), missing);
+	}
+}
@@ -0,0 +1,86 @@
+package midiJam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ReliableSenderTest {
+
+	private static final long RTO = 100_000_000L;
+
+	private final ReliableSender sender = new ReliableSender();
+	private final ByteBuffer out = ByteBuffer.allocate(MidiProtocol.RELIABLE_MIDI_FRAME_SIZE);
+	private final List<Integer> resent = new ArrayList<>();
+
+	@Test
+	void ackedFrameIsNotResent() {
+		int first = send(0x80, 60, 0);
+		int second = send(0x80, 62, RTO / 2);
+		sender.ack(first);
+
+		assertEquals(RTO / 2 + RTO, sender.nextDueNanos(RTO));
+		assertEquals(0, retransmitDue(RTO));
+		assertEquals(1, retransmitDue(RTO / 2 + RTO));
+		assertEquals(second, (int) resent.get(0));
+		assertEquals(62, out.get(MidiProtocol.HEADER_SIZE + 1));
+	}
+
+	// A NACK resends at once, without waiting for the timeout, and restarts it.
+	@Test
+	void nackResendsTheHeldCopy() {
+		int sequence = send(0x80, 60, 0);
+
+		assertFalse(sender.nack(sequence + 1, 10, out));
+		assertTrue(sender.nack(sequence, 10, out));
+		assertEquals(sequence, MidiProtocol.reliableSequence(out));
+		assertEquals(10 + RTO, sender.nextDueNanos(RTO));
+
+		sender.ack(sequence);
+		assertFalse(sender.nack(sequence, 20, out));
+		assertEquals(Long.MAX_VALUE, sender.nextDueNanos(RTO));
+	}
+
+	@Test
+	void frameIsGivenUpAfterMaxRetries() {
+		send(0x80, 60, 0);
+		long now = 0;
+		for (int retry = 0; retry < ReliableSender.MAX_RETRIES; retry++) {
+			now += RTO;
+			assertEquals(1, retransmitDue(now));
+		}
+		assertEquals(0, sender.takeGiveUps());
+
+		assertEquals(0, retransmitDue(now + RTO));
+		assertEquals(1, sender.takeGiveUps());
+		assertEquals(0, sender.takeGiveUps());
+		assertEquals(Long.MAX_VALUE, sender.nextDueNanos(RTO));
+	}
+
+	// The window wrapping onto a frame still waiting for its ACK abandons it.
+	@Test
+	void windowWrapGivesUpTheOldestFrame() {
+		for (int i = 0; i < ReliableSender.WINDOW; i++) {
+			send(0x80, 60, 0);
+		}
+		assertEquals(0, sender.takeGiveUps());
+		send(0x80, 60, 0);
+		assertEquals(1, sender.takeGiveUps());
+	}
+
+	private int send(int status, int note, long now) {
+		ByteBuffer frame = ByteBuffer.allocate(MidiProtocol.RELIABLE_MIDI_FRAME_SIZE);
+		MidiProtocol.writeReliableMidi(frame, 1, 0, status, 0, note, 0);
+		sender.track(frame, now);
+		return MidiProtocol.reliableSequence(frame);
+	}
+
+	private int retransmitDue(long now) {
+		return sender.retransmitDue(now, RTO, out, frame -> resent.add(MidiProtocol.reliableSequence(frame)));
+	}
+}
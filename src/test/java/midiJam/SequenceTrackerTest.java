@@ -0,0 +1,81 @@
+package midiJam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class SequenceTrackerTest {
+
+	// A gap is not loss until it slides out of the window; what fills it before
+	// then is reordering.
+	@Test
+	void gapIsLostOnlyOnceItLeavesTheWindow() {
+		SequenceTracker tracker = new SequenceTracker();
+		assertTrue(tracker.accept(0));
+		assertTrue(tracker.accept(3));
+		assertTrue(tracker.accept(1));
+		assertEquals(0, tracker.getLost());
+		assertEquals(1, tracker.getReordered());
+
+		assertTrue(tracker.accept(2 + SequenceTracker.WINDOW - 1));
+		assertEquals(0, tracker.getLost());
+		assertTrue(tracker.accept(2 + SequenceTracker.WINDOW));
+		assertEquals(1, tracker.getLost());
+		assertFalse(tracker.accept(2));
+		assertEquals(1, tracker.getLate());
+	}
+
+	@Test
+	void duplicatesAreDroppedAndCounted() {
+		SequenceTracker tracker = new SequenceTracker();
+		assertTrue(tracker.accept(10));
+		assertTrue(tracker.accept(12));
+		assertTrue(tracker.accept(11));
+		assertFalse(tracker.accept(12));
+		assertFalse(tracker.accept(11));
+		assertTrue(tracker.hasSeen(11));
+
+		assertEquals(3, tracker.getReceived());
+		assertEquals(2, tracker.getDuplicates());
+		assertEquals(1, tracker.getReordered());
+		assertEquals(0, tracker.getLost());
+	}
+
+	// Sequence numbers are 16 bits; the step from 0xFFFF to 0 is not a gap.
+	@Test
+	void sequenceWrapIsNotLossOrReordering() {
+		SequenceTracker tracker = new SequenceTracker();
+		for (int i = 0; i < 4; i++) {
+			assertTrue(tracker.accept((0xFFFE + i) & 0xFFFF));
+		}
+		assertFalse(tracker.accept(0xFFFF));
+
+		assertEquals(4, tracker.getReceived());
+		assertEquals(0, tracker.getLost());
+		assertEquals(0, tracker.getReordered());
+		assertEquals(1, tracker.getDuplicates());
+	}
+
+	// Sequences the server reports as skipped are neither lost nor reordered
+	// when newer ones arrive, and a journal entry for one of them is not played.
+	// One that arrives after all was held back, not reordered.
+	@Test
+	void skippedSequencesAreNotLost() {
+		SequenceTracker tracker = new SequenceTracker();
+		assertTrue(tracker.accept(0));
+		tracker.skip(2, 0b11);
+		assertEquals(2, tracker.getSkipped());
+		assertFalse(tracker.recover(1));
+		assertTrue(tracker.accept(2));
+		assertTrue(tracker.accept(1));
+		assertTrue(tracker.accept(3));
+
+		assertEquals(4, tracker.getReceived());
+		assertEquals(0, tracker.getSkipped());
+		assertEquals(0, tracker.getLost());
+		assertEquals(0, tracker.getReordered());
+		assertEquals(0, tracker.getRecovered());
+	}
+}
@@ -0,0 +1,117 @@
+package midiJam;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+
+	private static final long TICK = 1_000_000L;
+
+	private final List<String> expired = new ArrayList<>();
+	private final TimingWheel<String> wheel = new TimingWheel<>(8, TICK, 0, (owner, now) -> expired.add(owner));
+
+	@Test
+	void timeoutFiresNoEarlierThanItsDeadline() {
+		TimingWheel.Timeout<String> timeout = new TimingWheel.Timeout<>("a");
+		wheel.schedule(timeout, 2 * TICK + TICK / 2);
+		assertEquals(3 * TICK, wheel.nextDeadline());
+
+		wheel.advance(2 * TICK + TICK / 2);
+		assertEquals(Collections.emptyList(), expired);
+		wheel.advance(3 * TICK);
+		assertEquals(Arrays.asList("a"), expired);
+		assertFalse(timeout.isScheduled());
+		assertEquals(0, wheel.size());
+		assertEquals(Long.MAX_VALUE, wheel.nextDeadline());
+	}
+
+	// A deadline more than one rotation away waits out the rotations before it.
+	@Test
+	void timeoutBeyondOneRotationWaitsForItsRound() {
+		wheel.schedule(new TimingWheel.Timeout<>("far"), 20 * TICK);
+		wheel.schedule(new TimingWheel.Timeout<>("near"), 4 * TICK);
+
+		wheel.advance(8 * TICK);
+		wheel.advance(16 * TICK);
+		assertEquals(Arrays.asList("near"), expired);
+		assertEquals(20 * TICK, wheel.nextDeadline());
+		wheel.advance(20 * TICK);
+		assertEquals(Arrays.asList("near", "far"), expired);
+	}
+
+	@Test
+	void cancelledTimeoutNeverFires() {
+		TimingWheel.Timeout<String> timeout = new TimingWheel.Timeout<>("a");
+		wheel.schedule(timeout, 2 * TICK);
+		wheel.cancel(timeout);
+		wheel.cancel(timeout);
+
+		assertEquals(0, wheel.size());
+		wheel.advance(10 * TICK);
+		assertEquals(Collections.emptyList(), expired);
+	}
+
+	// Rescheduling moves a timeout rather than adding a second one.
+	@Test
+	void rescheduleReplacesTheDeadline() {
+		TimingWheel.Timeout<String> timeout = new TimingWheel.Timeout<>("a");
+		wheel.schedule(timeout, 2 * TICK);
+		wheel.schedule(timeout, 5 * TICK);
+		assertEquals(1, wheel.size());
+
+		wheel.advance(4 * TICK);
+		assertEquals(Collections.emptyList(), expired);
+		assertTrue(timeout.isScheduled());
+		wheel.advance(5 * TICK);
+		assertEquals(Arrays.asList("a"), expired);
+	}
+
+	// After a stall longer than a rotation everything overdue fires, once.
+	@Test
+	void longStallFiresEveryOverdueTimeoutOnce() {
+		for (int i = 1; i <= 12; i++) {
+			wheel.schedule(new TimingWheel.Timeout<>("t" + i), i * TICK);
+		}
+		wheel.schedule(new TimingWheel.Timeout<>("later"), 40 * TICK);
+
+		wheel.advance(30 * TICK);
+		assertEquals(12, expired.size());
+		assertEquals(1, wheel.size());
+		assertEquals(40 * TICK, wheel.nextDeadline());
+		wheel.advance(31 * TICK);
+		assertEquals(12, expired.size());
+	}
+
+	// A handler that schedules its timeout again makes it fire periodically, the
+	// way the server keeps pinging a client.
+	@Test
+	void handlerMayRescheduleItsTimeout() {
+		List<Long> fired = new ArrayList<>();
+		List<TimingWheel<Periodic>> holder = new ArrayList<>();
+		TimingWheel<Periodic> periodic = new TimingWheel<>(8, TICK, 0, (owner, now) -> {
+			fired.add(now);
+			holder.get(0).schedule(owner.timeout, now + 3 * TICK);
+		});
+		holder.add(periodic);
+		Periodic owner = new Periodic();
+		periodic.schedule(owner.timeout, 3 * TICK);
+
+		for (long now = TICK; now <= 10 * TICK; now += TICK) {
+			periodic.advance(now);
+		}
+		assertEquals(Arrays.asList(3 * TICK, 6 * TICK, 9 * TICK), fired);
+		assertEquals(12 * TICK, periodic.nextDeadline());
+	}
+
+	private static class Periodic {
+		final TimingWheel.Timeout<Periodic> timeout = new TimingWheel.Timeout<>(this);
+	}
+}